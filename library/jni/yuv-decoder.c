@@ -1,5 +1,8 @@
 #include <jni.h>
 #include <android/log.h>
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
 
 
 JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_YUVtoRBGA(JNIEnv * env, jobject obj, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut)
@@ -21,20 +24,17 @@ JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibr
     sz = w * h;
 
     jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
-    jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+    unsigned char* yuv = (unsigned char*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
 
     for(j = 0; j < h; j++) {
              pixPtr = j * w;
              jDiv2 = j >> 1;
              for(i = 0; i < w; i++) {
                      Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
                      if((i & 0x1) != 1) {
                              cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
+                             Cb = yuv[cOff] - 128;
+                             Cr = yuv[cOff + 1] - 128;
                      }
                      
                      //ITU-R BT.601 conversion
@@ -77,20 +77,17 @@ JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibr
     sz = w * h;
 
     jint *rgbData = (jint*) ((*env)->GetPrimitiveArrayCritical(env, rgbOut, 0));
-    jbyte* yuv = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+    unsigned char* yuv = (unsigned char*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
 
     for(j = 0; j < h; j++) {
              pixPtr = j * w;
              jDiv2 = j >> 1;
              for(i = 0; i < w; i++) {
                      Y = yuv[pixPtr];
-                     if(Y < 0) Y += 255;
                      if((i & 0x1) != 1) {
                              cOff = sz + jDiv2 * w + (i >> 1) * 2;
-                             Cb = yuv[cOff];
-                             if(Cb < 0) Cb += 127; else Cb -= 128;
-                             Cr = yuv[cOff + 1];
-                             if(Cr < 0) Cr += 127; else Cr -= 128;
+                             Cb = yuv[cOff] - 128;
+                             Cr = yuv[cOff + 1] - 128;
                      }
                      
                      //ITU-R BT.601 conversion
@@ -112,4 +109,123 @@ JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibr
 
     (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
     (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, 0);
-}
\ No newline at end of file
+}
+static inline int clamp255(int value)
+{
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+}
+
+/*
+ * Implements the fixed point specification of YuvConverter.java, which is the
+ * reference: c = {yOffset, cy, crv, cgu, cgv, cbu}.
+ */
+static void nv21RowsToRgba(const unsigned char* yuv, int width, int height, jint* out,
+                           int rowStart, int rowEnd, const jint* c, int argb)
+{
+    int chromaStride = (width + 1) & ~1;
+    int frameSize = width * height;
+    int j;
+    for (j = rowStart; j < rowEnd; j++) {
+        const unsigned char* yRow = yuv + j * width;
+        const unsigned char* vuRow = yuv + frameSize + (j >> 1) * chromaStride;
+        jint* outRow = out + j * width;
+        int i = 0;
+#if defined(__ARM_NEON__) || defined(__ARM_NEON)
+        {
+            int32x4_t yOffset = vdupq_n_s32(c[0]);
+            int32x4_t round = vdupq_n_s32(32768);
+            int16x8_t chromaOffset = vdupq_n_s16(128);
+            for (; i + 16 <= width; i += 16) {
+                uint8x16_t y8 = vld1q_u8(yRow + i);
+                uint8x8x2_t vu = vld2_u8(vuRow + i);
+                /* Every chroma sample covers two pixels. */
+                uint8x8x2_t v8 = vzip_u8(vu.val[0], vu.val[0]);
+                uint8x8x2_t u8 = vzip_u8(vu.val[1], vu.val[1]);
+                uint8x16_t r8, g8, b8;
+                uint8x8_t rh[2], gh[2], bh[2];
+                int half;
+                for (half = 0; half < 2; half++) {
+                    int16x8_t y16 = vreinterpretq_s16_u16(vmovl_u8(
+                            half == 0 ? vget_low_u8(y8) : vget_high_u8(y8)));
+                    int16x8_t v16 = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(v8.val[half])),
+                            chromaOffset);
+                    int16x8_t u16 = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(u8.val[half])),
+                            chromaOffset);
+                    int32x4_t yl = vmlaq_n_s32(round,
+                            vsubq_s32(vmovl_s16(vget_low_s16(y16)), yOffset), c[1]);
+                    int32x4_t yh = vmlaq_n_s32(round,
+                            vsubq_s32(vmovl_s16(vget_high_s16(y16)), yOffset), c[1]);
+                    int32x4_t vl = vmovl_s16(vget_low_s16(v16));
+                    int32x4_t vh = vmovl_s16(vget_high_s16(v16));
+                    int32x4_t ul = vmovl_s16(vget_low_s16(u16));
+                    int32x4_t uh = vmovl_s16(vget_high_s16(u16));
+
+                    int32x4_t rl = vshrq_n_s32(vmlaq_n_s32(yl, vl, c[2]), 16);
+                    int32x4_t rhi = vshrq_n_s32(vmlaq_n_s32(yh, vh, c[2]), 16);
+                    int32x4_t gl = vshrq_n_s32(vmlaq_n_s32(vmlaq_n_s32(yl, ul, c[3]), vl, c[4]), 16);
+                    int32x4_t ghi = vshrq_n_s32(vmlaq_n_s32(vmlaq_n_s32(yh, uh, c[3]), vh, c[4]), 16);
+                    int32x4_t bl = vshrq_n_s32(vmlaq_n_s32(yl, ul, c[5]), 16);
+                    int32x4_t bhi = vshrq_n_s32(vmlaq_n_s32(yh, uh, c[5]), 16);
+
+                    /* Saturating narrowing clamps to [0, 255]. */
+                    rh[half] = vqmovn_u16(vcombine_u16(vqmovun_s32(rl), vqmovun_s32(rhi)));
+                    gh[half] = vqmovn_u16(vcombine_u16(vqmovun_s32(gl), vqmovun_s32(ghi)));
+                    bh[half] = vqmovn_u16(vcombine_u16(vqmovun_s32(bl), vqmovun_s32(bhi)));
+                }
+                r8 = vcombine_u8(rh[0], rh[1]);
+                g8 = vcombine_u8(gh[0], gh[1]);
+                b8 = vcombine_u8(bh[0], bh[1]);
+                {
+                    uint8x16x4_t pixels;
+                    pixels.val[0] = argb ? b8 : r8;
+                    pixels.val[1] = g8;
+                    pixels.val[2] = argb ? r8 : b8;
+                    pixels.val[3] = vdupq_n_u8(255);
+                    vst4q_u8((uint8_t*) (outRow + i), pixels);
+                }
+            }
+        }
+#endif
+        {
+            int rv = 0;
+            int guv = 0;
+            int bu = 0;
+            for (; i < width; i++) {
+                int y;
+                int r;
+                int g;
+                int b;
+                if ((i & 1) == 0) {
+                    int v = vuRow[i] - 128;
+                    int u = vuRow[i + 1] - 128;
+                    rv = v * c[2];
+                    guv = u * c[3] + v * c[4];
+                    bu = u * c[5];
+                }
+                y = (yRow[i] - c[0]) * c[1] + 32768;
+                r = clamp255((y + rv) >> 16);
+                g = clamp255((y + guv) >> 16);
+                b = clamp255((y + bu) >> 16);
+                outRow[i] = argb
+                        ? (jint) (0xff000000u | (r << 16) | (g << 8) | b)
+                        : (jint) (0xff000000u | (b << 16) | (g << 8) | r);
+            }
+        }
+    }
+}
+
+JNIEXPORT void JNICALL Java_jp_co_cyberagent_android_gpuimage_GPUImageNativeLibrary_NV21toRGBA(JNIEnv * env, jclass clazz, jbyteArray yuv420sp, jint width, jint height, jintArray rgbOut, jint rowStart, jint rowEnd, jintArray coefficients, jboolean argb)
+{
+    jint c[6];
+    jint* rgbData;
+    unsigned char* yuv;
+
+    (*env)->GetIntArrayRegion(env, coefficients, 0, 6, c);
+    rgbData = (jint*) (*env)->GetPrimitiveArrayCritical(env, rgbOut, 0);
+    yuv = (unsigned char*) (*env)->GetPrimitiveArrayCritical(env, yuv420sp, 0);
+
+    nv21RowsToRgba(yuv, width, height, rgbData, rowStart, rowEnd, c, argb);
+
+    (*env)->ReleasePrimitiveArrayCritical(env, yuv420sp, yuv, JNI_ABORT);
+    (*env)->ReleasePrimitiveArrayCritical(env, rgbOut, rgbData, 0);
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded and resized images, so that showing an image again at
+ * the same size does not decode it again.<br>
+ * <br>
+ * The budget is measured in bytes of bitmap memory. Evicted bitmaps go to a
+ * {@link BitmapPool}, unless they are marked as in use, e.g. because they are
+ * still displayed. Those are left to the garbage collector.
+ */
+public class BitmapCache {
+    private static BitmapCache sDefault;
+
+    private final Cache mCache;
+    private final BitmapPool mPool;
+    private final Map<Bitmap, Integer> mInUse = new IdentityHashMap<Bitmap, Integer>();
+
+    /**
+     * @param maxBytes the most memory the cached bitmaps may use
+     * @param pool receives evicted bitmaps, or null to leave them to the
+     *             garbage collector
+     */
+    public BitmapCache(final int maxBytes, final BitmapPool pool) {
+        mCache = new Cache(maxBytes);
+        mPool = pool;
+    }
+
+    /**
+     * @return the cache shared by all {@link GPUImage} instances, which may
+     *         use an eighth of the heap and pools as much again
+     */
+    public static synchronized BitmapCache getDefault() {
+        if (sDefault == null) {
+            int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+            sDefault = new BitmapCache(maxBytes, new BitmapPool(maxBytes));
+        }
+        return sDefault;
+    }
+
+    /**
+     * @return the cached bitmap, or null
+     */
+    public Bitmap get(final Key key) {
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null && bitmap.isRecycled()) {
+            // Recycled by someone else, it can not be used anymore.
+            mCache.remove(key);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Gets a cached bitmap and marks it as in use, so that it can not be
+     * evicted and reused before it is released by
+     * {@link #setInUse(Bitmap, boolean)}.
+     *
+     * @return the cached bitmap, or null
+     */
+    public Bitmap acquire(final Key key) {
+        synchronized (mInUse) {
+            Bitmap bitmap = get(key);
+            setInUse(bitmap, true);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Adds a bitmap. The cache may recycle or reuse it after it was evicted,
+     * unless it is marked as in use.
+     */
+    public void put(final Key key, final Bitmap bitmap) {
+        mCache.put(key, bitmap);
+    }
+
+    /**
+     * Marks a bitmap as used outside of the cache, or not anymore. Calls are
+     * counted, so every bitmap has to be released as often as it was marked.
+     */
+    public void setInUse(final Bitmap bitmap, final boolean inUse) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mInUse) {
+            Integer count = mInUse.get(bitmap);
+            int newCount = (count != null ? count : 0) + (inUse ? 1 : -1);
+            if (newCount > 0) {
+                mInUse.put(bitmap, newCount);
+            } else {
+                mInUse.remove(bitmap);
+            }
+        }
+    }
+
+    private boolean isInUse(final Bitmap bitmap) {
+        synchronized (mInUse) {
+            return mInUse.containsKey(bitmap);
+        }
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * @return the pool evicted bitmaps go to, or null
+     */
+    public BitmapPool getPool() {
+        return mPool;
+    }
+
+    /**
+     * @return the memory used by the cached bitmaps
+     */
+    public int getBytes() {
+        return mCache.size();
+    }
+
+    public int getMaxBytes() {
+        return mCache.maxSize();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCache[bytes=" + getBytes() + "/" + getMaxBytes()
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private class Cache extends LruCache<Key, Bitmap> {
+        Cache(final int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(final Key key, final Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(final boolean evicted, final Key key, final Bitmap oldBitmap,
+                                    final Bitmap newBitmap) {
+            if (oldBitmap == newBitmap || isInUse(oldBitmap)) {
+                return;
+            }
+            if (mPool != null) {
+                mPool.put(oldBitmap);
+            } else {
+                oldBitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Identifies an image as loaded for display: its source and the size,
+     * scale type and orientation it was prepared for.
+     */
+    public static final class Key {
+        private final String mSource;
+        private final int mWidth;
+        private final int mHeight;
+        private final GPUImage.ScaleType mScaleType;
+        private final int mOrientation;
+
+        /**
+         * @param source identifies the image data, e.g. a URI, or a path and
+         *               the modification time of the file
+         */
+        public Key(final String source, final int width, final int height,
+                   final GPUImage.ScaleType scaleType, final int orientation) {
+            mSource = source;
+            mWidth = width;
+            mHeight = height;
+            mScaleType = scaleType;
+            mOrientation = orientation;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mWidth == key.mWidth && mHeight == key.mHeight
+                    && mOrientation == key.mOrientation && mScaleType == key.mScaleType
+                    && mSource.equals(key.mSource);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mSource.hashCode();
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mScaleType != null ? mScaleType.hashCode() : 0);
+            result = 31 * result + mOrientation;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mSource + " " + mWidth + "x" + mHeight + " " + mScaleType + " " + mOrientation;
+        }
+    }
+}
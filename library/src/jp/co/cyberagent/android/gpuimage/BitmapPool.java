@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps bitmaps which are no longer used, so that their memory can be reused
+ * for new bitmaps instead of being allocated again, either directly or as
+ * {@link BitmapFactory.Options#inBitmap} when decoding.<br>
+ * <br>
+ * Bitmaps are bucketed by the size of their allocation. Since KitKat a bitmap
+ * can be reconfigured to any size which fits into its allocation, before that
+ * only a bitmap of the same size and config can be reused.<br>
+ * <br>
+ * The pool holds at most its budget in bytes. The bitmaps which were put
+ * into the pool first are recycled first when it is exceeded.
+ */
+public class BitmapPool {
+    /**
+     * A bitmap is not reused for one which needs less than this part of its
+     * memory, so that small images do not hold on to large allocations.
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private long mMaxBytes;
+    private long mBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param maxBytes the most memory the bitmaps in the pool may use
+     */
+    public BitmapPool(final long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a bitmap which is not used anywhere anymore. Bitmaps which can not
+     * be reused are recycled right away.
+     *
+     * @param bitmap the bitmap, owned by the pool afterwards
+     */
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        int bytes = getAllocationByteCount(bitmap);
+        if (!bitmap.isMutable() || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(bytes, bucket);
+        }
+        bucket.addLast(bitmap);
+        mBitmaps.addLast(bitmap);
+        mBytes += bytes;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Takes a bitmap out of the pool.
+     *
+     * @param width the width of the bitmap
+     * @param height the height of the bitmap
+     * @param config the config of the bitmap
+     * @return a mutable bitmap with undefined content, or null if none fits
+     */
+    public synchronized Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        int bytes = width * height * getBytesPerPixel(config);
+        Bitmap bitmap;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bitmap = takeFitting(bytes);
+            if (bitmap != null
+                    && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                    || bitmap.getConfig() != config)) {
+                reconfigure(bitmap, width, height, config);
+            }
+        } else {
+            bitmap = takeExact(bytes, width, height, config);
+        }
+        if (bitmap == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a bitmap from the pool
+     * which the image can be decoded into. If the decoding fails, the bitmap
+     * should be put back and the image decoded without it.
+     *
+     * @param options the options with inSampleSize and inPreferredConfig set;
+     *                inSampleSize should be a power of 2, the decoder rounds
+     *                other values down
+     * @param width the width of the image as reported by decoding its bounds
+     * @param height the height of the image as reported by decoding its bounds
+     * @return whether a bitmap was set
+     */
+    public boolean setInBitmap(final BitmapFactory.Options options, final int width,
+                               final int height) {
+        int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+        if (sampleSize > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = get((width + sampleSize - 1) / sampleSize,
+                (height + sampleSize - 1) / sampleSize, config);
+        options.inBitmap = bitmap;
+        options.inMutable = true;
+        return bitmap != null;
+    }
+
+    private Bitmap takeFitting(final int bytes) {
+        for (Map.Entry<Integer, LinkedList<Bitmap>> entry : mBuckets.tailMap(bytes).entrySet()) {
+            if (entry.getKey() > (long) bytes * MAX_SIZE_MULTIPLE) {
+                break;
+            }
+            return take(entry.getKey(), entry.getValue(), entry.getValue().getLast());
+        }
+        return null;
+    }
+
+    private Bitmap takeExact(final int bytes, final int width, final int height,
+                             final Bitmap.Config config) {
+        LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            return null;
+        }
+        Iterator<Bitmap> iterator = bucket.descendingIterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                return take(bytes, bucket, bitmap);
+            }
+        }
+        return null;
+    }
+
+    private Bitmap take(final int bytes, final LinkedList<Bitmap> bucket, final Bitmap bitmap) {
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(bytes);
+        }
+        mBitmaps.remove(bitmap);
+        mBytes -= bytes;
+        return bitmap;
+    }
+
+    /**
+     * Recycles bitmaps until the pool uses at most the given memory.
+     */
+    public synchronized void trimToSize(final long maxBytes) {
+        while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+            Bitmap bitmap = mBitmaps.getFirst();
+            int bytes = getAllocationByteCount(bitmap);
+            take(bytes, mBuckets.get(bytes), bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxBytes(final long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return the memory used by the bitmaps in the pool
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(final Bitmap bitmap, final int width, final int height,
+                                    final Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationByteCount(final Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(final Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
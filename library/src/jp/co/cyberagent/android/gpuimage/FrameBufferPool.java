@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of intermediate render targets (framebuffer + texture pairs) shared by
+ * all filter groups which draw on the same EGL context.<br>
+ * <br>
+ * A filter group only holds a target while a pass writes it or the next pass
+ * reads it, so a chain of any length needs at most two targets of its output
+ * size. Targets are returned to the pool after each pass and reused by the
+ * next pass or by other groups. Free targets are kept up to a memory limit,
+ * the least recently released ones are deleted first, so targets of sizes
+ * which are no longer used go away without a group deleting those of
+ * another.<br>
+ * <br>
+ * All methods have to be called on the OpenGL thread which owns the context.
+ */
+public class FrameBufferPool {
+    /** Six 1920x1080 RGBA targets, enough for a few chains of full HD frames. */
+    private static final long DEFAULT_MAX_FREE_BYTES = 6L * 1920 * 1080 * 4;
+
+    private static final Map<EGLContext, FrameBufferPool> sPools =
+            new HashMap<EGLContext, FrameBufferPool>();
+
+    private final List<FrameBuffer> mFreeFrameBuffers = new ArrayList<FrameBuffer>();
+    private long mMaxFreeBytes = DEFAULT_MAX_FREE_BYTES;
+    private long mFreeBytes;
+    private int mLeasedCount;
+    private int mAllocatedCount;
+
+    private FrameBufferPool() {
+    }
+
+    /**
+     * Gets the pool of the EGL context current on the calling thread.
+     *
+     * @return the pool of the current context
+     */
+    public static FrameBufferPool get() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        synchronized (sPools) {
+            FrameBufferPool pool = sPools.get(context);
+            if (pool == null) {
+                pool = new FrameBufferPool();
+                sPools.put(context, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Forgets the pool of the current EGL context without deleting anything.
+     * Has to be called when a context was (re)created, because a new context
+     * can get the handle of a destroyed one and the old names are invalid.
+     */
+    public static void onContextCreated() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        synchronized (sPools) {
+            sPools.remove(context);
+        }
+    }
+
+    /**
+     * Deletes all targets of the current EGL context and forgets its pool.
+     * Has to be called before the context is destroyed.
+     */
+    public static void destroyCurrent() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        FrameBufferPool pool;
+        synchronized (sPools) {
+            pool = sPools.remove(context);
+        }
+        if (pool != null) {
+            pool.purge();
+        }
+    }
+
+    /**
+     * Takes a RGBA target of the given size from the pool, allocating a new
+     * one if no free target matches.
+     *
+     * @param width the width of the target
+     * @param height the height of the target
+     * @return a target which is exclusively owned until it is released
+     */
+    public FrameBuffer obtain(final int width, final int height) {
+        return obtain(width, height, GLES20.GL_RGBA);
+    }
+
+    /**
+     * Takes a target of the given size and format from the pool, allocating a
+     * new one if no free target matches.
+     *
+     * @param width the width of the target
+     * @param height the height of the target
+     * @param format GL_RGBA, or GL_RGBA32UI for exact integer sums on
+     *               OpenGL ES 3.0, which can only be read with texelFetch
+     * @return a target which is exclusively owned until it is released
+     */
+    public FrameBuffer obtain(final int width, final int height, final int format) {
+        mLeasedCount++;
+        for (int i = mFreeFrameBuffers.size() - 1; i >= 0; i--) {
+            FrameBuffer frameBuffer = mFreeFrameBuffers.get(i);
+            if (frameBuffer.mWidth == width && frameBuffer.mHeight == height
+                    && frameBuffer.mFormat == format) {
+                mFreeFrameBuffers.remove(i);
+                mFreeBytes -= frameBuffer.getByteCount();
+                return frameBuffer;
+            }
+        }
+        mAllocatedCount++;
+        return FrameBuffer.create(width, height, format);
+    }
+
+    /**
+     * Returns a target obtained by {@link #obtain(int, int)} to the pool.
+     *
+     * @param frameBuffer the target, may be null
+     */
+    public void release(final FrameBuffer frameBuffer) {
+        if (frameBuffer == null) {
+            return;
+        }
+        mLeasedCount--;
+        mFreeFrameBuffers.add(frameBuffer);
+        mFreeBytes += frameBuffer.getByteCount();
+        trim();
+    }
+
+    /**
+     * Deletes all targets which are currently not in use.
+     */
+    public void purge() {
+        for (FrameBuffer frameBuffer : mFreeFrameBuffers) {
+            frameBuffer.delete();
+        }
+        mAllocatedCount -= mFreeFrameBuffers.size();
+        mFreeFrameBuffers.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * Sets how much memory free targets may take, the least recently
+     * released ones are deleted first. Should be at least what all groups
+     * drawing a frame use, or targets are allocated again for every frame.
+     *
+     * @param maxFreeBytes the maximum size of all free targets in bytes
+     */
+    public void setMaxFreeBytes(final long maxFreeBytes) {
+        mMaxFreeBytes = maxFreeBytes;
+        trim();
+    }
+
+    /**
+     * @return the size of all free targets in bytes
+     */
+    public long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    private void trim() {
+        while (mFreeBytes > mMaxFreeBytes) {
+            FrameBuffer frameBuffer = mFreeFrameBuffers.remove(0);
+            mFreeBytes -= frameBuffer.getByteCount();
+            mAllocatedCount--;
+            frameBuffer.delete();
+        }
+    }
+
+    /**
+     * @return the number of targets currently handed out
+     */
+    public int getLeasedCount() {
+        return mLeasedCount;
+    }
+
+    /**
+     * @return the number of targets allocated on the GPU, free or in use
+     */
+    public int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    /**
+     * A framebuffer with a texture as its color attachment.
+     */
+    public static class FrameBuffer {
+        private final int mFrameBufferId;
+        private final int mTextureId;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFormat;
+
+        private FrameBuffer(final int frameBufferId, final int textureId,
+                            final int width, final int height, final int format) {
+            mFrameBufferId = frameBufferId;
+            mTextureId = textureId;
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+        }
+
+        static FrameBuffer create(final int width, final int height, final int format) {
+            int[] frameBuffers = new int[1];
+            int[] textures = new int[1];
+            GLES20.glGenFramebuffers(1, frameBuffers, 0);
+            GLES20.glGenTextures(1, textures, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            int filter;
+            if (format == GLES30.GL_RGBA32UI) {
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES30.GL_RGBA32UI, width, height, 0,
+                        GLES30.GL_RGBA_INTEGER, GLES20.GL_UNSIGNED_INT, null);
+                // Integer textures can not be filtered.
+                filter = GLES20.GL_NEAREST;
+            } else {
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+                filter = GLES20.GL_LINEAR;
+            }
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, filter);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, filter);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[0]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, textures[0], 0);
+
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            return new FrameBuffer(frameBuffers[0], textures[0], width, height, format);
+        }
+
+        void delete() {
+            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+            GLES20.glDeleteFramebuffers(1, new int[]{mFrameBufferId}, 0);
+        }
+
+        public int getFrameBufferId() {
+            return mFrameBufferId;
+        }
+
+        public int getTextureId() {
+            return mTextureId;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        /**
+         * @return the size of the texture in bytes
+         */
+        public long getByteCount() {
+            int bytesPerPixel = mFormat == GLES30.GL_RGBA32UI ? 16 : 4;
+            return (long) mWidth * mHeight * bytesPerPixel;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of tasks which have to run on the OpenGL thread.<br>
+ * <br>
+ * Any number of threads may add tasks without blocking each other or the
+ * OpenGL thread, which is the only consumer. The consumer can limit how long
+ * it drains per frame; tasks left over stay queued in order for the next
+ * frame instead of making the current frame late.
+ */
+public class GLTaskQueue {
+    /** Budget value which drains the whole queue. */
+    public static final long NO_BUDGET = 0;
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private int mMaxSize;
+    private long mExecutedCount;
+    private long mDeferredCount;
+    private long mDrainTimeNanos;
+
+    /**
+     * Adds a task. May be called from any thread.
+     *
+     * @param task the task
+     */
+    public void add(final Runnable task) {
+        mTasks.offer(task);
+        int size = mSize.incrementAndGet();
+        if (size > mMaxSize) {
+            // Racy, but only used as a statistic.
+            mMaxSize = size;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mTasks.isEmpty();
+    }
+
+    /**
+     * Runs all queued tasks, including ones added while draining.
+     */
+    public void runAll() {
+        run(NO_BUDGET);
+    }
+
+    /**
+     * Runs queued tasks until the queue is empty or the budget is used up. At
+     * least one task runs per call, so the queue always makes progress.
+     *
+     * @param budgetNanos the time to spend, or {@link #NO_BUDGET}
+     * @return true if tasks are left over
+     */
+    public boolean run(final long budgetNanos) {
+        if (mTasks.isEmpty()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        long now = start;
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            mSize.decrementAndGet();
+            task.run();
+            mExecutedCount++;
+            now = System.nanoTime();
+            if (budgetNanos != NO_BUDGET && now - start >= budgetNanos) {
+                break;
+            }
+        }
+        mDrainTimeNanos += now - start;
+        if (!mTasks.isEmpty()) {
+            mDeferredCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of tasks waiting to run
+     */
+    public int getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * @return the highest number of tasks which were waiting at once
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of tasks run so far
+     */
+    public long getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    /**
+     * @return how often the budget ran out before the queue was empty
+     */
+    public long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    /**
+     * @return the total time spent running tasks, in nanoseconds
+     */
+    public long getDrainTimeNanos() {
+        return mDrainTimeNanos;
+    }
+}
@@ -24,8 +24,14 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
@@ -38,6 +44,7 @@ import android.os.Handler;
 import android.provider.MediaStore;
 import android.view.Display;
 import android.view.WindowManager;
+import jp.co.cyberagent.android.gpuimage.util.ProgramBinaryCache;
 
 import java.io.*;
 import java.net.URL;
@@ -49,12 +56,17 @@ import java.util.concurrent.Semaphore;
  * tasks through a simple interface.
  */
 public class GPUImage {
+    /** Time per frame the preview spends on queued tasks, the rest runs in the next frame. */
+    private static final long RUN_ON_DRAW_BUDGET_NANOS = 8000000L;
+
     private final Context mContext;
     private final GPUImageRenderer mRenderer;
     private GLSurfaceView mGlSurfaceView;
     private GPUImageFilter mFilter;
     private Bitmap mCurrentBitmap;
     private ScaleType mScaleType = ScaleType.CENTER_CROP;
+    private OffscreenSession mOffscreenSession;
+    private BitmapCache mBitmapCache = BitmapCache.getDefault();
 
     /**
      * Instantiates a new GPUImage object.
@@ -85,17 +97,38 @@ public class GPUImage {
         return configurationInfo.reqGlEsVersion >= 0x20000;
     }
 
+    /**
+     * Enables or disables storing linked shader programs in the cache
+     * directory of the app, so that later starts do not need to compile them.
+     * Only used on devices with OpenGL ES 3.0.
+     *
+     * @param enabled whether program binaries should be cached on disk
+     */
+    public void setProgramBinaryCacheEnabled(final boolean enabled) {
+        ProgramCache.setBinaryCache(enabled
+                ? new ProgramBinaryCache(new File(mContext.getCacheDir(), "gpuimage_programs"))
+                : null);
+    }
+
     /**
      * Sets the GLSurfaceView which will display the preview.
      *
      * @param view the GLSurfaceView
      */
     public void setGLSurfaceView(final GLSurfaceView view) {
+        synchronized (this) {
+            if (mOffscreenSession != null) {
+                // The filter is about to be initialized on the view's context.
+                mOffscreenSession.releaseFilter();
+            }
+        }
         mGlSurfaceView = view;
         mGlSurfaceView.setEGLContextClientVersion(2);
         mGlSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
         mGlSurfaceView.getHolder().setFormat(PixelFormat.RGBA_8888);
         mGlSurfaceView.setRenderer(mRenderer);
+        mRenderer.setGLSurfaceView(mGlSurfaceView);
+        mRenderer.setRunOnDrawBudget(RUN_ON_DRAW_BUDGET_NANOS);
         mGlSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         mGlSurfaceView.requestRender();
     }
@@ -166,6 +199,38 @@ public class GPUImage {
         mRenderer.setUpSurfaceTexture(camera);
     }
 
+    /**
+     * Reads back every n-th filtered frame, e.g. to analyze the camera preview.
+     * On OpenGL ES 3 the pixels arrive one or two frames later without
+     * stalling the preview.
+     *
+     * @param interval read every interval-th frame
+     * @param callback gets the pixels on the OpenGL thread, or null to stop
+     */
+    public void setFrameTap(final int interval, final PixelReader.Callback callback) {
+        mRenderer.setFrameTap(interval, callback);
+    }
+
+    /**
+     * Reads back the next filtered frame without stalling the OpenGL thread.
+     *
+     * @param callback gets the pixels on the OpenGL thread
+     */
+    public void readPixels(final PixelReader.Callback callback) {
+        mRenderer.readPixels(callback);
+        requestRender();
+    }
+
+    /**
+     * Sets whether camera frames are converted to RGB by the first filter on
+     * the GPU instead of on the CPU. Disabled by default.
+     *
+     * @param decodeOnGpu true to convert camera frames on the GPU
+     */
+    public void setCameraDecodingOnGpu(final boolean decodeOnGpu) {
+        mRenderer.setPreviewDecodingOnGpu(decodeOnGpu);
+    }
+
     /**
      * Sets the filter which should be applied to the image which was (or will
      * be) set by setImage(...).
@@ -184,7 +249,7 @@ public class GPUImage {
      * @param bitmap the new image
      */
     public void setImage(final Bitmap bitmap) {
-        mCurrentBitmap = bitmap;
+        setCurrentBitmap(bitmap);
         mRenderer.setImageBitmap(bitmap, false);
         requestRender();
     }
@@ -199,10 +264,40 @@ public class GPUImage {
         mScaleType = scaleType;
         mRenderer.setScaleType(scaleType);
         mRenderer.deleteImage();
-        mCurrentBitmap = null;
+        setCurrentBitmap(null);
         requestRender();
     }
 
+    private void setCurrentBitmap(final Bitmap bitmap) {
+        if (mBitmapCache != null && bitmap != mCurrentBitmap) {
+            mBitmapCache.setInUse(bitmap, true);
+            mBitmapCache.setInUse(mCurrentBitmap, false);
+        }
+        mCurrentBitmap = bitmap;
+    }
+
+    /**
+     * Sets the cache which keeps images loaded by setImage(Uri) and
+     * setImage(File), so that loading them again at the same size skips
+     * decoding. By default all instances share {@link BitmapCache#getDefault()}.
+     * Bitmaps evicted into the pool of the cache are reused for decoding.
+     *
+     * @param cache the new cache, or null to always decode
+     */
+    public void setBitmapCache(final BitmapCache cache) {
+        if (mBitmapCache != null) {
+            mBitmapCache.setInUse(mCurrentBitmap, false);
+        }
+        mBitmapCache = cache;
+        if (mBitmapCache != null) {
+            mBitmapCache.setInUse(mCurrentBitmap, true);
+        }
+    }
+
+    public BitmapCache getBitmapCache() {
+        return mBitmapCache;
+    }
+
     /**
      * Sets the rotation of the displayed image.
      *
@@ -226,7 +321,7 @@ public class GPUImage {
      */
     public void deleteImage() {
         mRenderer.deleteImage();
-        mCurrentBitmap = null;
+        setCurrentBitmap(null);
         requestRender();
     }
 
@@ -301,27 +396,43 @@ public class GPUImage {
             }
         }
 
-        GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
-        renderer.setRotation(Rotation.NORMAL,
+        OffscreenSession session = getOffscreenSession();
+        session.setRotation(Rotation.NORMAL,
                 mRenderer.isFlippedHorizontally(), mRenderer.isFlippedVertically());
-        renderer.setScaleType(mScaleType);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
-        buffer.setRenderer(renderer);
-        renderer.setImageBitmap(bitmap, false);
-        Bitmap result = buffer.getBitmap();
-        mFilter.destroy();
-        renderer.deleteImage();
-        buffer.destroy();
+        session.setScaleType(mScaleType);
+        Bitmap result = session.render(bitmap, mFilter);
 
-        mRenderer.setFilter(mFilter);
-        if (mCurrentBitmap != null) {
-            mRenderer.setImageBitmap(mCurrentBitmap, false);
+        if (mGlSurfaceView != null) {
+            // The filter can only be initialized on one context at a time.
+            session.releaseFilter();
+            mRenderer.setFilter(mFilter);
+            if (mCurrentBitmap != null) {
+                mRenderer.setImageBitmap(mCurrentBitmap, false);
+            }
+            requestRender();
         }
-        requestRender();
 
         return result;
     }
 
+    private synchronized OffscreenSession getOffscreenSession() {
+        if (mOffscreenSession == null) {
+            mOffscreenSession = new OffscreenSession();
+        }
+        return mOffscreenSession;
+    }
+
+    /**
+     * Releases the EGL context which {@link #getBitmapWithFilterApplied()} keeps
+     * between calls. It is created again when needed.
+     */
+    public synchronized void releaseOffscreenSession() {
+        if (mOffscreenSession != null) {
+            mOffscreenSession.release();
+            mOffscreenSession = null;
+        }
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
@@ -500,19 +611,41 @@ public class GPUImage {
         @Override
         protected Bitmap decode(BitmapFactory.Options options) {
             try {
-                InputStream inputStream;
-                if (mUri.getScheme().startsWith("http") || mUri.getScheme().startsWith("https")) {
-                    inputStream = new URL(mUri.toString()).openStream();
-                } else {
-                    inputStream = mContext.getContentResolver().openInputStream(mUri);
+                InputStream inputStream = openInputStream();
+                try {
+                    return BitmapFactory.decodeStream(inputStream, null, options);
+                } finally {
+                    inputStream.close();
                 }
-                return BitmapFactory.decodeStream(inputStream, null, options);
             } catch (Exception e) {
                 e.printStackTrace();
             }
             return null;
         }
 
+        @Override
+        protected BitmapRegionDecoder newRegionDecoder() throws IOException {
+            InputStream inputStream = openInputStream();
+            try {
+                return BitmapRegionDecoder.newInstance(inputStream, false);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        private InputStream openInputStream() throws IOException {
+            if (mUri.getScheme().startsWith("http") || mUri.getScheme().startsWith("https")) {
+                return new URL(mUri.toString()).openStream();
+            } else {
+                return mContext.getContentResolver().openInputStream(mUri);
+            }
+        }
+
+        @Override
+        protected String getCacheSource() {
+            return mUri.toString();
+        }
+
         @Override
         protected int getImageOrientation() throws IOException {
             Cursor cursor = mContext.getContentResolver().query(mUri,
@@ -543,6 +676,18 @@ public class GPUImage {
             return BitmapFactory.decodeFile(mImageFile.getAbsolutePath(), options);
         }
 
+        @Override
+        protected BitmapRegionDecoder newRegionDecoder() throws IOException {
+            return BitmapRegionDecoder.newInstance(mImageFile.getAbsolutePath(), false);
+        }
+
+        @Override
+        protected String getCacheSource() {
+            // The file may be rewritten under the same name.
+            return mImageFile.getAbsolutePath() + "@" + mImageFile.lastModified()
+                    + ":" + mImageFile.length();
+        }
+
         @Override
         protected int getImageOrientation() throws IOException {
             ExifInterface exif = new ExifInterface(mImageFile.getAbsolutePath());
@@ -567,6 +712,9 @@ public class GPUImage {
         private final GPUImage mGPUImage;
         private int mOutputWidth;
         private int mOutputHeight;
+        private int mOrientation;
+        private BitmapCache mCache;
+        private BitmapPool mPool;
 
         @SuppressWarnings("deprecation")
         public LoadImageTask(final GPUImage gpuImage) {
@@ -586,7 +734,30 @@ public class GPUImage {
             }
             mOutputWidth = getOutputWidth();
             mOutputHeight = getOutputHeight();
-            return loadResizedImage();
+            try {
+                mOrientation = getImageOrientation();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            mCache = mBitmapCache;
+            mPool = mCache != null ? mCache.getPool() : null;
+            if (mCache == null) {
+                return loadResizedImage();
+            }
+            BitmapCache.Key key = new BitmapCache.Key(getCacheSource(), mOutputWidth,
+                    mOutputHeight, mScaleType, mOrientation);
+            // The bitmap is marked as in use until onPostExecute, so that it
+            // can not be evicted and reused before it is shown.
+            Bitmap bitmap = mCache.acquire(key);
+            if (bitmap == null) {
+                bitmap = loadResizedImage();
+                if (bitmap != null) {
+                    mCache.setInUse(bitmap, true);
+                    mCache.put(key, bitmap);
+                }
+            }
+            return bitmap;
         }
 
         @Override
@@ -594,16 +765,37 @@ public class GPUImage {
             super.onPostExecute(bitmap);
             mGPUImage.deleteImage();
             mGPUImage.setImage(bitmap);
+            if (mCache != null) {
+                mCache.setInUse(bitmap, false);
+            }
         }
 
         protected abstract Bitmap decode(BitmapFactory.Options options);
 
+        /**
+         * @return identifies the image data for the {@link BitmapCache}
+         */
+        protected abstract String getCacheSource();
+
+        /**
+         * @return a decoder for parts of the image, or null if not supported
+         */
+        protected abstract BitmapRegionDecoder newRegionDecoder() throws IOException;
+
         private Bitmap loadResizedImage() {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
             decode(options);
+            int width = options.outWidth;
+            int height = options.outHeight;
+            if (mScaleType == ScaleType.CENTER_CROP && width > 0 && height > 0) {
+                Bitmap bitmap = decodeVisibleRegion(width, height);
+                if (bitmap != null) {
+                    return transformBitmap(bitmap);
+                }
+            }
             int scale = 1;
-            while (checkSize(options.outWidth / scale > mOutputWidth, options.outHeight / scale > mOutputHeight)) {
+            while (checkSize(width / scale > mOutputWidth, height / scale > mOutputHeight)) {
                 scale++;
             }
 
@@ -611,45 +803,143 @@ public class GPUImage {
             if (scale < 1) {
                 scale = 1;
             }
+            // The decoder rounds other sample sizes down to a power of 2, so the
+            // pooled bitmap would be too small.
+            scale = Integer.highestOneBit(scale);
             options = new BitmapFactory.Options();
             options.inSampleSize = scale;
             options.inPreferredConfig = Bitmap.Config.RGB_565;
-            options.inPurgeable = true;
             options.inTempStorage = new byte[32 * 1024];
-            Bitmap bitmap = decode(options);
+            Bitmap bitmap;
+            if (mPool != null && mPool.setInBitmap(options, width, height)) {
+                bitmap = decode(options);
+                if (bitmap == null) {
+                    // The pooled bitmap did not fit, e.g. because of the format.
+                    mPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                    bitmap = decode(options);
+                }
+            } else {
+                options.inPurgeable = true;
+                bitmap = decode(options);
+            }
             if (bitmap == null) {
                 return null;
             }
-            bitmap = rotateImage(bitmap);
-            bitmap = scaleBitmap(bitmap);
-            return bitmap;
+            return transformBitmap(bitmap);
         }
 
-        private Bitmap scaleBitmap(Bitmap bitmap) {
-            // resize to desired dimensions
+        /**
+         * Decodes only the part of the image which is visible with CENTER_CROP,
+         * subsampled as far as possible while keeping at least the output size.
+         *
+         * @param width the width of the image as stored, before the rotation
+         * @param height the height of the image as stored, before the rotation
+         * @return the decoded region, or null if the whole image should be decoded
+         */
+        private Bitmap decodeVisibleRegion(final int width, final int height) {
+            // The crop is centered, so it is centered in the stored image as
+            // well, only with swapped sides if the image is rotated by 90°.
+            boolean swap = mOrientation % 180 != 0;
+            int outputWidth = swap ? mOutputHeight : mOutputWidth;
+            int outputHeight = swap ? mOutputWidth : mOutputHeight;
+            float scale = Math.max((float) outputWidth / width, (float) outputHeight / height);
+            int regionWidth = Math.min(width, (int) Math.ceil(outputWidth / scale));
+            int regionHeight = Math.min(height, (int) Math.ceil(outputHeight / scale));
+            if (regionWidth >= width && regionHeight >= height) {
+                return null;
+            }
+            int left = (width - regionWidth) / 2;
+            int top = (height - regionHeight) / 2;
+            Rect region = new Rect(left, top, left + regionWidth, top + regionHeight);
+
+            int sampleSize = 1;
+            while (regionWidth / (sampleSize * 2) >= outputWidth
+                    && regionHeight / (sampleSize * 2) >= outputHeight) {
+                sampleSize *= 2;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inTempStorage = new byte[32 * 1024];
+
+            BitmapRegionDecoder decoder = null;
+            try {
+                decoder = newRegionDecoder();
+                if (decoder == null) {
+                    return null;
+                }
+                if (mPool != null && mPool.setInBitmap(options, regionWidth, regionHeight)) {
+                    try {
+                        Bitmap bitmap = decoder.decodeRegion(region, options);
+                        if (bitmap != null) {
+                            return bitmap;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // The pooled bitmap did not fit.
+                    }
+                    mPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+                return decoder.decodeRegion(region, options);
+            } catch (Exception e) {
+                // Not supported for this format, e.g. GIF.
+                return null;
+            } finally {
+                if (decoder != null) {
+                    decoder.recycle();
+                }
+            }
+        }
+
+        /**
+         * Rotates, scales and crops the decoded image to the output in a single
+         * draw into a pooled bitmap, so there are no intermediate bitmaps.
+         */
+        private Bitmap transformBitmap(final Bitmap bitmap) {
             int width = bitmap.getWidth();
             int height = bitmap.getHeight();
-            int[] newSize = getScaleSize(width, height);
-            Bitmap workBitmap = Bitmap.createScaledBitmap(bitmap, newSize[0], newSize[1], true);
-            if (workBitmap != bitmap) {
-                bitmap.recycle();
-                bitmap = workBitmap;
-                System.gc();
+            if (mOrientation % 180 != 0) {
+                width = bitmap.getHeight();
+                height = bitmap.getWidth();
             }
-
+            int[] newSize = getScaleSize(width, height);
+            int targetWidth = newSize[0];
+            int targetHeight = newSize[1];
             if (mScaleType == ScaleType.CENTER_CROP) {
-                // Crop it
-                int diffWidth = newSize[0] - mOutputWidth;
-                int diffHeight = newSize[1] - mOutputHeight;
-                workBitmap = Bitmap.createBitmap(bitmap, diffWidth / 2, diffHeight / 2,
-                        newSize[0] - diffWidth, newSize[1] - diffHeight);
-                if (workBitmap != bitmap) {
-                    bitmap.recycle();
-                    bitmap = workBitmap;
-                }
+                targetWidth = mOutputWidth;
+                targetHeight = mOutputHeight;
+            }
+            if (mOrientation == 0 && targetWidth == width && targetHeight == height) {
+                return bitmap;
             }
 
-            return bitmap;
+            Matrix matrix = new Matrix();
+            matrix.postRotate(mOrientation);
+            RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            matrix.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+            matrix.postScale((float) newSize[0] / width, (float) newSize[1] / height);
+            // Center the crop, nothing is cut off with CENTER_INSIDE.
+            matrix.postTranslate(-((newSize[0] - targetWidth) / 2),
+                    -((newSize[1] - targetHeight) / 2));
+
+            Bitmap.Config config = bitmap.getConfig() != null
+                    ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+            Bitmap target = mPool != null ? mPool.get(targetWidth, targetHeight, config) : null;
+            if (target == null) {
+                target = Bitmap.createBitmap(targetWidth, targetHeight, config);
+            } else if (bitmap.hasAlpha()) {
+                target.eraseColor(Color.TRANSPARENT);
+            }
+            Canvas canvas = new Canvas(target);
+            canvas.drawBitmap(bitmap, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+            if (mPool != null) {
+                mPool.put(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+            return target;
         }
 
         /**
@@ -686,26 +976,6 @@ public class GPUImage {
             }
         }
 
-        private Bitmap rotateImage(final Bitmap bitmap) {
-            if (bitmap == null) {
-                return null;
-            }
-            Bitmap rotatedBitmap = bitmap;
-            try {
-                int orientation = getImageOrientation();
-                if (orientation != 0) {
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(orientation);
-                    rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-                            bitmap.getHeight(), matrix, true);
-                    bitmap.recycle();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return rotatedBitmap;
-        }
-
         protected abstract int getImageOrientation() throws IOException;
     }
 
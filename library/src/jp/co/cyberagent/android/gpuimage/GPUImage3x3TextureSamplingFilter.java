@@ -117,4 +117,13 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
         setFloat(mUniformTexelWidthLocation, mTexelWidth);
         setFloat(mUniformTexelHeightLocation, mTexelHeight);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        if (mHasOverriddenImageSizeFactor) {
+            // The texel size is relative to the whole image.
+            return SAMPLING_RADIUS_UNBOUNDED;
+        }
+        return (int) Math.ceil(mLineSize);
+    }
 }
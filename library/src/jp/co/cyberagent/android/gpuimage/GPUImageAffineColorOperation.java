@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
+
+/**
+ * A filter whose output color is an affine function of the input color.
+ * Runs of these filters inside a {@link GPUImageFilterGroup} are folded into
+ * one {@link GPUImageFoldedColorMatrixFilter} pass.
+ */
+public interface GPUImageAffineColorOperation {
+
+    /**
+     * Writes the transform for the current parameters. May be called on any
+     * thread.
+     *
+     * @param transform receives the transform of this filter
+     */
+    void getColorTransform(ColorTransform transform);
+}
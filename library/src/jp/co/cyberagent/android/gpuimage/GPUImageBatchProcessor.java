@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a filter to many images with a streaming pipeline of three stages:
+ * decoding, rendering and encoding.<br>
+ * <br>
+ * Images are decoded and encoded by several workers in parallel. Each render
+ * worker owns an {@link OffscreenSession} and a filter of its own. The stages
+ * are connected by bounded queues, so a fast stage waits for a slow one
+ * instead of piling up bitmaps, which caps the memory in use.<br>
+ * <br>
+ * Listener methods are called on the worker threads.
+ */
+public class GPUImageBatchProcessor {
+    public enum Stage {
+        DECODE, RENDER, ENCODE
+    }
+
+    private static final Item END = new Item(null, null);
+
+    private final Context mContext;
+    private final FilterFactory mFilterFactory;
+    private final List<Item> mItems = new ArrayList<Item>();
+    private int mDecodeThreads;
+    private int mRenderThreads = 1;
+    private int mEncodeThreads;
+    private int mQueueCapacity = 2;
+    private int mQuality = 90;
+    private int mMaxImageSize;
+
+    private final Stats mStats = new Stats();
+    private volatile boolean mCancelled;
+    private ExecutorService mExecutor;
+    private Listener mListener;
+    private ConcurrentLinkedQueue<Item> mPending;
+    private BlockingQueue<Item> mDecoded;
+    private BlockingQueue<Item> mRendered;
+    private final AtomicInteger mRunningDecoders = new AtomicInteger();
+    private final AtomicInteger mRunningRenderers = new AtomicInteger();
+    private final AtomicInteger mRunningEncoders = new AtomicInteger();
+
+    /**
+     * @param context the context used to open content URIs
+     * @param filterFactory creates a filter for each render worker
+     */
+    public GPUImageBatchProcessor(final Context context, final FilterFactory filterFactory) {
+        mContext = context.getApplicationContext();
+        mFilterFactory = filterFactory;
+        int cores = Runtime.getRuntime().availableProcessors();
+        mDecodeThreads = Math.max(1, cores / 2);
+        mEncodeThreads = Math.max(1, cores / 2);
+    }
+
+    /**
+     * Processes with a single render worker, which is the only one allowed to
+     * use the given filter.
+     */
+    public GPUImageBatchProcessor(final Context context, final GPUImageFilter filter) {
+        this(context, new FilterFactory() {
+            private boolean mCreated;
+
+            @Override
+            public synchronized GPUImageFilter createFilter() {
+                if (mCreated) {
+                    throw new IllegalStateException("A single filter can only be used by one render worker.");
+                }
+                mCreated = true;
+                return filter;
+            }
+        });
+    }
+
+    /**
+     * Adds an image. The output format is PNG if the output name ends with
+     * ".png" and JPEG otherwise.
+     *
+     * @param input the image, a file, content or resource URI
+     * @param output the file to write the filtered image to
+     */
+    public void add(final Uri input, final File output) {
+        checkNotStarted();
+        mItems.add(new Item(input, output));
+    }
+
+    public void add(final File input, final File output) {
+        add(Uri.fromFile(input), output);
+    }
+
+    public void setThreadCount(final int decodeThreads, final int renderThreads,
+                               final int encodeThreads) {
+        checkNotStarted();
+        if (decodeThreads < 1 || renderThreads < 1 || encodeThreads < 1) {
+            throw new IllegalArgumentException("Each stage needs at least one thread.");
+        }
+        mDecodeThreads = decodeThreads;
+        mRenderThreads = renderThreads;
+        mEncodeThreads = encodeThreads;
+    }
+
+    /**
+     * @param capacity the number of images which may wait between two stages
+     *                 per worker of the next stage
+     */
+    public void setQueueCapacity(final int capacity) {
+        checkNotStarted();
+        mQueueCapacity = Math.max(1, capacity);
+    }
+
+    /**
+     * @param quality the JPEG quality, 0-100
+     */
+    public void setQuality(final int quality) {
+        mQuality = quality;
+    }
+
+    /**
+     * Downsamples images larger than the given size in either dimension while
+     * decoding. 0, the default, keeps the full size.
+     */
+    public void setMaxImageSize(final int maxImageSize) {
+        checkNotStarted();
+        mMaxImageSize = maxImageSize;
+    }
+
+    /**
+     * Starts processing all added images in the background.
+     *
+     * @param listener notified about every image and the end, may be null
+     */
+    public synchronized void start(final Listener listener) {
+        checkNotStarted();
+        // Created up front, so a failing factory fails here and not in a worker.
+        final List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>(mRenderThreads);
+        for (int i = 0; i < mRenderThreads; i++) {
+            filters.add(mFilterFactory.createFilter());
+        }
+        mListener = listener;
+        mPending = new ConcurrentLinkedQueue<Item>(mItems);
+        mDecoded = new ArrayBlockingQueue<Item>(mQueueCapacity * mRenderThreads + mRenderThreads);
+        mRendered = new ArrayBlockingQueue<Item>(mQueueCapacity * mEncodeThreads + mEncodeThreads);
+        mRunningDecoders.set(mDecodeThreads);
+        mRunningRenderers.set(mRenderThreads);
+        mRunningEncoders.set(mEncodeThreads);
+        mStats.mStartNanos = System.nanoTime();
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "GPUImageBatchProcessor-" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < mDecodeThreads; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decodeLoop();
+                }
+            });
+        }
+        for (final GPUImageFilter filter : filters) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    renderLoop(filter);
+                }
+            });
+        }
+        for (int i = 0; i < mEncodeThreads; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    encodeLoop();
+                }
+            });
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Stops processing. Images which are already written stay, no further
+     * listener methods except {@link Listener#onFinished(Stats, boolean)} are
+     * called.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until all images are processed or the processing was cancelled.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = mExecutor;
+        }
+        return executor == null || executor.awaitTermination(timeout, unit);
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the statistics, updated while the images are processed
+     */
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private void decodeLoop() {
+        try {
+            Item item;
+            while (!mCancelled && (item = mPending.poll()) != null) {
+                long start = System.nanoTime();
+                try {
+                    item.mBitmap = decode(item.mInput);
+                } catch (Exception e) {
+                    fail(item, e);
+                    continue;
+                }
+                if (item.mBitmap == null) {
+                    fail(item, new IOException("Could not decode " + item.mInput));
+                    continue;
+                }
+                mStats.add(Stage.DECODE, System.nanoTime() - start);
+                put(mDecoded, item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (mRunningDecoders.decrementAndGet() == 0) {
+                endStage(mDecoded, mRenderThreads);
+            }
+        }
+    }
+
+    private void renderLoop(final GPUImageFilter filter) {
+        OffscreenSession session = new OffscreenSession();
+        try {
+            Item item;
+            while (!mCancelled && (item = mDecoded.take()) != END) {
+                long start = System.nanoTime();
+                Bitmap result;
+                try {
+                    result = session.render(item.mBitmap, filter);
+                } catch (RuntimeException e) {
+                    fail(item, e);
+                    continue;
+                } finally {
+                    // render() returns only when the session thread is done with the
+                    // bitmap, also if cancel() interrupted this thread.
+                    item.mBitmap.recycle();
+                    item.mBitmap = null;
+                }
+                if (result == null) {
+                    fail(item, new IllegalStateException("Could not render " + item.mInput));
+                    continue;
+                }
+                item.mBitmap = result;
+                mStats.add(Stage.RENDER, System.nanoTime() - start);
+                put(mRendered, item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            session.release();
+            if (mRunningRenderers.decrementAndGet() == 0) {
+                drainIfCancelled(mDecoded);
+                endStage(mRendered, mEncodeThreads);
+            }
+        }
+    }
+
+    private void encodeLoop() {
+        try {
+            Item item;
+            while (!mCancelled && (item = mRendered.take()) != END) {
+                long start = System.nanoTime();
+                try {
+                    encode(item.mBitmap, item.mOutput);
+                } catch (Exception e) {
+                    fail(item, e);
+                    continue;
+                } finally {
+                    item.mBitmap.recycle();
+                    item.mBitmap = null;
+                }
+                mStats.add(Stage.ENCODE, System.nanoTime() - start);
+                if (mListener != null && !mCancelled) {
+                    mListener.onImageProcessed(item.mInput, item.mOutput);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (mRunningEncoders.decrementAndGet() == 0) {
+                drainIfCancelled(mRendered);
+                mStats.mEndNanos = System.nanoTime();
+                if (mListener != null) {
+                    mListener.onFinished(mStats, mCancelled);
+                }
+            }
+        }
+    }
+
+    private void put(final BlockingQueue<Item> queue, final Item item)
+            throws InterruptedException {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            recycle(item);
+            throw e;
+        }
+    }
+
+    private void endStage(final BlockingQueue<Item> queue, final int consumers) {
+        drainIfCancelled(queue);
+        // Wake up every consumer of the next stage. If cancelled, the queue
+        // might be full, so make room instead of blocking.
+        for (int i = 0; i < consumers; i++) {
+            while (!queue.offer(END)) {
+                Item dropped = queue.poll();
+                if (dropped != null) {
+                    recycle(dropped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recycles the images left between two stages. Called by the last
+     * producer and the last consumer of the queue, so whichever ends later
+     * sees everything which was put.
+     */
+    private void drainIfCancelled(final BlockingQueue<Item> queue) {
+        if (!mCancelled) {
+            return;
+        }
+        Item item;
+        while ((item = queue.poll()) != null) {
+            recycle(item);
+        }
+    }
+
+    private static void recycle(final Item item) {
+        if (item != END && item.mBitmap != null) {
+            item.mBitmap.recycle();
+            item.mBitmap = null;
+        }
+    }
+
+    private void fail(final Item item, final Exception e) {
+        mStats.mFailed.incrementAndGet();
+        if (mListener != null && !mCancelled) {
+            mListener.onImageFailed(item.mInput, e);
+        }
+    }
+
+    private Bitmap decode(final Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (mMaxImageSize > 0) {
+            options.inJustDecodeBounds = true;
+            decodeStream(uri, options);
+            int scale = 1;
+            while (options.outWidth / scale > mMaxImageSize
+                    || options.outHeight / scale > mMaxImageSize) {
+                scale *= 2;
+            }
+            options = new BitmapFactory.Options();
+            options.inSampleSize = scale;
+        }
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return decodeStream(uri, options);
+    }
+
+    private Bitmap decodeStream(final Uri uri, final BitmapFactory.Options options)
+            throws IOException {
+        InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void encode(final Bitmap bitmap, final File output) throws IOException {
+        CompressFormat format = output.getName().toLowerCase().endsWith(".png")
+                ? CompressFormat.PNG : CompressFormat.JPEG;
+        File parent = output.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        OutputStream outputStream = new FileOutputStream(output);
+        try {
+            if (!bitmap.compress(format, mQuality, outputStream)) {
+                throw new IOException("Could not encode " + output);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private synchronized void checkNotStarted() {
+        if (mExecutor != null) {
+            throw new IllegalStateException("The processor was already started.");
+        }
+    }
+
+    /**
+     * Creates the filter used by one render worker. Filters can not be
+     * shared between workers, because each worker has its own EGL context.
+     */
+    public interface FilterFactory {
+        GPUImageFilter createFilter();
+    }
+
+    public interface Listener {
+        void onImageProcessed(Uri input, File output);
+
+        void onImageFailed(Uri input, Exception e);
+
+        /**
+         * @param stats the statistics of the whole run
+         * @param cancelled true if {@link #cancel()} was called
+         */
+        void onFinished(Stats stats, boolean cancelled);
+    }
+
+    /**
+     * Counts processed images and the time spent per stage.
+     */
+    public static class Stats {
+        private final AtomicLong[] mCounts = new AtomicLong[Stage.values().length];
+        private final AtomicLong[] mBusyNanos = new AtomicLong[Stage.values().length];
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private volatile long mStartNanos;
+        private volatile long mEndNanos;
+
+        private Stats() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = new AtomicLong();
+                mBusyNanos[i] = new AtomicLong();
+            }
+        }
+
+        private void add(final Stage stage, final long nanos) {
+            mCounts[stage.ordinal()].incrementAndGet();
+            mBusyNanos[stage.ordinal()].addAndGet(nanos);
+        }
+
+        /**
+         * @return the number of images which passed the stage
+         */
+        public long getCount(final Stage stage) {
+            return mCounts[stage.ordinal()].get();
+        }
+
+        /**
+         * @return the time all workers of the stage spent working, summed up
+         */
+        public long getBusyNanos(final Stage stage) {
+            return mBusyNanos[stage.ordinal()].get();
+        }
+
+        /**
+         * @return the images per second which passed the stage since the start
+         */
+        public double getThroughput(final Stage stage) {
+            long elapsed = getElapsedNanos();
+            return elapsed > 0 ? getCount(stage) * 1e9 / elapsed : 0;
+        }
+
+        public int getFailedCount() {
+            return mFailed.get();
+        }
+
+        public long getElapsedNanos() {
+            if (mStartNanos == 0) {
+                return 0;
+            }
+            return (mEndNanos != 0 ? mEndNanos : System.nanoTime()) - mStartNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                builder.append(stage).append(": ").append(getCount(stage))
+                        .append(String.format(" (%.1f/s), ", getThroughput(stage)));
+            }
+            return builder.append("failed: ").append(getFailedCount()).toString();
+        }
+    }
+
+    private static class Item {
+        private final Uri mInput;
+        private final File mOutput;
+        private Bitmap mBitmap;
+
+        private Item(final Uri input, final File output) {
+            mInput = input;
+            mOutput = output;
+        }
+    }
+}
@@ -152,4 +152,10 @@ public class GPUImageBilateralFilter extends GPUImageFilter {
         super.onOutputSizeChanged(width, height);
         setTexelSize(width, height);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // 9 samples, 4 pixels to each side.
+        return 4;
+    }
 }
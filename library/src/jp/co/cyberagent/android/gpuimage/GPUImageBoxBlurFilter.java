@@ -110,4 +110,10 @@ public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter
     public float getHorizontalTexelOffsetRatio() {
         return blurSize;
     }
+
+    @Override
+    protected float getSampleReach() {
+        // The farthest samples are 3.5 steps away, between two texels.
+        return 3.5f;
+    }
 }
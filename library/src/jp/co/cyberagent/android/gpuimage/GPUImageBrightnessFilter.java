@@ -17,11 +17,13 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
 /**
  * brightness value ranges from -1.0 to 1.0, with 0.0 as the normal level
  */
-public class GPUImageBrightnessFilter extends GPUImageFilter {
+public class GPUImageBrightnessFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String BRIGHTNESS_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -63,4 +65,24 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
         setFloat(mBrightnessLocation, mBrightness);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform lowp float brightness$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb += vec3(brightness$);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("brightness", mBrightness);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setBrightness(mBrightness);
+    }
 }
@@ -127,4 +127,10 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
         mCenter = center;
         setPoint(mCenterLocation, center);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The bulge is placed relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
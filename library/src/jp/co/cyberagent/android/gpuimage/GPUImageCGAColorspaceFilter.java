@@ -64,4 +64,10 @@ public class GPUImageCGAColorspaceFilter extends GPUImageFilter {
     public GPUImageCGAColorspaceFilter() {
         super(NO_FILTER_VERTEX_SHADER, CGACOLORSPACE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The sample grid is relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -19,7 +19,7 @@ package jp.co.cyberagent.android.gpuimage;
 /**
  * Invert all the colors in the image.
  */
-public class GPUImageColorInvertFilter extends GPUImageFilter {
+public class GPUImageColorInvertFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String COLOR_INVERT_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -35,4 +35,18 @@ public class GPUImageColorInvertFilter extends GPUImageFilter {
     public GPUImageColorInvertFilter() {
         super(NO_FILTER_VERTEX_SHADER, COLOR_INVERT_FRAGMENT_SHADER);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb = 1.0 - color.rgb;\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+    }
 }
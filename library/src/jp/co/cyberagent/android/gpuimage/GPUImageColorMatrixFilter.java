@@ -17,30 +17,35 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
 /**
  * Applies a ColorMatrix to the image.
  */
-public class GPUImageColorMatrixFilter extends GPUImageFilter {
+public class GPUImageColorMatrixFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String COLOR_MATRIX_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
             "uniform sampler2D inputImageTexture;\n" +
             "\n" +
-            "uniform lowp mat4 colorMatrix;\n" +
+            "uniform mediump mat4 colorMatrix;\n" +
+            "uniform mediump vec4 colorOffset;\n" +
             "uniform lowp float intensity;\n" +
             "\n" +
             "void main()\n" +
             "{\n" +
             "    lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
-            "    lowp vec4 outputColor = textureColor * colorMatrix;\n" +
+            "    mediump vec4 outputColor = textureColor * colorMatrix + colorOffset;\n" +
             "    \n" +
             "    gl_FragColor = (intensity * outputColor) + ((1.0 - intensity) * textureColor);\n" +
             "}";
 
     private float mIntensity;
     private float[] mColorMatrix;
+    private float[] mColorOffset = new float[4];
     private int mColorMatrixLocation;
+    private int mColorOffsetLocation;
     private int mIntensityLocation;
 
     public GPUImageColorMatrixFilter() {
@@ -62,6 +67,7 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
     public void onInit() {
         super.onInit();
         mColorMatrixLocation = GLES20.glGetUniformLocation(getProgram(), "colorMatrix");
+        mColorOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "colorOffset");
         mIntensityLocation = GLES20.glGetUniformLocation(getProgram(), "intensity");
     }
 
@@ -70,6 +76,7 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         super.onInitialized();
         setIntensity(mIntensity);
         setColorMatrix(mColorMatrix);
+        setColorOffset(mColorOffset);
     }
 
     public void setIntensity(final float intensity) {
@@ -81,4 +88,39 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
         setUniformMatrix4f(mColorMatrixLocation, colorMatrix);
     }
+
+    /**
+     * Sets the color which is added after the matrix was applied, 0 by default.
+     *
+     * @param colorOffset the RGBA offset
+     */
+    public void setColorOffset(final float[] colorOffset) {
+        mColorOffset = colorOffset;
+        setFloatVec4(mColorOffsetLocation, colorOffset);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setColorMatrix(mIntensity, mColorMatrix, mColorOffset);
+    }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "" +
+                "uniform mediump mat4 colorMatrix$;\n" +
+                "uniform mediump vec4 colorOffset$;\n" +
+                "uniform lowp float intensity$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color = (intensity$ * (color * colorMatrix$ + colorOffset$)) + ((1.0 - intensity$) * color);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("intensity", mIntensity);
+        uniforms.setUniformMatrix4f("colorMatrix", mColorMatrix);
+        uniforms.setFloatVec4("colorOffset", mColorOffset);
+    }
 }
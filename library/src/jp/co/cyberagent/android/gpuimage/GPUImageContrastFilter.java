@@ -17,13 +17,15 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
 /**
  * Changes the contrast of the image.<br>
  * <br>
  * contrast value ranges from 0.0 to 4.0, with 1.0 as the normal level
  */
-public class GPUImageContrastFilter extends GPUImageFilter {
+public class GPUImageContrastFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String CONTRAST_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" + 
             " \n" + 
@@ -65,4 +67,24 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         mContrast = contrast;
         setFloat(mContrastLocation, mContrast);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform lowp float contrast$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb = (color.rgb - vec3(0.5)) * contrast$ + vec3(0.5);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("contrast", mContrast);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setContrast(mContrast);
+    }
 }
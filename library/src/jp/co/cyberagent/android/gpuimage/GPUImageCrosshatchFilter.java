@@ -127,4 +127,10 @@ public class GPUImageCrosshatchFilter extends GPUImageFilter {
         mLineWidth = lineWidth;
         setFloat(mLineWidthLocation, mLineWidth);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The hatching is relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -257,18 +257,23 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "}\n";
 
 
+    private int mRadius = 1;
+
     public GPUImageDilationFilter() {
         this(1);
     }
 
     /**
      * Acceptable values for dilationRadius, which sets the distance in pixels to sample out from the center,
-     * are 1, 2, 3, and 4.
+     * are 1, 2, 3, and 4. Larger radii are drawn as 4, use
+     * {@link GPUImageMorphologyFilter} for any radius.
      *
      * @param radius 1, 2, 3 or 4
      */
     public GPUImageDilationFilter(int radius) {
         this(getVertexShader(radius), getFragmentShader(radius));
+        // Larger radii use the shaders of radius 4.
+        mRadius = Math.min(radius, 4);
     }
 
     private GPUImageDilationFilter(String vertexShader, String fragmentShader) {
@@ -302,4 +307,9 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                 return FRAGMENT_SHADER_4;
         }
     }
+
+    @Override
+    protected float getSampleReach() {
+        return mRadius;
+    }
 }
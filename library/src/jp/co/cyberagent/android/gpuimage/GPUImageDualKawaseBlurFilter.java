@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.PyramidBlur;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Dual Kawase blur: downsamples through a chain of half-size framebuffers and
+ * upsamples back with a tent filter. Every pass takes 5 or 8 samples and each
+ * level has a quarter of the pixels of the previous one, so the cost per
+ * pixel is about the same for any radius.<br>
+ * <br>
+ * See {@link PyramidBlur} for the exact passes, which it implements on the
+ * CPU as a reference.
+ */
+public class GPUImageDualKawaseBlurFilter extends GPUImageFilter {
+    public static final String DOWNSAMPLE_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "uniform highp vec2 texelOffset;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 diagonalCoordinates[4];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    diagonalCoordinates[0] = textureCoordinate - texelOffset;\n" +
+            "    diagonalCoordinates[1] = textureCoordinate + texelOffset;\n" +
+            "    diagonalCoordinates[2] = textureCoordinate + vec2(texelOffset.x, -texelOffset.y);\n" +
+            "    diagonalCoordinates[3] = textureCoordinate - vec2(texelOffset.x, -texelOffset.y);\n" +
+            "}";
+    public static final String DOWNSAMPLE_FRAGMENT_SHADER = "" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 diagonalCoordinates[4];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec4 sum = texture2D(inputImageTexture, textureCoordinate) * 0.5;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0]) * 0.125;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1]) * 0.125;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[2]) * 0.125;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[3]) * 0.125;\n" +
+            "    gl_FragColor = sum;\n" +
+            "}";
+    public static final String UPSAMPLE_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "uniform highp vec2 texelOffset;\n" +
+            "\n" +
+            "varying highp vec2 axisCoordinates[4];\n" +
+            "varying highp vec2 diagonalCoordinates[4];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    highp vec2 coordinate = inputTextureCoordinate.xy;\n" +
+            "    highp vec2 halfOffset = texelOffset * 0.5;\n" +
+            "    axisCoordinates[0] = coordinate - vec2(texelOffset.x, 0.0);\n" +
+            "    axisCoordinates[1] = coordinate + vec2(texelOffset.x, 0.0);\n" +
+            "    axisCoordinates[2] = coordinate - vec2(0.0, texelOffset.y);\n" +
+            "    axisCoordinates[3] = coordinate + vec2(0.0, texelOffset.y);\n" +
+            "    diagonalCoordinates[0] = coordinate - halfOffset;\n" +
+            "    diagonalCoordinates[1] = coordinate + halfOffset;\n" +
+            "    diagonalCoordinates[2] = coordinate + vec2(halfOffset.x, -halfOffset.y);\n" +
+            "    diagonalCoordinates[3] = coordinate - vec2(halfOffset.x, -halfOffset.y);\n" +
+            "}";
+    public static final String UPSAMPLE_FRAGMENT_SHADER = "" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "varying highp vec2 axisCoordinates[4];\n" +
+            "varying highp vec2 diagonalCoordinates[4];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec4 sum = texture2D(inputImageTexture, axisCoordinates[0]);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[1]);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[2]);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[3]);\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0]) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1]) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[2]) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[3]) * 2.0;\n" +
+            "    gl_FragColor = sum / 12.0;\n" +
+            "}";
+
+    /**
+     * Trades the number of levels against the distance between the samples.
+     * Fewer levels need fewer passes, but wide sample distances show as
+     * blocky artifacts.
+     */
+    public enum Quality {
+        LOW(3f), MEDIUM(2f), HIGH(1f);
+
+        private final float mMaxOffset;
+
+        Quality(final float maxOffset) {
+            mMaxOffset = maxOffset;
+        }
+    }
+
+    private final Pass mDownsample = new Pass(DOWNSAMPLE_VERTEX_SHADER, DOWNSAMPLE_FRAGMENT_SHADER);
+    private final Pass mUpsample = new Pass(UPSAMPLE_VERTEX_SHADER, UPSAMPLE_FRAGMENT_SHADER);
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final FrameBufferPool.FrameBuffer[] mLevels =
+            new FrameBufferPool.FrameBuffer[PyramidBlur.MAX_ITERATIONS + 1];
+    private final int[] mLevelWidths = new int[PyramidBlur.MAX_ITERATIONS + 1];
+    private final int[] mLevelHeights = new int[PyramidBlur.MAX_ITERATIONS + 1];
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private float mBlurRadius;
+    private Quality mQuality = Quality.MEDIUM;
+    private volatile PyramidBlur mBlur;
+    private boolean mFlipOutput;
+
+    public GPUImageDualKawaseBlurFilter() {
+        this(20f);
+    }
+
+    /**
+     * @param blurRadius see {@link #setBlurRadius(float)}
+     */
+    public GPUImageDualKawaseBlurFilter(final float blurRadius) {
+        super();
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        // Maps the texture upright onto the cube, so the levels keep the orientation.
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+        mBlurRadius = blurRadius;
+        updateBlur();
+    }
+
+    /**
+     * Sets how far the blur reaches, about three standard deviations of the
+     * Gaussian it approximates.
+     *
+     * @param blurRadius the radius in pixels, from 0.0 on up, default 20.0
+     */
+    public void setBlurRadius(final float blurRadius) {
+        mBlurRadius = blurRadius;
+        updateBlur();
+    }
+
+    public float getBlurRadius() {
+        return mBlurRadius;
+    }
+
+    /**
+     * @param quality the quality, default {@link Quality#MEDIUM}
+     */
+    public void setQuality(final Quality quality) {
+        mQuality = quality;
+        updateBlur();
+    }
+
+    public Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return the passes which are drawn for the current radius and quality
+     */
+    public PyramidBlur getPyramidBlur() {
+        return mBlur;
+    }
+
+    private void updateBlur() {
+        mBlur = PyramidBlur.forSigma(mBlurRadius / 3f, mQuality.mMaxOffset);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mDownsample.init();
+        mUpsample.init();
+    }
+
+    @Override
+    public void onDestroy() {
+        mDownsample.destroy();
+        mUpsample.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        PyramidBlur blur = mBlur;
+        int iterations = blur.getIterations();
+        if (!isInitialized() || iterations == 0 || mOutputWidth <= 0 || mOutputHeight <= 0) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        runPendingOnDrawTasks();
+        float offset = blur.getOffset();
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        FrameBufferPool pool = FrameBufferPool.get();
+
+        // Down to the smallest level, only the first pass reads the input.
+        mLevelWidths[0] = mOutputWidth;
+        mLevelHeights[0] = mOutputHeight;
+        int previousTexture = textureId;
+        FloatBuffer previousTextureBuffer = textureBuffer;
+        for (int i = 1; i <= iterations; i++) {
+            mLevelWidths[i] = PyramidBlur.getLevelSize(mLevelWidths[i - 1]);
+            mLevelHeights[i] = PyramidBlur.getLevelSize(mLevelHeights[i - 1]);
+            mLevels[i] = pool.obtain(mLevelWidths[i], mLevelHeights[i]);
+            bindLevel(mLevels[i]);
+            mDownsample.setTexelOffset(offset / mLevelWidths[i - 1],
+                    offset / mLevelHeights[i - 1]);
+            mDownsample.onDraw(previousTexture, mGLCubeBuffer, previousTextureBuffer);
+            previousTexture = mLevels[i].getTextureId();
+            previousTextureBuffer = mGLTextureBuffer;
+        }
+
+        // Up again, each pass replaces the level it renders.
+        for (int i = iterations; i > 1; i--) {
+            pool.release(mLevels[i - 1]);
+            FrameBufferPool.FrameBuffer output = pool.obtain(mLevelWidths[i - 1],
+                    mLevelHeights[i - 1]);
+            bindLevel(output);
+            mUpsample.setTexelOffset(offset / mLevelWidths[i], offset / mLevelHeights[i]);
+            mUpsample.onDraw(mLevels[i].getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+            pool.release(mLevels[i]);
+            mLevels[i] = null;
+            mLevels[i - 1] = output;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                mSavedViewport[2], mSavedViewport[3]);
+        mUpsample.setOutputFlipped(mFlipOutput);
+        mUpsample.setTexelOffset(offset / mLevelWidths[1], offset / mLevelHeights[1]);
+        mUpsample.onDraw(mLevels[1].getTextureId(), cubeBuffer, mGLTextureBuffer);
+        mUpsample.setOutputFlipped(false);
+        pool.release(mLevels[1]);
+        mLevels[1] = null;
+    }
+
+    private static void bindLevel(final FrameBufferPool.FrameBuffer level) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, level.getFrameBufferId());
+        GLES20.glViewport(0, 0, level.getWidth(), level.getHeight());
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return false;
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        super.setOutputFlipped(flipped);
+        mFlipOutput = flipped;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // The levels are aligned to the origin of the image, so a tile would
+        // be blurred differently than the same area of the whole image.
+        return mBlur.getIterations() == 0 ? 0 : SAMPLING_RADIUS_UNBOUNDED;
+    }
+
+    /**
+     * A single down- or upsampling pass.
+     */
+    private static class Pass extends GPUImageFilter {
+        private final float[] mTexelOffset = new float[2];
+        private int mTexelOffsetLocation;
+
+        Pass(final String vertexShader, final String fragmentShader) {
+            super(vertexShader, fragmentShader);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mTexelOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "texelOffset");
+        }
+
+        void setTexelOffset(final float x, final float y) {
+            mTexelOffset[0] = x;
+            mTexelOffset[1] = y;
+            setFloatVec2(mTexelOffsetLocation, mTexelOffset);
+        }
+    }
+}
@@ -21,7 +21,7 @@ import android.opengl.GLES20;
 /**
  * exposure: The adjusted exposure (-10.0 - 10.0, with 0.0 as the default)
  */
-public class GPUImageExposureFilter extends GPUImageFilter {
+public class GPUImageExposureFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String EXPOSURE_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -63,4 +63,19 @@ public class GPUImageExposureFilter extends GPUImageFilter {
         mExposure = exposure;
         setFloat(mExposureLocation, mExposure);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform highp float exposure$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb *= pow(2.0, exposure$);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("exposure", mExposure);
+    }
 }
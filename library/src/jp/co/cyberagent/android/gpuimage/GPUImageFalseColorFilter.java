@@ -18,7 +18,7 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
-public class GPUImageFalseColorFilter extends GPUImageFilter {
+public class GPUImageFalseColorFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String FALSECOLOR_FRAGMENT_SHADER = "" +
             "precision lowp float;\n" +
             "\n" +
@@ -81,4 +81,24 @@ public class GPUImageFalseColorFilter extends GPUImageFilter {
         mSecondColor = secondColor;
         setFloatVec3(mSecondColorLocation, secondColor);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "" +
+                "uniform lowp vec3 firstColor$;\n" +
+                "uniform lowp vec3 secondColor$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "" +
+                "        lowp float luminance = dot(color.rgb, vec3(0.2125, 0.7154, 0.0721));\n" +
+                "        color.rgb = mix(firstColor$, secondColor$, luminance);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloatVec3("firstColor", mFirstColor);
+        uniforms.setFloatVec3("secondColor", mSecondColor);
+    }
 }
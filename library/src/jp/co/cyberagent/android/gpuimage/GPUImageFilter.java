@@ -22,10 +22,17 @@ import android.graphics.PointF;
 import android.opengl.GLES20;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.LinkedList;
 
 public class GPUImageFilter {
+    /**
+     * Returned by {@link #getSamplingRadius()} if the output depends on the
+     * position in the whole image, e.g. for distortions around a center.
+     */
+    public static final int SAMPLING_RADIUS_UNBOUNDED = -1;
     public static final String NO_FILTER_VERTEX_SHADER = "" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -48,9 +55,20 @@ public class GPUImageFilter {
             "}";
 
     private final LinkedList<Runnable> mRunOnDraw;
-    private final String mVertexShader;
-    private final String mFragmentShader;
+    private final UniformTable mUniforms = new UniformTable();
+    private String mVertexShader;
+    private String mFragmentShader;
     protected int mGLProgId;
+    private UniformSchema mUniformSchema;
+    private int mNV21ChromaTexture = OpenGlUtils.NO_TEXTURE;
+    private float[] mNV21ColorMatrix;
+    private float[] mNV21Offset;
+    private boolean mNV21Program;
+    private int mGLUniformNV21ChromaTexture;
+    private int mGLUniformNV21ColorMatrix;
+    private int mGLUniformNV21Offset;
+    private boolean mFlipOutput;
+    private FloatBuffer mFlippedCubeBuffer;
     protected int mGLAttribPosition;
     protected int mGLUniformTexture;
     protected int mGLAttribTextureCoordinate;
@@ -75,11 +93,20 @@ public class GPUImageFilter {
     }
 
     public void onInit() {
-        mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
+        mNV21Program = mNV21ChromaTexture != OpenGlUtils.NO_TEXTURE
+                && NV21Input.canRewrite(mFragmentShader);
+        String fragmentShader = mNV21Program ? NV21Input.rewrite(mFragmentShader) : mFragmentShader;
+        mGLProgId = ProgramCache.get().obtain(mVertexShader, fragmentShader);
+        mUniformSchema = ProgramCache.get().getUniformSchema(mGLProgId);
         mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
         mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
         mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
                 "inputTextureCoordinate");
+        if (mNV21Program) {
+            mGLUniformNV21ChromaTexture = getUniformLocation(NV21Input.CHROMA_TEXTURE_UNIFORM);
+            mGLUniformNV21ColorMatrix = getUniformLocation(NV21Input.COLOR_MATRIX_UNIFORM);
+            mGLUniformNV21Offset = getUniformLocation(NV21Input.OFFSET_UNIFORM);
+        }
         mIsInitialized = true;
     }
 
@@ -87,8 +114,13 @@ public class GPUImageFilter {
     }
 
     public final void destroy() {
+        if (!mIsInitialized) {
+            // The id may already be leased to another filter.
+            return;
+        }
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        ProgramCache.get().release(mGLProgId);
+        mGLProgId = 0;
         onDestroy();
     }
 
@@ -102,14 +134,23 @@ public class GPUImageFilter {
 
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
+        if (mIsInitialized && mNV21Program != (mNV21ChromaTexture != OpenGlUtils.NO_TEXTURE)) {
+            // The input format changed, which needs a differently sampling program.
+            int width = mOutputWidth;
+            int height = mOutputHeight;
+            destroy();
+            init();
+            onOutputSizeChanged(width, height);
+        }
         GLES20.glUseProgram(mGLProgId);
         runPendingOnDrawTasks();
         if (!mIsInitialized) {
             return;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
+        FloatBuffer vertices = mFlipOutput ? flipVertically(cubeBuffer) : cubeBuffer;
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, vertices);
         GLES20.glEnableVertexAttribArray(mGLAttribPosition);
         textureBuffer.position(0);
         GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
@@ -120,6 +161,14 @@ public class GPUImageFilter {
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
             GLES20.glUniform1i(mGLUniformTexture, 0);
         }
+        if (mNV21Program) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE4);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mNV21ChromaTexture);
+            GLES20.glUniform1i(mGLUniformNV21ChromaTexture, 4);
+            GLES20.glUniformMatrix3fv(mGLUniformNV21ColorMatrix, 1, false, mNV21ColorMatrix, 0);
+            GLES20.glUniform3fv(mGLUniformNV21Offset, 1, mNV21Offset, 0);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
         onDrawArraysPre();
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         GLES20.glDisableVertexAttribArray(mGLAttribPosition);
@@ -133,6 +182,104 @@ public class GPUImageFilter {
         while (!mRunOnDraw.isEmpty()) {
             mRunOnDraw.removeFirst().run();
         }
+        // Uniform setters are coalesced in the table and uploaded after the queued tasks.
+        mUniforms.flush();
+    }
+
+    boolean hasPendingOnDrawTasks() {
+        synchronized (mRunOnDraw) {
+            if (!mRunOnDraw.isEmpty()) {
+                return true;
+            }
+        }
+        return mUniforms.isDirty();
+    }
+
+    /**
+     * Runs the pending tasks of a filter which is not drawn itself, e.g. because
+     * it was merged into another pass. Leaves its program in use.
+     */
+    void runPendingOnDrawTasksOnOwnProgram() {
+        if (hasPendingOnDrawTasks()) {
+            GLES20.glUseProgram(mGLProgId);
+            runPendingOnDrawTasks();
+        }
+    }
+
+    /**
+     * Replaces the shaders, e.g. by ones generated for other parameters. They
+     * are used from the next {@link #init()}, so an initialized filter has to
+     * be destroyed and initialized again on the OpenGL thread.
+     */
+    void setShaders(final String vertexShader, final String fragmentShader) {
+        mVertexShader = vertexShader;
+        mFragmentShader = fragmentShader;
+    }
+
+    /**
+     * @return true if the filter can read a NV21 frame, see {@link NV21Input}
+     */
+    boolean acceptsNV21Input() {
+        return NV21Input.canRewrite(mFragmentShader);
+    }
+
+    /**
+     * Sets whether the texture drawn next is the luma plane of a NV21 frame.
+     * The program is rebuilt on the next draw if this changed.
+     *
+     * @param chromaTexture the VU plane, or {@link OpenGlUtils#NO_TEXTURE} for
+     *                      a RGBA input
+     * @param colorMatrix the column-major YUV to RGB matrix
+     * @param offset subtracted from YUV before the matrix is applied
+     */
+    void setNV21Input(final int chromaTexture, final float[] colorMatrix, final float[] offset) {
+        mNV21ChromaTexture = chromaTexture;
+        mNV21ColorMatrix = colorMatrix;
+        mNV21Offset = offset;
+    }
+
+    /**
+     * @return true if {@link #setOutputFlipped(boolean)} mirrors the output exactly
+     */
+    boolean canFlipOutput() {
+        return true;
+    }
+
+    /**
+     * Sets whether the output is drawn upside down, so that it can be read
+     * back with glReadPixels in the row order of a Bitmap.
+     *
+     * @param flipped true to mirror the output vertically
+     */
+    void setOutputFlipped(final boolean flipped) {
+        mFlipOutput = flipped;
+    }
+
+    private FloatBuffer flipVertically(final FloatBuffer cubeBuffer) {
+        if (mFlippedCubeBuffer == null || mFlippedCubeBuffer.capacity() < cubeBuffer.capacity()) {
+            mFlippedCubeBuffer = ByteBuffer.allocateDirect(cubeBuffer.capacity() * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        mFlippedCubeBuffer.clear();
+        for (int i = 0; i < cubeBuffer.limit(); i++) {
+            float value = cubeBuffer.get(i);
+            mFlippedCubeBuffer.put(i % 2 == 1 ? -value : value);
+        }
+        mFlippedCubeBuffer.flip();
+        return mFlippedCubeBuffer;
+    }
+
+    /**
+     * How far around an output pixel the filter reads its input, in pixels.
+     * Tiled rendering uses it to size the overlap between tiles. Filters which
+     * only read the pixel at the same position return 0, the default.
+     *
+     * @return the radius, or {@link #SAMPLING_RADIUS_UNBOUNDED} if the output
+     *         depends on the position in the whole image
+     */
+    public int getSamplingRadius() {
+        return 0;
     }
 
     public boolean isInitialized() {
@@ -151,6 +298,25 @@ public class GPUImageFilter {
         return mGLProgId;
     }
 
+    /**
+     * @return the active uniforms of the program, or null if not initialized
+     */
+    public UniformSchema getUniformSchema() {
+        return mUniformSchema;
+    }
+
+    /**
+     * Looks up a uniform location without calling OpenGL, so it can be used
+     * from any thread once the filter is initialized.
+     *
+     * @param name the uniform name, without array subscript
+     * @return the location, or -1 if unknown
+     */
+    protected int getUniformLocation(final String name) {
+        UniformSchema schema = mUniformSchema;
+        return schema != null ? schema.getLocation(name) : -1;
+    }
+
     public int getAttribPosition() {
         return mGLAttribPosition;
     }
@@ -164,90 +330,39 @@ public class GPUImageFilter {
     }
 
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        mUniforms.setInt(location, intValue);
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        mUniforms.setFloat(location, floatValue);
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_VEC2, arrayValue);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_VEC3, arrayValue);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_VEC4, arrayValue);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_FLOAT_ARRAY, arrayValue);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        mUniforms.setFloat2(location, point.x, point.y);
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_MAT3, matrix);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniforms.setFloats(location, UniformTable.TYPE_MAT4, matrix);
     }
 
     protected void runOnDraw(final Runnable runnable) {
@@ -37,8 +37,13 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     protected List<GPUImageFilter> mFilters;
     protected List<GPUImageFilter> mMergedFilters;
-    private int[] mFrameBuffers;
-    private int[] mFrameBufferTextures;
+    private List<GPUImageFilter> mDerivedFilters;
+    private boolean mFoldColorTransforms = true;
+    private boolean mFusePointOperations = true;
+    private int mNV21ChromaTexture = OpenGlUtils.NO_TEXTURE;
+    private float[] mNV21ColorMatrix;
+    private float[] mNV21Offset;
+    private boolean mFlipOutput;
 
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
@@ -99,6 +104,11 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         for (GPUImageFilter filter : mFilters) {
             filter.init();
         }
+        if (mDerivedFilters != null) {
+            for (GPUImageFilter filter : mDerivedFilters) {
+                filter.init();
+            }
+        }
     }
 
     /*
@@ -107,22 +117,15 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      */
     @Override
     public void onDestroy() {
-        destroyFramebuffers();
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
-        super.onDestroy();
-    }
-
-    private void destroyFramebuffers() {
-        if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
-            mFrameBufferTextures = null;
-        }
-        if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
-            mFrameBuffers = null;
+        if (mDerivedFilters != null) {
+            for (GPUImageFilter filter : mDerivedFilters) {
+                filter.destroy();
+            }
         }
+        super.onDestroy();
     }
 
     /*
@@ -134,41 +137,16 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        if (mFrameBuffers != null) {
-            destroyFramebuffers();
-        }
+        // Free targets of the previous size are left to the pool, which
+        // deletes them once they are the least recently used.
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
-
-        if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
-            mFrameBuffers = new int[size - 1];
-            mFrameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (mDerivedFilters != null) {
+            for (GPUImageFilter filter : mDerivedFilters) {
+                filter.onOutputSizeChanged(width, height);
             }
         }
     }
@@ -183,20 +161,28 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0) {
             return;
         }
         if (mMergedFilters != null) {
+            FrameBufferPool pool = FrameBufferPool.get();
+            FrameBufferPool.FrameBuffer input = null;
             int size = mMergedFilters.size();
             int previousTexture = textureId;
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
                 boolean isNotLast = i < size - 1;
+                FrameBufferPool.FrameBuffer output = null;
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    output = pool.obtain(mOutputWidth, mOutputHeight);
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, output.getFrameBufferId());
                     GLES20.glClearColor(0, 0, 0, 0);
                 }
 
+                // Only the first pass reads the input frame and only the last one the output.
+                filter.setNV21Input(i == 0 ? mNV21ChromaTexture : OpenGlUtils.NO_TEXTURE,
+                        mNV21ColorMatrix, mNV21Offset);
+                filter.setOutputFlipped(mFlipOutput && !isNotLast);
                 if (i == 0) {
                     filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
                 } else if (i == size - 1) {
@@ -205,14 +191,55 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                     filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
                 }
 
+                // The input of this pass is dead now, so the next pass may render into it.
+                pool.release(input);
+                input = output;
                 if (isNotLast) {
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                    previousTexture = mFrameBufferTextures[i];
+                    previousTexture = output.getTextureId();
                 }
             }
         }
      }
 
+    @Override
+    public int getSamplingRadius() {
+        int radius = 0;
+        for (GPUImageFilter filter : mFilters) {
+            int filterRadius = filter.getSamplingRadius();
+            if (filterRadius == SAMPLING_RADIUS_UNBOUNDED) {
+                return SAMPLING_RADIUS_UNBOUNDED;
+            }
+            // Each pass reads the output of the previous one, so the radii add up.
+            radius += filterRadius;
+        }
+        return radius;
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return mMergedFilters != null && !mMergedFilters.isEmpty()
+                && mMergedFilters.get(0).acceptsNV21Input();
+    }
+
+    @Override
+    void setNV21Input(final int chromaTexture, final float[] colorMatrix, final float[] offset) {
+        mNV21ChromaTexture = chromaTexture;
+        mNV21ColorMatrix = colorMatrix;
+        mNV21Offset = offset;
+    }
+
+    @Override
+    boolean canFlipOutput() {
+        return mMergedFilters == null || mMergedFilters.isEmpty()
+                || mMergedFilters.get(mMergedFilters.size() - 1).canFlipOutput();
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        mFlipOutput = flipped;
+    }
+
     /**
      * Gets the filters.
      *
@@ -226,6 +253,28 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         return mMergedFilters;
     }
 
+    /**
+     * Enables or disables folding runs of {@link GPUImageAffineColorOperation}
+     * filters into one color matrix pass. Enabled by default.
+     *
+     * @param enabled whether affine color filters should be folded
+     */
+    public void setColorTransformFoldingEnabled(final boolean enabled) {
+        mFoldColorTransforms = enabled;
+        updateMergedFilters();
+    }
+
+    /**
+     * Enables or disables fusing runs of {@link GPUImagePointOperation} filters
+     * into one pass. Enabled by default.
+     *
+     * @param enabled whether point operations should be fused
+     */
+    public void setPointOperationFusionEnabled(final boolean enabled) {
+        mFusePointOperations = enabled;
+        updateMergedFilters();
+    }
+
     public void updateMergedFilters() {
         if (mFilters == null) {
             return;
@@ -244,10 +293,137 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                 filters = ((GPUImageFilterGroup) filter).getMergedFilters();
                 if (filters == null || filters.isEmpty())
                     continue;
-                mMergedFilters.addAll(filters);
+                for (GPUImageFilter merged : filters) {
+                    // Combine again across group boundaries.
+                    addOriginalFilters(merged, mMergedFilters);
+                }
                 continue;
             }
             mMergedFilters.add(filter);
         }
+
+        List<GPUImageFilter> previousDerivedFilters = mDerivedFilters;
+        mDerivedFilters = null;
+        if (mFoldColorTransforms) {
+            combineRuns(true, previousDerivedFilters);
+        }
+        if (mFusePointOperations) {
+            combineRuns(false, previousDerivedFilters);
+        }
+
+        if (previousDerivedFilters != null) {
+            for (final GPUImageFilter filter : previousDerivedFilters) {
+                runOnDraw(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (filter.isInitialized()) {
+                            filter.destroy();
+                        }
+                    }
+                });
+            }
+        }
+        if (mDerivedFilters != null && isInitialized()) {
+            for (final GPUImageFilter filter : mDerivedFilters) {
+                runOnDraw(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!filter.isInitialized()) {
+                            filter.init();
+                            filter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the filters a folded or fused filter was created from.
+     *
+     * @return the combined filters, or null if the filter is an original one
+     */
+    private static List<GPUImageFilter> getCombinedFilters(final GPUImageFilter filter) {
+        if (filter instanceof GPUImageFoldedColorMatrixFilter) {
+            return ((GPUImageFoldedColorMatrixFilter) filter).getFilters();
+        }
+        if (filter instanceof GPUImageFusedPointOperationFilter) {
+            return ((GPUImageFusedPointOperationFilter) filter).getFilters();
+        }
+        return null;
+    }
+
+    private static void addOriginalFilters(final GPUImageFilter filter,
+                                           final List<GPUImageFilter> out) {
+        List<GPUImageFilter> combined = getCombinedFilters(filter);
+        if (combined == null) {
+            out.add(filter);
+            return;
+        }
+        for (GPUImageFilter member : combined) {
+            addOriginalFilters(member, out);
+        }
+    }
+
+    /**
+     * Replaces each run of at least two combinable merged filters by a single
+     * filter, reusing an equal filter of the previous merge if possible.
+     *
+     * @param fold true to fold affine color filters, false to fuse point operations
+     * @param previousDerivedFilters the combined filters of the previous merge,
+     *                               reused ones are removed from it
+     */
+    private void combineRuns(final boolean fold, final List<GPUImageFilter> previousDerivedFilters) {
+        List<GPUImageFilter> combined = new ArrayList<GPUImageFilter>();
+        int i = 0;
+        while (i < mMergedFilters.size()) {
+            int end = i;
+            while (end < mMergedFilters.size() && canCombine(fold, mMergedFilters.get(end))) {
+                end++;
+            }
+            if (end - i < 2) {
+                combined.add(mMergedFilters.get(i));
+                i++;
+                continue;
+            }
+            List<GPUImageFilter> run = mMergedFilters.subList(i, end);
+            GPUImageFilter filter = findDerivedFilter(previousDerivedFilters, fold, run);
+            if (filter == null) {
+                filter = fold
+                        ? new GPUImageFoldedColorMatrixFilter(run)
+                        : new GPUImageFusedPointOperationFilter(run);
+            } else {
+                previousDerivedFilters.remove(filter);
+            }
+            if (mDerivedFilters == null) {
+                mDerivedFilters = new ArrayList<GPUImageFilter>();
+            }
+            mDerivedFilters.add(filter);
+            combined.add(filter);
+            i = end;
+        }
+        mMergedFilters.clear();
+        mMergedFilters.addAll(combined);
+    }
+
+    private static boolean canCombine(final boolean fold, final GPUImageFilter filter) {
+        return fold
+                ? GPUImageFoldedColorMatrixFilter.canFold(filter)
+                : GPUImageFusedPointOperationFilter.canFuse(filter);
+    }
+
+    private static GPUImageFilter findDerivedFilter(final List<GPUImageFilter> derivedFilters,
+                                                    final boolean fold,
+                                                    final List<GPUImageFilter> run) {
+        if (derivedFilters == null) {
+            return null;
+        }
+        for (GPUImageFilter filter : derivedFilters) {
+            boolean folded = filter instanceof GPUImageFoldedColorMatrixFilter;
+            if (folded == fold && getCombinedFilters(filter).equals(run)) {
+                return filter;
+            }
+        }
+        return null;
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies several {@link GPUImageAffineColorOperation} filters as one color
+ * matrix and offset. Created by {@link GPUImageFilterGroup} for runs of affine
+ * color filters; the original filters stay initialized so that their setters
+ * keep working, but they are never drawn themselves.<br>
+ * <br>
+ * Unlike separate passes the intermediate colors are not clamped to [0, 1].
+ */
+public class GPUImageFoldedColorMatrixFilter extends GPUImageColorMatrixFilter {
+    private final List<GPUImageFilter> mFilters;
+    private final ColorTransform mTransform = new ColorTransform();
+    private final ColorTransform mStageTransform = new ColorTransform();
+    private final float[] mMatrix = new float[16];
+    private final float[] mOffset = new float[4];
+    private final float[] mUploadedMatrix = new float[16];
+    private final float[] mUploadedOffset = new float[4];
+
+    public GPUImageFoldedColorMatrixFilter(final List<GPUImageFilter> filters) {
+        mFilters = new ArrayList<GPUImageFilter>(filters);
+        // Differs from any transform, so the first update always uploads.
+        Arrays.fill(mUploadedMatrix, Float.NaN);
+        Arrays.fill(mUploadedOffset, Float.NaN);
+    }
+
+    /**
+     * @return true if the filter can be folded with other affine color filters
+     */
+    public static boolean canFold(final GPUImageFilter filter) {
+        return filter instanceof GPUImageAffineColorOperation;
+    }
+
+    /**
+     * @return the folded filters, in drawing order
+     */
+    public List<GPUImageFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Composes the transforms of the folded filters and updates the color
+     * matrix and offset if they changed.
+     */
+    private void updateColorTransform() {
+        mTransform.reset();
+        for (GPUImageFilter filter : mFilters) {
+            ((GPUImageAffineColorOperation) filter).getColorTransform(mStageTransform);
+            mTransform.postConcat(mStageTransform);
+        }
+        mTransform.getMatrix(mMatrix);
+        mTransform.getOffset(mOffset);
+        if (!Arrays.equals(mMatrix, mUploadedMatrix)) {
+            System.arraycopy(mMatrix, 0, mUploadedMatrix, 0, 16);
+            setColorMatrix(mUploadedMatrix);
+        }
+        if (!Arrays.equals(mOffset, mUploadedOffset)) {
+            System.arraycopy(mOffset, 0, mUploadedOffset, 0, 4);
+            setColorOffset(mUploadedOffset);
+        }
+    }
+
+    @Override
+    void runPendingOnDrawTasksOnOwnProgram() {
+        super.runPendingOnDrawTasksOnOwnProgram();
+        for (GPUImageFilter filter : mFilters) {
+            filter.runPendingOnDrawTasksOnOwnProgram();
+        }
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        // Parameter changes are queued on the original filters against their own programs.
+        for (GPUImageFilter filter : mFilters) {
+            filter.runPendingOnDrawTasksOnOwnProgram();
+        }
+        updateColorTransform();
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        updateColorTransform();
+        super.onDrawPointOperation(uniforms);
+    }
+}
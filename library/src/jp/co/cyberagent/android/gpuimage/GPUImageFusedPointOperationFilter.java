@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the color math of several {@link GPUImagePointOperation} filters in a
+ * single pass. Created by {@link GPUImageFilterGroup} for runs of point
+ * operations; the original filters stay initialized so that their setters keep
+ * working, but they are never drawn themselves.
+ */
+public class GPUImageFusedPointOperationFilter extends GPUImageFilter {
+    private final List<GPUImageFilter> mFilters;
+    private final List<Uniforms> mUniforms;
+
+    public GPUImageFusedPointOperationFilter(final List<GPUImageFilter> filters) {
+        super(NO_FILTER_VERTEX_SHADER, buildFragmentShader(filters));
+        mFilters = new ArrayList<GPUImageFilter>(filters);
+        mUniforms = new ArrayList<Uniforms>(filters.size());
+        for (int i = 0; i < filters.size(); i++) {
+            mUniforms.add(new Uniforms(getSuffix(i)));
+        }
+    }
+
+    /**
+     * @return true if the filter can be fused with other point operations
+     */
+    public static boolean canFuse(final GPUImageFilter filter) {
+        return filter instanceof GPUImagePointOperation;
+    }
+
+    private static String getSuffix(final int index) {
+        return "_" + index;
+    }
+
+    private static String buildFragmentShader(final List<GPUImageFilter> filters) {
+        StringBuilder declarations = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < filters.size(); i++) {
+            GPUImagePointOperation operation = (GPUImagePointOperation) filters.get(i);
+            String suffix = getSuffix(i);
+            declarations.append(operation.getPointOperationDeclarations().replace("$", suffix));
+            if (i > 0) {
+                // Every separate pass wrote to a RGBA8 framebuffer which clamped the result.
+                body.append("    color = clamp(color, 0.0, 1.0);\n");
+            }
+            body.append("    {\n");
+            body.append(operation.getPointOperation().replace("$", suffix));
+            body.append("    }\n");
+        }
+        return "" +
+                "precision highp float;\n" +
+                "varying highp vec2 textureCoordinate;\n" +
+                "\n" +
+                "uniform sampler2D inputImageTexture;\n" +
+                declarations +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    highp vec4 color = texture2D(inputImageTexture, textureCoordinate);\n" +
+                body +
+                "    gl_FragColor = color;\n" +
+                "}";
+    }
+
+    /**
+     * @return the fused filters, in drawing order
+     */
+    public List<GPUImageFilter> getFilters() {
+        return mFilters;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (Uniforms uniforms : mUniforms) {
+            uniforms.setProgram(getProgram());
+        }
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        // Parameter changes are queued on the original filters against their own programs.
+        for (GPUImageFilter filter : mFilters) {
+            filter.runPendingOnDrawTasksOnOwnProgram();
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        for (int i = 0; i < mFilters.size(); i++) {
+            ((GPUImagePointOperation) mFilters.get(i)).onDrawPointOperation(mUniforms.get(i));
+        }
+    }
+
+    /**
+     * The uniforms of one fused filter. Locations are resolved on first use.
+     */
+    public static class Uniforms {
+        private final String mSuffix;
+        private final Map<String, Integer> mLocations = new HashMap<String, Integer>();
+        private int mProgram;
+
+        Uniforms(final String suffix) {
+            mSuffix = suffix;
+        }
+
+        void setProgram(final int program) {
+            mProgram = program;
+            mLocations.clear();
+        }
+
+        private int getLocation(final String name) {
+            Integer location = mLocations.get(name);
+            if (location == null) {
+                location = GLES20.glGetUniformLocation(mProgram, name + mSuffix);
+                mLocations.put(name, location);
+            }
+            return location;
+        }
+
+        public void setFloat(final String name, final float value) {
+            GLES20.glUniform1f(getLocation(name), value);
+        }
+
+        public void setFloatVec3(final String name, final float[] value) {
+            GLES20.glUniform3fv(getLocation(name), 1, value, 0);
+        }
+
+        public void setFloatVec4(final String name, final float[] value) {
+            GLES20.glUniform4fv(getLocation(name), 1, value, 0);
+        }
+
+        public void setUniformMatrix4f(final String name, final float[] matrix) {
+            GLES20.glUniformMatrix4fv(getLocation(name), 1, false, matrix, 0);
+        }
+    }
+}
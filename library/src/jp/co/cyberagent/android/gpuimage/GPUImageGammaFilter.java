@@ -21,7 +21,7 @@ import android.opengl.GLES20;
 /**
  * gamma value ranges from 0.0 to 3.0, with 1.0 as the normal level
  */
-public class GPUImageGammaFilter extends GPUImageFilter {
+public class GPUImageGammaFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String GAMMA_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -63,4 +63,19 @@ public class GPUImageGammaFilter extends GPUImageFilter {
         mGamma = gamma;
         setFloat(mGammaLocation, mGamma);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform lowp float gamma$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb = pow(color.rgb, vec3(gamma$));\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("gamma", mGamma);
+    }
 }
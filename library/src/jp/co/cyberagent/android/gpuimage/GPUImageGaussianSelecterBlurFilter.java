@@ -70,7 +70,7 @@ public class GPUImageGaussianSelecterBlurFilter extends GPUImageTwoPassTextureSa
                     "	int multiplier = 0;\n" +
                     "	vec2 blurStep;\n" +
 
-                    "   vec2 singleStepOffset = vec2(texelHeightOffset, texelWidthOffset);\n" +
+                    "   vec2 singleStepOffset = vec2(texelWidthOffset, texelHeightOffset);\n" +
                     "    \n" +
                     "	for (int i = 0; i < GAUSSIAN_SAMPLES; i++)\n" +
                     "   {\n" +
@@ -201,4 +201,10 @@ public class GPUImageGaussianSelecterBlurFilter extends GPUImageTwoPassTextureSa
         mCenter = center;
         updateUinformValue("blurCenter", mCenter);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The blur is excluded from a circle around a center in the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
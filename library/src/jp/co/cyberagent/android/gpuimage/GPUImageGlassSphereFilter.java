@@ -124,4 +124,10 @@ public class GPUImageGlassSphereFilter extends GPUImageFilter {
         mRadius = radius;
         setFloat(mRadiusLocation, radius);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The sphere is placed relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
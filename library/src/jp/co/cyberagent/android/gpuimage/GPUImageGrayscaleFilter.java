@@ -16,10 +16,13 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
+
 /**
  * Applies a grayscale effect to the image.
  */
-public class GPUImageGrayscaleFilter extends GPUImageFilter {
+public class GPUImageGrayscaleFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String GRAYSCALE_FRAGMENT_SHADER = "" +
             "precision highp float;\n" +
             "\n" +
@@ -40,4 +43,23 @@ public class GPUImageGrayscaleFilter extends GPUImageFilter {
     public GPUImageGrayscaleFilter() {
         super(NO_FILTER_VERTEX_SHADER, GRAYSCALE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.rgb = vec3(dot(color.rgb, vec3(0.2125, 0.7154, 0.0721)));\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setSaturation(0.0f);
+    }
 }
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import jp.co.cyberagent.android.gpuimage.util.GuidedFilter;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Edge-preserving smoothing with a guided filter which guides every color
+ * channel by itself, see {@link GuidedFilter} for the exact math. Unlike
+ * {@link GPUImageBilateralFilter} it only takes box means, which are read
+ * from summed-area tables, so any radius costs the same.<br>
+ * <br>
+ * The coefficients are smooth, so they can be computed at a fraction of the
+ * resolution with {@link #setSubsample(int)} and are upsampled bilinearly
+ * when they are applied to the full resolution image. This keeps large radii
+ * cheap, e.g. for skin smoothing.<br>
+ * <br>
+ * The tables are computed on the GPU on OpenGL ES 3.0. Older contexts read
+ * the image back and compute the coefficients with {@link GuidedFilter},
+ * which is only fast enough for still images.
+ */
+public class GPUImageGuidedFilter extends GPUImageFilter {
+    /** Larger squares could overflow the 32 bit sums of squared bytes. */
+    public static final int MAX_TABLE_RADIUS = 128;
+
+    public static final String COEFFICIENT_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "\n" +
+            "uniform highp usampler2D inputImageTexture;\n" +
+            "uniform highp usampler2D squaresTexture;\n" +
+            "uniform int radius;\n" +
+            "uniform float epsilon;\n" +
+            "uniform float quantization;\n" +
+            "uniform bool offsets;\n" +
+            "\n" +
+            "out highp uvec4 fragColor;\n" +
+            "\n" +
+            GPUImageSummedAreaTable.BOX_SUM_FUNCTIONS +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    ivec2 size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 p = ivec2(gl_FragCoord.xy);\n" +
+            "    ivec2 lowerLeft = max(p - radius, ivec2(0));\n" +
+            "    ivec2 upperRight = min(p + radius, size - 1);\n" +
+            "    ivec2 extent = upperRight - lowerLeft + 1;\n" +
+            "    float area = float(extent.x * extent.y);\n" +
+            "    vec3 mean = vec3(boxSum(inputImageTexture, lowerLeft, upperRight).rgb) / (area * 255.0);\n" +
+            "    vec3 meanOfSquares = vec3(boxSum(squaresTexture, lowerLeft, upperRight).rgb)\n" +
+            "            / (area * 65025.0);\n" +
+            "    vec3 variance = max(meanOfSquares - mean * mean, 0.0);\n" +
+            // Flat squares with an epsilon of 0 would divide 0 by 0.
+            "    vec3 scale = variance / max(variance + epsilon, 1e-20);\n" +
+            "    vec3 value = offsets ? mean - scale * mean : scale;\n" +
+            "    fragColor = uvec4(uvec3(round(value * quantization)), 0u);\n" +
+            "}";
+    public static final String COEFFICIENT_MEAN_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "\n" +
+            "uniform highp usampler2D inputImageTexture;\n" +
+            "uniform int radius;\n" +
+            "uniform float quantization;\n" +
+            "\n" +
+            "out mediump vec4 fragColor;\n" +
+            "\n" +
+            GPUImageSummedAreaTable.BOX_SUM_FUNCTIONS +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    ivec2 size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 p = ivec2(gl_FragCoord.xy);\n" +
+            "    ivec2 lowerLeft = max(p - radius, ivec2(0));\n" +
+            "    ivec2 upperRight = min(p + radius, size - 1);\n" +
+            "    ivec2 extent = upperRight - lowerLeft + 1;\n" +
+            "    highp uvec4 sum = boxSum(inputImageTexture, lowerLeft, upperRight);\n" +
+            "    fragColor = vec4(vec3(sum.rgb) / (float(extent.x * extent.y) * quantization), 1.0);\n" +
+            "}";
+    public static final String APPLY_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "attribute vec4 inputTextureCoordinate2;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 textureCoordinate2;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    textureCoordinate2 = inputTextureCoordinate2.xy;\n" +
+            "}";
+    public static final String APPLY_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 textureCoordinate2;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D meanScaleTexture;\n" +
+            "uniform sampler2D meanOffsetTexture;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    mediump vec3 scale = texture2D(meanScaleTexture, textureCoordinate2).rgb;\n" +
+            "    mediump vec3 offset = texture2D(meanOffsetTexture, textureCoordinate2).rgb;\n" +
+            "    gl_FragColor = vec4(scale * color.rgb + offset, color.a);\n" +
+            "}";
+
+    private final GPUImageSummedAreaTable mTable = new GPUImageSummedAreaTable();
+    private final GPUImageSummedAreaTable mSquaresTable =
+            new GPUImageSummedAreaTable(GPUImageSummedAreaTable.SQUARED_BYTES_FRAGMENT_SHADER);
+    private final CoefficientPass mCoefficients = new CoefficientPass();
+    private final CoefficientMeanPass mCoefficientMean = new CoefficientMeanPass();
+    private final ApplyPass mApply = new ApplyPass();
+    private final GPUImageFilter mCopy = new GPUImageFilter();
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private volatile int mRadius;
+    private volatile float mEpsilon;
+    private volatile int mSubsample;
+    private boolean mFlipOutput;
+    private boolean mUseGpuTables;
+
+    private int[] mPixels;
+    private int[] mMeanScales;
+    private int[] mMeanOffsets;
+    private IntBuffer mPixelBuffer;
+    private int mCpuWidth;
+    private int mCpuHeight;
+    private int mMeanScaleTexture = OpenGlUtils.NO_TEXTURE;
+    private int mMeanOffsetTexture = OpenGlUtils.NO_TEXTURE;
+
+    public GPUImageGuidedFilter() {
+        this(8, 0.01f);
+    }
+
+    /**
+     * @param radius see {@link #setRadius(int)}
+     * @param epsilon see {@link #setEpsilon(float)}
+     */
+    public GPUImageGuidedFilter(final int radius, final float epsilon) {
+        super();
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+        mRadius = radius;
+        mEpsilon = epsilon;
+        mSubsample = 1;
+    }
+
+    /**
+     * @param radius the distance in pixels from the center to the edges of
+     *               the square of the local model, from 0 on up, default 8
+     */
+    public void setRadius(final int radius) {
+        mRadius = Math.max(radius, 0);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * @param epsilon the variance of the colors in [0, 1] below which details
+     *                are smoothed, from 0.0 on up, default 0.01
+     */
+    public void setEpsilon(final float epsilon) {
+        mEpsilon = Math.max(epsilon, 0f);
+    }
+
+    public float getEpsilon() {
+        return mEpsilon;
+    }
+
+    /**
+     * Computes the coefficients at 1 / subsample of the resolution, which
+     * cuts their cost by subsample^2. A quarter of the radius works well.
+     *
+     * @param subsample the reduction of the resolution, from 1 on up, default 1
+     */
+    public void setSubsample(final int subsample) {
+        mSubsample = Math.max(subsample, 1);
+    }
+
+    public int getSubsample() {
+        return mSubsample;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mUseGpuTables = GPUImageSummedAreaTable.isSupported();
+        if (mUseGpuTables) {
+            mTable.init();
+            mSquaresTable.init();
+            mCoefficients.init();
+            mCoefficientMean.init();
+        } else {
+            mCopy.init();
+        }
+        mApply.init();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mTable.isInitialized()) {
+            mTable.destroy();
+            mSquaresTable.destroy();
+            mCoefficients.destroy();
+            mCoefficientMean.destroy();
+        }
+        if (mCopy.isInitialized()) {
+            mCopy.destroy();
+        }
+        mApply.destroy();
+        deleteMeanTextures();
+        mPixels = null;
+        mMeanScales = null;
+        mMeanOffsets = null;
+        mPixelBuffer = null;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        int radius = mRadius;
+        if (!isInitialized() || radius == 0 || mOutputWidth <= 0 || mOutputHeight <= 0) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        runPendingOnDrawTasks();
+        int subsample = mSubsample;
+        int width = (mOutputWidth + subsample - 1) / subsample;
+        int height = (mOutputHeight + subsample - 1) / subsample;
+        int tableRadius = Math.min(Math.max(Math.round((float) radius / subsample), 1),
+                MAX_TABLE_RADIUS);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+
+        FrameBufferPool pool = FrameBufferPool.get();
+        FrameBufferPool.FrameBuffer meanScales = null;
+        FrameBufferPool.FrameBuffer meanOffsets = null;
+        int meanScaleTexture;
+        int meanOffsetTexture;
+        if (mUseGpuTables) {
+            FrameBufferPool.FrameBuffer table = mTable.compute(textureId, textureBuffer,
+                    width, height);
+            FrameBufferPool.FrameBuffer squaresTable = mSquaresTable.compute(textureId,
+                    textureBuffer, width, height);
+            // Sums of the coefficients must not overflow 32 bits either.
+            int maxArea = (2 * tableRadius + 1) * (2 * tableRadius + 1);
+            float quantization = (float) Math.min(65535L, 0xffffffffL / maxArea);
+            meanScales = computeCoefficientMeans(table, squaresTable, tableRadius,
+                    quantization, false);
+            meanOffsets = computeCoefficientMeans(table, squaresTable, tableRadius,
+                    quantization, true);
+            pool.release(table);
+            pool.release(squaresTable);
+            meanScaleTexture = meanScales.getTextureId();
+            meanOffsetTexture = meanOffsets.getTextureId();
+        } else {
+            computeCoefficientMeansOnCpu(textureId, textureBuffer, width, height, tableRadius);
+            meanScaleTexture = mMeanScaleTexture;
+            meanOffsetTexture = mMeanOffsetTexture;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                mSavedViewport[2], mSavedViewport[3]);
+        mApply.setOutputFlipped(mFlipOutput);
+        mApply.setMeanTextures(meanScaleTexture, meanOffsetTexture, mGLTextureBuffer);
+        mApply.onDraw(textureId, cubeBuffer, textureBuffer);
+        mApply.setOutputFlipped(false);
+        pool.release(meanScales);
+        pool.release(meanOffsets);
+    }
+
+    private FrameBufferPool.FrameBuffer computeCoefficientMeans(
+            final FrameBufferPool.FrameBuffer table,
+            final FrameBufferPool.FrameBuffer squaresTable, final int radius,
+            final float quantization, final boolean offsets) {
+        FrameBufferPool pool = FrameBufferPool.get();
+        int width = table.getWidth();
+        int height = table.getHeight();
+        FrameBufferPool.FrameBuffer coefficients = pool.obtain(width, height, GLES30.GL_RGBA32UI);
+        bind(coefficients);
+        mCoefficients.setParameters(squaresTable.getTextureId(), radius, mEpsilon,
+                quantization, offsets);
+        mCoefficients.onDraw(table.getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+        FrameBufferPool.FrameBuffer coefficientTable = mTable.computeFromValues(coefficients);
+
+        FrameBufferPool.FrameBuffer means = pool.obtain(width, height);
+        bind(means);
+        mCoefficientMean.setParameters(radius, quantization);
+        mCoefficientMean.onDraw(coefficientTable.getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+        pool.release(coefficientTable);
+        return means;
+    }
+
+    private void computeCoefficientMeansOnCpu(final int textureId,
+                                              final FloatBuffer textureBuffer,
+                                              final int width, final int height,
+                                              final int radius) {
+        if (mPixels == null || mCpuWidth != width || mCpuHeight != height) {
+            mCpuWidth = width;
+            mCpuHeight = height;
+            mPixels = new int[width * height];
+            mMeanScales = new int[width * height];
+            mMeanOffsets = new int[width * height];
+            mPixelBuffer = ByteBuffer.allocateDirect(width * height * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            deleteMeanTextures();
+        }
+
+        FrameBufferPool pool = FrameBufferPool.get();
+        FrameBufferPool.FrameBuffer copy = pool.obtain(width, height);
+        bind(copy);
+        mCopy.onDraw(textureId, mGLCubeBuffer, textureBuffer);
+        mPixelBuffer.position(0);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mPixelBuffer);
+        pool.release(copy);
+        mPixelBuffer.position(0);
+        mPixelBuffer.get(mPixels);
+
+        new GuidedFilter(radius, mEpsilon).computeCoefficients(mPixels, width, height,
+                mMeanScales, mMeanOffsets);
+        mMeanScaleTexture = upload(mMeanScales, width, height, mMeanScaleTexture);
+        mMeanOffsetTexture = upload(mMeanOffsets, width, height, mMeanOffsetTexture);
+    }
+
+    private int upload(final int[] pixels, final int width, final int height, final int texture) {
+        mPixelBuffer.position(0);
+        mPixelBuffer.put(pixels);
+        mPixelBuffer.position(0);
+        return OpenGlUtils.loadTexture(mPixelBuffer, width, height, GLES20.GL_RGBA, texture);
+    }
+
+    private void deleteMeanTextures() {
+        if (mMeanScaleTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(2, new int[]{mMeanScaleTexture, mMeanOffsetTexture}, 0);
+            mMeanScaleTexture = OpenGlUtils.NO_TEXTURE;
+            mMeanOffsetTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    private static void bind(final FrameBufferPool.FrameBuffer target) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target.getFrameBufferId());
+        GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return false;
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        super.setOutputFlipped(flipped);
+        mFlipOutput = flipped;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        // The coefficients are averaged once more, which doubles the reach.
+        // The subsampled grid is aligned to the origin of the image, so a
+        // tile would be filtered differently than the whole image.
+        return mSubsample == 1 ? 2 * mRadius : SAMPLING_RADIUS_UNBOUNDED;
+    }
+
+    /**
+     * Computes a or b of the local models, scaled to integers for their table.
+     */
+    private static class CoefficientPass extends GPUImageFilter {
+        private int mSquaresTextureLocation;
+        private int mRadiusLocation;
+        private int mEpsilonLocation;
+        private int mQuantizationLocation;
+        private int mOffsetsLocation;
+        private int mSquaresTexture;
+
+        CoefficientPass() {
+            super(GPUImageSummedAreaTable.VERTEX_SHADER, COEFFICIENT_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mSquaresTextureLocation = GLES20.glGetUniformLocation(getProgram(), "squaresTexture");
+            mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+            mEpsilonLocation = GLES20.glGetUniformLocation(getProgram(), "epsilon");
+            mQuantizationLocation = GLES20.glGetUniformLocation(getProgram(), "quantization");
+            mOffsetsLocation = GLES20.glGetUniformLocation(getProgram(), "offsets");
+        }
+
+        void setParameters(final int squaresTexture, final int radius, final float epsilon,
+                           final float quantization, final boolean offsets) {
+            mSquaresTexture = squaresTexture;
+            setInteger(mRadiusLocation, radius);
+            setFloat(mEpsilonLocation, epsilon);
+            setFloat(mQuantizationLocation, quantization);
+            setInteger(mOffsetsLocation, offsets ? 1 : 0);
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSquaresTexture);
+            GLES20.glUniform1i(mSquaresTextureLocation, 3);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+
+    /**
+     * Averages the coefficients from their table into a RGBA8 target.
+     */
+    private static class CoefficientMeanPass extends GPUImageFilter {
+        private int mRadiusLocation;
+        private int mQuantizationLocation;
+
+        CoefficientMeanPass() {
+            super(GPUImageSummedAreaTable.VERTEX_SHADER, COEFFICIENT_MEAN_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+            mQuantizationLocation = GLES20.glGetUniformLocation(getProgram(), "quantization");
+        }
+
+        void setParameters(final int radius, final float quantization) {
+            setInteger(mRadiusLocation, radius);
+            setFloat(mQuantizationLocation, quantization);
+        }
+    }
+
+    /**
+     * Applies the averaged coefficients to the input at its full resolution.
+     */
+    private static class ApplyPass extends GPUImageFilter {
+        private int mMeanScaleTextureLocation;
+        private int mMeanOffsetTextureLocation;
+        private int mMeanTextureCoordinateAttribute;
+        private int mMeanScaleTexture;
+        private int mMeanOffsetTexture;
+        private FloatBuffer mMeanTextureBuffer;
+
+        ApplyPass() {
+            super(APPLY_VERTEX_SHADER, APPLY_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mMeanScaleTextureLocation = GLES20.glGetUniformLocation(getProgram(),
+                    "meanScaleTexture");
+            mMeanOffsetTextureLocation = GLES20.glGetUniformLocation(getProgram(),
+                    "meanOffsetTexture");
+            mMeanTextureCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(),
+                    "inputTextureCoordinate2");
+        }
+
+        void setMeanTextures(final int meanScaleTexture, final int meanOffsetTexture,
+                             final FloatBuffer textureBuffer) {
+            mMeanScaleTexture = meanScaleTexture;
+            mMeanOffsetTexture = meanOffsetTexture;
+            mMeanTextureBuffer = textureBuffer;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            mMeanTextureBuffer.position(0);
+            GLES20.glVertexAttribPointer(mMeanTextureCoordinateAttribute, 2, GLES20.GL_FLOAT,
+                    false, 0, mMeanTextureBuffer);
+            GLES20.glEnableVertexAttribArray(mMeanTextureCoordinateAttribute);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mMeanScaleTexture);
+            GLES20.glUniform1i(mMeanScaleTextureLocation, 3);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE4);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mMeanOffsetTexture);
+            GLES20.glUniform1i(mMeanOffsetTextureLocation, 4);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
@@ -64,4 +64,10 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
         mAspectRatio = aspectRatio;
         setFloat(mAspectRatioLocation, mAspectRatio);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The dot grid is relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
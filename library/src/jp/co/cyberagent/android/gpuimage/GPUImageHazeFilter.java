@@ -94,4 +94,10 @@ public class GPUImageHazeFilter extends GPUImageFilter {
         mSlope = slope;
         setFloat(mSlopeLocation, slope);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The haze fades from the top to the bottom of the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -17,8 +17,10 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
-public class GPUImageHueFilter extends GPUImageFilter {
+public class GPUImageHueFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String HUE_FRAGMENT_SHADER = "" +
       "precision highp float;\n" +
       "varying highp vec2 textureCoordinate;\n" +
@@ -93,4 +95,33 @@ public class GPUImageHueFilter extends GPUImageFilter {
         float hueAdjust = (mHue % 360.0f) * (float) Math.PI / 180.0f;
         setFloat(mHueLocation, hueAdjust);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform mediump float hueAdjust$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "" +
+                "        highp float YPrime = dot(color, vec4(0.299, 0.587, 0.114, 0.0));\n" +
+                "        highp float I = dot(color, vec4(0.595716, -0.274453, -0.321263, 0.0));\n" +
+                "        highp float Q = dot(color, vec4(0.211456, -0.522591, 0.31135, 0.0));\n" +
+                "        highp float hue = atan(Q, I) - hueAdjust$;\n" +
+                "        highp float chroma = sqrt(I * I + Q * Q);\n" +
+                "        highp vec4 yIQ = vec4(YPrime, chroma * cos(hue), chroma * sin(hue), 0.0);\n" +
+                "        color.r = dot(yIQ, vec4(1.0, 0.9563, 0.6210, 0.0));\n" +
+                "        color.g = dot(yIQ, vec4(1.0, -0.2721, -0.6474, 0.0));\n" +
+                "        color.b = dot(yIQ, vec4(1.0, -1.1070, 1.7046, 0.0));\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("hueAdjust", (mHue % 360.0f) * (float) Math.PI / 180.0f);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setHue(mHue);
+    }
 }
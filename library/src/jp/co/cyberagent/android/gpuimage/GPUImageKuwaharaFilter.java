@@ -22,7 +22,8 @@ import android.opengl.GLES20;
  * Kuwahara image abstraction, drawn from the work of Kyprianidis, et. al. in their publication
  * "Anisotropic Kuwahara Filtering on the GPU" within the GPU Pro collection. This produces an oil-painting-like
  * image, but it is extremely computationally expensive, so it can take seconds to render a frame on an iPad 2.
- * This might be best used for still images.
+ * This might be best used for still images. {@link GPUImageSummedAreaKuwaharaFilter} costs the same for any
+ * radius.
  */
 public class GPUImageKuwaharaFilter extends GPUImageFilter {
     public static final String KUWAHARA_FRAGMENT_SHADER = "" +
@@ -32,7 +33,7 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
             "\n" +
             "precision highp float;\n" +
             "\n" +
-            "const vec2 src_size = vec2 (1.0 / 768.0, 1.0 / 1024.0);\n" +
+            "uniform vec2 src_size;\n" +
             "\n" +
             "void main (void) \n" +
             "{\n" +
@@ -116,6 +117,7 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
 
     private int mRadius;
     private int mRadiusLocation;
+    private int mSrcSizeLocation;
 
     public GPUImageKuwaharaFilter() {
         this(3);
@@ -130,6 +132,7 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
     public void onInit() {
         super.onInit();
         mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+        mSrcSizeLocation = GLES20.glGetUniformLocation(getProgram(), "src_size");
     }
 
     @Override
@@ -138,6 +141,12 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         setRadius(mRadius);
     }
 
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        setFloatVec2(mSrcSizeLocation, new float[] {1.0f / width, 1.0f / height});
+    }
+
     /**
      * The radius to sample from when creating the brush-stroke effect, with a default of 3.
      * The larger the radius, the slower the filter.
@@ -148,4 +157,9 @@ public class GPUImageKuwaharaFilter extends GPUImageFilter {
         mRadius = radius;
         setInteger(mRadiusLocation, radius);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        return mRadius;
+    }
 }
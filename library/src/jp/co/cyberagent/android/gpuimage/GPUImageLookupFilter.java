@@ -85,4 +85,10 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
         mIntensity = intensity;
         setFloat(mIntensityLocation, mIntensity);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The second image is a color table, not an image placed over the input.
+        return 0;
+    }
 }
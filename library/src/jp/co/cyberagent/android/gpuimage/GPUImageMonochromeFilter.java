@@ -23,7 +23,7 @@ import android.opengl.GLES20;
  * intensity: The degree to which the specific color replaces the normal image color (0.0 - 1.0, with 1.0 as the default)
  * color: The color to use as the basis for the effect, with (0.6, 0.45, 0.3, 1.0) as the default.
  */
-public class GPUImageMonochromeFilter extends GPUImageFilter {
+public class GPUImageMonochromeFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String MONOCHROME_FRAGMENT_SHADER = "" +
             " precision lowp float;\n" +
             "  \n" +
@@ -96,6 +96,31 @@ public class GPUImageMonochromeFilter extends GPUImageFilter {
     }
     
     public void setColorRed(final float red, final float green, final float blue) {
-        setFloatVec3(mFilterColorLocation, new float[]{ red, green, blue });
+        mColor = new float[]{ red, green, blue };
+        setFloatVec3(mFilterColorLocation, mColor);
+    }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "" +
+                "uniform lowp float intensity$;\n" +
+                "uniform lowp vec3 filterColor$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "" +
+                "        lowp float luminance = dot(color.rgb, vec3(0.2125, 0.7154, 0.0721));\n" +
+                "        lowp vec3 outputColor = vec3(\n" +
+                "                (luminance < 0.5 ? (2.0 * luminance * filterColor$.r) : (1.0 - 2.0 * (1.0 - luminance) * (1.0 - filterColor$.r))),\n" +
+                "                (luminance < 0.5 ? (2.0 * luminance * filterColor$.g) : (1.0 - 2.0 * (1.0 - luminance) * (1.0 - filterColor$.g))),\n" +
+                "                (luminance < 0.5 ? (2.0 * luminance * filterColor$.b) : (1.0 - 2.0 * (1.0 - luminance) * (1.0 - filterColor$.b))));\n" +
+                "        color.rgb = mix(color.rgb, outputColor, intensity$);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("intensity", mIntensity);
+        uniforms.setFloatVec3("filterColor", mColor);
     }
 }
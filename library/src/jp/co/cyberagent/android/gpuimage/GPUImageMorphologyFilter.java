@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.Morphology;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Grayscale morphology of every channel with a square neighborhood of any
+ * radius, see {@link Morphology.Operation} for the operations.<br>
+ * <br>
+ * Dilation and erosion are separated into horizontal and vertical passes,
+ * each of which takes the extremum of 5 samples at distances which grow
+ * about five times per pass, see {@link Morphology#getPassOffsets(int)}. A
+ * radius of 12 takes two passes per axis, 62 takes three. Opening and
+ * closing chain an erosion and a dilation, and the differences are computed
+ * by the last pass of their second chain, which also reads the image it
+ * subtracts from, so no operation needs an extra pass.<br>
+ * <br>
+ * {@link Morphology} implements the same on the CPU.
+ */
+public class GPUImageMorphologyFilter extends GPUImageFilter {
+    public static final String VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "attribute vec4 inputTextureCoordinate2;\n" +
+            "\n" +
+            "uniform highp vec2 nearOffset;\n" +
+            "uniform highp vec2 farOffset;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec2 textureCoordinate2;\n" +
+            "varying highp vec2 sampleCoordinates[4];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    textureCoordinate2 = inputTextureCoordinate2.xy;\n" +
+            "    sampleCoordinates[0] = textureCoordinate - farOffset;\n" +
+            "    sampleCoordinates[1] = textureCoordinate - nearOffset;\n" +
+            "    sampleCoordinates[2] = textureCoordinate + nearOffset;\n" +
+            "    sampleCoordinates[3] = textureCoordinate + farOffset;\n" +
+            "}";
+
+    private static final float[] IDENTITY_STEPS = {1f, 0f, 0f, 1f};
+
+    private final Pass mDilate = new Pass(true, false);
+    private final Pass mErode = new Pass(false, false);
+    private final Pass mDilateDifference = new Pass(true, true);
+    private final Pass mErodeDifference = new Pass(false, true);
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private final float[] mInputSteps = new float[4];
+    private volatile Morphology.Operation mOperation;
+    private volatile int mRadius;
+    private boolean mFlipOutput;
+
+    public GPUImageMorphologyFilter() {
+        this(Morphology.Operation.DILATE, 1);
+    }
+
+    /**
+     * @param operation see {@link #setOperation(Morphology.Operation)}
+     * @param radius see {@link #setRadius(int)}
+     */
+    public GPUImageMorphologyFilter(final Morphology.Operation operation, final int radius) {
+        super();
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+        mOperation = operation;
+        setRadius(radius);
+    }
+
+    private static String createFragmentShader(final boolean dilate, final boolean difference) {
+        String extremum = dilate ? "max" : "min";
+        return "" +
+                "varying highp vec2 textureCoordinate;\n" +
+                "varying highp vec2 textureCoordinate2;\n" +
+                "varying highp vec2 sampleCoordinates[4];\n" +
+                "\n" +
+                "uniform sampler2D inputImageTexture;\n" +
+                (difference ? "uniform sampler2D minuendTexture;\n" : "") +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    mediump vec4 value = texture2D(inputImageTexture, textureCoordinate);\n" +
+                "    value = " + extremum + "(value, " + extremum + "(\n" +
+                "            texture2D(inputImageTexture, sampleCoordinates[0]),\n" +
+                "            texture2D(inputImageTexture, sampleCoordinates[1])));\n" +
+                "    value = " + extremum + "(value, " + extremum + "(\n" +
+                "            texture2D(inputImageTexture, sampleCoordinates[2]),\n" +
+                "            texture2D(inputImageTexture, sampleCoordinates[3])));\n" +
+                (difference ? "" +
+                "    mediump vec4 minuend = texture2D(minuendTexture, textureCoordinate2);\n" +
+                "    value = vec4(max(minuend.rgb - value.rgb, 0.0), minuend.a);\n" : "") +
+                "    gl_FragColor = value;\n" +
+                "}";
+    }
+
+    /**
+     * @param operation the operation, default {@link Morphology.Operation#DILATE}
+     */
+    public void setOperation(final Morphology.Operation operation) {
+        mOperation = operation;
+    }
+
+    public Morphology.Operation getOperation() {
+        return mOperation;
+    }
+
+    /**
+     * @param radius the distance in pixels from the center to the edges of
+     *               the square neighborhood, from 0 on up, default 1
+     */
+    public void setRadius(final int radius) {
+        mRadius = Math.max(radius, 0);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mDilate.init();
+        mErode.init();
+        mDilateDifference.init();
+        mErodeDifference.init();
+    }
+
+    @Override
+    public void onDestroy() {
+        mDilate.destroy();
+        mErode.destroy();
+        mDilateDifference.destroy();
+        mErodeDifference.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        Morphology.Operation operation = mOperation;
+        int radius = mRadius;
+        if (!isInitialized() || mOutputWidth <= 0 || mOutputHeight <= 0
+                || (radius == 0 && operation != Morphology.Operation.TOP_HAT
+                && operation != Morphology.Operation.GRADIENT)) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        runPendingOnDrawTasks();
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        getInputSteps(textureBuffer);
+        int[][] passes = Morphology.getPassOffsets(radius);
+        FrameBufferPool pool = FrameBufferPool.get();
+
+        FrameBufferPool.FrameBuffer first;
+        switch (operation) {
+            case DILATE:
+                drawChain(passes, textureId, textureBuffer, mDilate, mDilate, cubeBuffer);
+                break;
+            case ERODE:
+                drawChain(passes, textureId, textureBuffer, mErode, mErode, cubeBuffer);
+                break;
+            case OPEN:
+                first = drawChain(passes, textureId, textureBuffer, mErode, mErode, null);
+                drawChain(passes, first.getTextureId(), mGLTextureBuffer, mDilate, mDilate,
+                        cubeBuffer);
+                pool.release(first);
+                break;
+            case CLOSE:
+                first = drawChain(passes, textureId, textureBuffer, mDilate, mDilate, null);
+                drawChain(passes, first.getTextureId(), mGLTextureBuffer, mErode, mErode,
+                        cubeBuffer);
+                pool.release(first);
+                break;
+            case TOP_HAT:
+                first = drawChain(passes, textureId, textureBuffer, mErode, mErode, null);
+                mDilateDifference.setMinuend(textureId, textureBuffer);
+                drawChain(passes, first.getTextureId(), mGLTextureBuffer, mDilate,
+                        mDilateDifference, cubeBuffer);
+                pool.release(first);
+                break;
+            case GRADIENT:
+                first = drawChain(passes, textureId, textureBuffer, mDilate, mDilate, null);
+                mErodeDifference.setMinuend(first.getTextureId(), mGLTextureBuffer);
+                drawChain(passes, textureId, textureBuffer, mErode, mErodeDifference,
+                        cubeBuffer);
+                pool.release(first);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Draws the horizontal and then the vertical passes of a dilation or
+     * erosion.
+     *
+     * @param pass the pass to draw all but the last pass with
+     * @param lastPass the pass to draw the last pass with
+     * @param cubeBuffer the vertices of the output, or null to draw into a
+     *                   target of the pool
+     * @return the target if cubeBuffer was null, which has to be released
+     */
+    private FrameBufferPool.FrameBuffer drawChain(final int[][] passes, final int textureId,
+                                                  final FloatBuffer textureBuffer,
+                                                  final Pass pass, final Pass lastPass,
+                                                  final FloatBuffer cubeBuffer) {
+        FrameBufferPool pool = FrameBufferPool.get();
+        // Offsets of 0 copy, which only happens for the differences at radius 0.
+        int count = Math.max(2 * passes.length, 1);
+        int previousTexture = textureId;
+        FloatBuffer previousTextureBuffer = textureBuffer;
+        FrameBufferPool.FrameBuffer previous = null;
+        for (int i = 0; i < count; i++) {
+            int near = passes.length == 0 ? 0 : passes[i % passes.length][0];
+            int far = passes.length == 0 ? 0 : passes[i % passes.length][1];
+            boolean vertical = i >= passes.length;
+            // The input may be rotated, the targets are upright.
+            float[] steps = previousTextureBuffer == mGLTextureBuffer
+                    ? IDENTITY_STEPS : mInputSteps;
+            int axis = vertical ? 2 : 0;
+            float size = vertical ? mOutputHeight : mOutputWidth;
+            float stepX = steps[axis] / size;
+            float stepY = steps[axis + 1] / size;
+            boolean last = i == count - 1;
+            Pass current = last ? lastPass : pass;
+            current.setOffsets(near * stepX, near * stepY, far * stepX, far * stepY);
+
+            if (last && cubeBuffer != null) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+                GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                        mSavedViewport[2], mSavedViewport[3]);
+                current.setOutputFlipped(mFlipOutput);
+                current.onDraw(previousTexture, cubeBuffer, previousTextureBuffer);
+                current.setOutputFlipped(false);
+                pool.release(previous);
+                return null;
+            }
+            FrameBufferPool.FrameBuffer output = pool.obtain(mOutputWidth, mOutputHeight);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, output.getFrameBufferId());
+            GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+            current.onDraw(previousTexture, mGLCubeBuffer, previousTextureBuffer);
+            pool.release(previous);
+            previous = output;
+            previousTexture = output.getTextureId();
+            previousTextureBuffer = mGLTextureBuffer;
+        }
+        return previous;
+    }
+
+    /**
+     * Derives how far the width and the height of the output reach in the
+     * coordinates of the input, which may be rotated or mirrored.
+     */
+    private void getInputSteps(final FloatBuffer textureBuffer) {
+        // The vertices are bottom left, bottom right, top left and top right.
+        float u0 = textureBuffer.get(0);
+        float v0 = textureBuffer.get(1);
+        mInputSteps[0] = textureBuffer.get(2) - u0;
+        mInputSteps[1] = textureBuffer.get(3) - v0;
+        mInputSteps[2] = textureBuffer.get(4) - u0;
+        mInputSteps[3] = textureBuffer.get(5) - v0;
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return false;
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        super.setOutputFlipped(flipped);
+        mFlipOutput = flipped;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        switch (mOperation) {
+            case OPEN:
+            case CLOSE:
+            case TOP_HAT:
+                return 2 * mRadius;
+            default:
+                return mRadius;
+        }
+    }
+
+    /**
+     * One dilation or erosion pass, optionally subtracting the result from
+     * another texture.
+     */
+    private static class Pass extends GPUImageFilter {
+        private final boolean mDifference;
+        private final float[] mNearOffset = new float[2];
+        private final float[] mFarOffset = new float[2];
+        private int mNearOffsetLocation;
+        private int mFarOffsetLocation;
+        private int mMinuendTextureLocation;
+        private int mMinuendCoordinateAttribute;
+        private int mMinuendTexture;
+        private FloatBuffer mMinuendTextureBuffer;
+
+        Pass(final boolean dilate, final boolean difference) {
+            super(VERTEX_SHADER, createFragmentShader(dilate, difference));
+            mDifference = difference;
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mNearOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "nearOffset");
+            mFarOffsetLocation = GLES20.glGetUniformLocation(getProgram(), "farOffset");
+            mMinuendTextureLocation = GLES20.glGetUniformLocation(getProgram(), "minuendTexture");
+            mMinuendCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(),
+                    "inputTextureCoordinate2");
+        }
+
+        void setOffsets(final float nearX, final float nearY, final float farX, final float farY) {
+            mNearOffset[0] = nearX;
+            mNearOffset[1] = nearY;
+            mFarOffset[0] = farX;
+            mFarOffset[1] = farY;
+            setFloatVec2(mNearOffsetLocation, mNearOffset);
+            setFloatVec2(mFarOffsetLocation, mFarOffset);
+        }
+
+        void setMinuend(final int textureId, final FloatBuffer textureBuffer) {
+            mMinuendTexture = textureId;
+            mMinuendTextureBuffer = textureBuffer;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            if (!mDifference) {
+                return;
+            }
+            mMinuendTextureBuffer.position(0);
+            GLES20.glVertexAttribPointer(mMinuendCoordinateAttribute, 2, GLES20.GL_FLOAT,
+                    false, 0, mMinuendTextureBuffer);
+            GLES20.glEnableVertexAttribArray(mMinuendCoordinateAttribute);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mMinuendTexture);
+            GLES20.glUniform1i(mMinuendTextureLocation, 3);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
@@ -16,11 +16,39 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import jp.co.cyberagent.android.gpuimage.util.YuvConverter;
+
 public class GPUImageNativeLibrary {
     static {
         System.loadLibrary("gpuimage-library");
     }
 
+    private static final YuvConverter.RowConverter ROW_CONVERTER = new YuvConverter.RowConverter() {
+        @Override
+        public void convertRows(final byte[] yuv, final int width, final int height,
+                                final int[] out, final int rowStart, final int rowEnd,
+                                final int[] coefficients, final boolean argb) {
+            NV21toRGBA(yuv, width, height, out, rowStart, rowEnd, coefficients, argb);
+        }
+    };
+
+    /**
+     * Gets the native implementation of the {@link YuvConverter} specification,
+     * which uses NEON if the library was built for it.
+     *
+     * @return the native row converter
+     */
+    public static YuvConverter.RowConverter getRowConverter() {
+        return ROW_CONVERTER;
+    }
+
+    /**
+     * Converts rows of a NV21 frame as specified by {@link YuvConverter}.
+     */
+    public static native void NV21toRGBA(byte[] yuv, int width, int height, int[] out,
+                                         int rowStart, int rowEnd, int[] coefficients,
+                                         boolean argb);
+
     public static native void YUVtoRBGA(byte[] yuv, int width, int height, int[] out);
 
     public static native void YUVtoARBG(byte[] yuv, int width, int height, int[] out);
@@ -22,7 +22,7 @@ import android.opengl.GLES20;
  * Adjusts the alpha channel of the incoming image
  * opacity: The value to multiply the incoming alpha channel for each pixel by (0.0 - 1.0, with 1.0 as the default)
 */
-public class GPUImageOpacityFilter extends GPUImageFilter {
+public class GPUImageOpacityFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String OPACITY_FRAGMENT_SHADER = "" +
             "  varying highp vec2 textureCoordinate;\n" +
             "  \n" +
@@ -64,4 +64,19 @@ public class GPUImageOpacityFilter extends GPUImageFilter {
         mOpacity = opacity;
         setFloat(mOpacityLocation, mOpacity);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform lowp float opacity$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color.a *= opacity$;\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("opacity", mOpacity);
+    }
 }
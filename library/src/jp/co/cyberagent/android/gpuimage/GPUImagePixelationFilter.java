@@ -71,4 +71,10 @@ public class GPUImagePixelationFilter extends GPUImageFilter {
       mPixel = pixel;
       setFloat(mPixelLocation, mPixel);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The pixel grid is relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+/**
+ * A filter whose output color only depends on the input color of the same
+ * pixel. Runs of these filters inside a {@link GPUImageFilterGroup} are fused
+ * into one {@link GPUImageFusedPointOperationFilter} pass.<br>
+ * <br>
+ * Uniform names in the GLSL snippets end with <code>$</code>, which is replaced
+ * by a suffix unique to the filter's position in the fused shader.
+ */
+public interface GPUImagePointOperation {
+
+    /**
+     * @return the uniform declarations used by {@link #getPointOperation()}
+     */
+    String getPointOperationDeclarations();
+
+    /**
+     * @return GLSL statements which transform the highp vec4 <code>color</code> in place
+     */
+    String getPointOperation();
+
+    /**
+     * Uploads the current parameters to the fused program. Called on the
+     * OpenGL thread while the fused program is in use.
+     *
+     * @param uniforms the uniforms of this filter in the fused program
+     */
+    void onDrawPointOperation(GPUImageFusedPointOperationFilter.Uniforms uniforms);
+}
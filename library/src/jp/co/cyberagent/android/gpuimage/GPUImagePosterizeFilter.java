@@ -23,7 +23,7 @@ import android.opengl.GLES20;
  * <br>
  * colorLevels: ranges from 1 to 256, with a default of 10
  */
-public class GPUImagePosterizeFilter extends GPUImageFilter {
+public class GPUImagePosterizeFilter extends GPUImageFilter implements GPUImagePointOperation {
     public static final String POSTERIZE_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -60,4 +60,19 @@ public class GPUImagePosterizeFilter extends GPUImageFilter {
         mColorLevels = colorLevels;
         setFloat(mGLUniformColorLevels, colorLevels);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform highp float colorLevels$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color = floor((color * colorLevels$) + vec4(0.5)) / colorLevels$;\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("colorLevels", mColorLevels);
+    }
 }
@@ -253,18 +253,23 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "}\n";
 
 
+    private int mRadius = 1;
+
     public GPUImageRGBDilationFilter() {
         this(1);
     }
 
     /**
      * Acceptable values for dilationRadius, which sets the distance in pixels to sample out
-     * from the center, are 1, 2, 3, and 4.
+     * from the center, are 1, 2, 3, and 4. Larger radii are drawn as 4, use
+     * {@link GPUImageMorphologyFilter} for any radius.
      *
      * @param radius 1, 2, 3 or 4
      */
     public GPUImageRGBDilationFilter(int radius) {
         this(getVertexShader(radius), getFragmentShader(radius));
+        // Larger radii use the shaders of radius 4.
+        mRadius = Math.min(radius, 4);
     }
 
     private GPUImageRGBDilationFilter(String vertexShader, String fragmentShader) {
@@ -298,4 +303,9 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                 return FRAGMENT_SHADER_4;
         }
     }
+
+    @Override
+    protected float getSampleReach() {
+        return mRadius;
+    }
 }
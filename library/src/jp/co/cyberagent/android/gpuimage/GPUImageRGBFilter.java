@@ -17,6 +17,7 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
 /**
  * Adjusts the individual RGB channels of an image
@@ -24,7 +25,8 @@ import android.opengl.GLES20;
  * green:
  * blue:
  */
-public class GPUImageRGBFilter extends GPUImageFilter {
+public class GPUImageRGBFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String RGB_FRAGMENT_SHADER = "" +
     		"  varying highp vec2 textureCoordinate;\n" +
     		"  \n" +
@@ -91,4 +93,29 @@ public class GPUImageRGBFilter extends GPUImageFilter {
             setFloat(mBlueLocation, mBlue);
         }
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "" +
+                "uniform highp float red$;\n" +
+                "uniform highp float green$;\n" +
+                "uniform highp float blue$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        color = vec4(color.r * red$, color.g * green$, color.b * blue$, 1.0);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("red", mRed);
+        uniforms.setFloat("green", mGreen);
+        uniforms.setFloat("blue", mBlue);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setChannelMultipliers(mRed, mGreen, mBlue);
+    }
 }
@@ -24,9 +24,12 @@ import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
 import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
 import android.opengl.GLSurfaceView.Renderer;
 
+import jp.co.cyberagent.android.gpuimage.util.PreviewFrameRing;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+import jp.co.cyberagent.android.gpuimage.util.YuvConverter;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -35,14 +38,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
 @TargetApi(11)
 public class GPUImageRenderer implements Renderer, PreviewCallback {
     public static final int NO_IMAGE = -1;
+    private static final int PREVIEW_BUFFER_COUNT = 3;
     static final float CUBE[] = {
             -1.0f, -1.0f,
             1.0f, -1.0f,
@@ -55,10 +58,34 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public final Object mSurfaceChangedWaiter = new Object();
 
     private int mGLTextureId = NO_IMAGE;
+    private int mGLChromaTextureId = NO_IMAGE;
     private SurfaceTexture mSurfaceTexture = null;
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
     private IntBuffer mGLRgbBuffer;
+    private Camera mPreviewCamera;
+    private PreviewFrameRing mPreviewFrames;
+    private final AtomicBoolean mPreviewUploadPending = new AtomicBoolean();
+    private YuvConverter mYuvConverter;
+    private final float[] mNV21ColorMatrix = new float[9];
+    private final float[] mNV21Offset = new float[3];
+    private boolean mDecodePreviewOnGpu;
+    private boolean mFlipOutput;
+    private volatile boolean mOutputFlipped;
+    private PixelReader mPixelReader;
+    private PixelReader.Callback mFrameTap;
+    private int mFrameTapInterval;
+    private int mFrameTapCounter;
+    private boolean mPreviewIsNV21;
+    private int mPreviewTextureWidth;
+    private int mPreviewTextureHeight;
+    private final Runnable mUploadPreviewFrame = new Runnable() {
+        @Override
+        public void run() {
+            mPreviewUploadPending.set(false);
+            uploadPreviewFrame();
+        }
+    };
 
     private int mOutputWidth;
     private int mOutputHeight;
@@ -66,8 +93,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     private int mImageHeight;
     private int mAddedPadding;
 
-    private final Queue<Runnable> mRunOnDraw;
-    private final Queue<Runnable> mRunOnDrawEnd;
+    private final GLTaskQueue mRunOnDraw;
+    private final GLTaskQueue mRunOnDrawEnd;
+    private long mRunOnDrawBudgetNanos = GLTaskQueue.NO_BUDGET;
+    private GLSurfaceView mGLSurfaceView;
     private Rotation mRotation;
     private boolean mFlipHorizontal;
     private boolean mFlipVertical;
@@ -79,8 +108,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
     public GPUImageRenderer(final GPUImageFilter filter) {
         mFilter = filter;
-        mRunOnDraw = new LinkedList<Runnable>();
-        mRunOnDrawEnd = new LinkedList<Runnable>();
+        mRunOnDraw = new GLTaskQueue();
+        mRunOnDrawEnd = new GLTaskQueue();
 
         mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
@@ -97,6 +126,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        FrameBufferPool.onContextCreated();
+        ProgramCache.onContextCreated();
+        // The buffers of a reader belonged to the previous context.
+        mPixelReader = null;
         mFilter.init();
     }
 
@@ -116,9 +149,27 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     @Override
     public void onDrawFrame(final GL10 gl) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        runAll(mRunOnDraw);
+        if (mRunOnDraw.run(mRunOnDrawBudgetNanos) && mGLSurfaceView != null) {
+            // Finish the left over tasks in the next frame.
+            mGLSurfaceView.requestRender();
+        }
+        if (mPixelReader != null) {
+            mPixelReader.poll();
+        }
+        mOutputFlipped = mFlipOutput && mFilter.canFlipOutput();
+        mFilter.setOutputFlipped(mOutputFlipped);
+        mFilter.setNV21Input(mPreviewIsNV21 ? mGLChromaTextureId : OpenGlUtils.NO_TEXTURE,
+                mNV21ColorMatrix, mNV21Offset);
         mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
-        runAll(mRunOnDrawEnd);
+        if (mFrameTap != null && ++mFrameTapCounter >= mFrameTapInterval) {
+            mFrameTapCounter = 0;
+            getPixelReader().read(mOutputWidth, mOutputHeight, mFrameTap);
+        }
+        mRunOnDrawEnd.runAll();
+        if (mPixelReader != null && mPixelReader.getPendingCount() > 0 && mGLSurfaceView != null) {
+            // Deliver the reads in flight with the next frame.
+            mGLSurfaceView.requestRender();
+        }
         if (mSurfaceTexture != null) {
             mSurfaceTexture.updateTexImage();
         }
@@ -137,37 +188,215 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mBackgroundBlue = blue;
     }
 
-    private void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
-        }
+    /**
+     * Limits how long the tasks queued by {@link #runOnDraw(Runnable)} may run
+     * per frame. Left over tasks run in the next frame, which is requested from
+     * the GLSurfaceView if one is set.
+     *
+     * @param budgetNanos the time per frame, or {@link GLTaskQueue#NO_BUDGET}
+     */
+    public void setRunOnDrawBudget(final long budgetNanos) {
+        mRunOnDrawBudgetNanos = budgetNanos;
+    }
+
+    void setGLSurfaceView(final GLSurfaceView view) {
+        mGLSurfaceView = view;
+    }
+
+    /**
+     * @return the queue of tasks run before each frame, e.g. for its statistics
+     */
+    public GLTaskQueue getRunOnDrawQueue() {
+        return mRunOnDraw;
     }
 
     @Override
     public void onPreviewFrame(final byte[] data, final Camera camera) {
-        final Size previewSize = camera.getParameters().getPreviewSize();
-        if (mGLRgbBuffer == null) {
-            mGLRgbBuffer = IntBuffer.allocate(previewSize.width * previewSize.height);
+        PreviewFrameRing frames = getPreviewFrames(camera);
+        frames.offer(data);
+        // One pending upload always takes the latest frame, so never queue a second one.
+        if (mPreviewUploadPending.compareAndSet(false, true)) {
+            runOnDraw(mUploadPreviewFrame);
         }
-        if (mRunOnDraw.isEmpty()) {
-            runOnDraw(new Runnable() {
-                @Override
-                public void run() {
-                    GPUImageNativeLibrary.YUVtoRBGA(data, previewSize.width, previewSize.height,
-                            mGLRgbBuffer.array());
-                    mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, previewSize, mGLTextureId);
-                    camera.addCallbackBuffer(data);
-
-                    if (mImageWidth != previewSize.width) {
-                        mImageWidth = previewSize.width;
-                        mImageHeight = previewSize.height;
-                        adjustImageScaling();
-                    }
-                }
-            });
+    }
+
+    /**
+     * Gets the preview frames of the camera, reading its preview size only
+     * when the camera changed.
+     */
+    private synchronized PreviewFrameRing getPreviewFrames(final Camera camera) {
+        if (mPreviewFrames == null || mPreviewCamera != camera) {
+            setUpPreviewFrames(camera, 0);
+        }
+        return mPreviewFrames;
+    }
+
+    private synchronized void setUpPreviewFrames(final Camera camera, final int bufferCount) {
+        Size previewSize = camera.getParameters().getPreviewSize();
+        int bufferSize = PreviewFrameRing.getNV21BufferSize(previewSize.width, previewSize.height);
+        mPreviewCamera = camera;
+        mPreviewFrames = new PreviewFrameRing(previewSize.width, previewSize.height,
+                bufferCount, bufferSize, new PreviewFrameRing.BufferSink() {
+            @Override
+            public void onBufferAvailable(final byte[] buffer) {
+                camera.addCallbackBuffer(buffer);
+            }
+        });
+    }
+
+    /**
+     * @return the preview frames of the current camera, e.g. for their
+     *         counters, or null if no camera is set up
+     */
+    public synchronized PreviewFrameRing getPreviewFrames() {
+        return mPreviewFrames;
+    }
+
+    private void uploadPreviewFrame() {
+        PreviewFrameRing frames = getPreviewFrames();
+        byte[] frame = frames != null ? frames.acquireLatest() : null;
+        if (frame == null) {
+            return;
+        }
+        int width = frames.getWidth();
+        int height = frames.getHeight();
+        if (mYuvConverter == null) {
+            setPreviewColorSpace(YuvConverter.Standard.BT601, YuvConverter.Range.FULL);
+        }
+        boolean nv21 = mDecodePreviewOnGpu && mFilter.acceptsNV21Input();
+        if (nv21 != mPreviewIsNV21 || mPreviewTextureWidth != width
+                || mPreviewTextureHeight != height) {
+            // The textures have the format or size of the previous preview.
+            deletePreviewTextures();
+            mPreviewIsNV21 = nv21;
+            mPreviewTextureWidth = width;
+            mPreviewTextureHeight = height;
+        }
+        if (nv21) {
+            // Both planes are uploaded as they are and converted by the first filter.
+            ByteBuffer planes = ByteBuffer.wrap(frame);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+            mGLTextureId = OpenGlUtils.loadTexture(planes, width, height,
+                    GLES20.GL_LUMINANCE, mGLTextureId);
+            planes.position(width * height);
+            mGLChromaTextureId = OpenGlUtils.loadTexture(planes.slice(), (width + 1) / 2,
+                    (height + 1) / 2, GLES20.GL_LUMINANCE_ALPHA, mGLChromaTextureId);
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+            frames.release(frame);
+        } else {
+            if (mGLRgbBuffer == null || mGLRgbBuffer.capacity() != width * height) {
+                mGLRgbBuffer = IntBuffer.allocate(width * height);
+            }
+            mYuvConverter.convert(frame, width, height, mGLRgbBuffer.array(), false);
+            frames.release(frame);
+            mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, width, height, mGLTextureId);
+        }
+
+        if (mImageWidth != width || mImageHeight != height) {
+            mImageWidth = width;
+            mImageHeight = height;
+            adjustImageScaling();
+        }
+    }
+
+    /**
+     * Sets how camera preview frames are converted to RGB. Camera preview
+     * frames are full range BT.601 (JFIF) by default.
+     *
+     * @param standard the color matrix of the frames
+     * @param range the value range of the frames
+     */
+    public void setPreviewColorSpace(final YuvConverter.Standard standard,
+                                     final YuvConverter.Range range) {
+        YuvConverter converter = new YuvConverter(standard, range);
+        converter.setRowConverter(GPUImageNativeLibrary.getRowConverter());
+        NV21Input.getColorSpace(converter, mNV21ColorMatrix, mNV21Offset);
+        mYuvConverter = converter;
+    }
+
+    /**
+     * Sets whether camera preview frames are uploaded as NV21 and converted to
+     * RGB by the first filter instead of on the CPU. Filters which do not
+     * sample <code>inputImageTexture</code> directly still get RGB frames.
+     *
+     * @param decodeOnGpu true to convert the frames on the GPU
+     */
+    public void setPreviewDecodingOnGpu(final boolean decodeOnGpu) {
+        mDecodePreviewOnGpu = decodeOnGpu;
+    }
+
+    /**
+     * Sets whether frames are drawn upside down, so that glReadPixels returns
+     * the rows in the order of a Bitmap. Used for offscreen readback.
+     *
+     * @param flip true to draw frames upside down
+     */
+    void setFlipOutputVertically(final boolean flip) {
+        mFlipOutput = flip;
+    }
+
+    /**
+     * @return true if the last frame was drawn upside down, which the filter
+     *         might not support even if requested
+     */
+    boolean isOutputFlipped() {
+        return mOutputFlipped;
+    }
+
+    /**
+     * @return the reader of the current context, only valid on the OpenGL thread
+     */
+    PixelReader getPixelReader() {
+        if (mPixelReader == null) {
+            mPixelReader = new PixelReader();
+        }
+        return mPixelReader;
+    }
+
+    /**
+     * Reads back the next drawn frame without stalling the OpenGL thread.
+     *
+     * @param callback gets the pixels, called on the OpenGL thread
+     */
+    public void readPixels(final PixelReader.Callback callback) {
+        runOnDrawEnd(new Runnable() {
+            @Override
+            public void run() {
+                getPixelReader().read(mOutputWidth, mOutputHeight, callback);
+            }
+        });
+    }
+
+    /**
+     * Reads back every n-th drawn frame, e.g. to analyze filtered camera
+     * frames, without stalling the OpenGL thread.
+     *
+     * @param interval read every interval-th frame
+     * @param callback gets the pixels, called on the OpenGL thread, or null to stop
+     */
+    public void setFrameTap(final int interval, final PixelReader.Callback callback) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mFrameTap = callback;
+                mFrameTapInterval = Math.max(1, interval);
+                mFrameTapCounter = 0;
+            }
+        });
+    }
+
+    private void deletePreviewTextures() {
+        if (mGLTextureId != NO_IMAGE) {
+            GLES20.glDeleteTextures(1, new int[]{mGLTextureId}, 0);
+            mGLTextureId = NO_IMAGE;
+        }
+        if (mGLChromaTextureId != NO_IMAGE) {
+            GLES20.glDeleteTextures(1, new int[]{mGLChromaTextureId}, 0);
+            mGLChromaTextureId = NO_IMAGE;
         }
+        mPreviewIsNV21 = false;
+        mPreviewTextureWidth = 0;
+        mPreviewTextureHeight = 0;
     }
 
     public void setUpSurfaceTexture(final Camera camera) {
@@ -179,7 +408,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                 mSurfaceTexture = new SurfaceTexture(textures[0]);
                 try {
                     camera.setPreviewTexture(mSurfaceTexture);
-                    camera.setPreviewCallback(GPUImageRenderer.this);
+                    setUpPreviewFrames(camera, PREVIEW_BUFFER_COUNT);
+                    camera.setPreviewCallbackWithBuffer(GPUImageRenderer.this);
                     camera.startPreview();
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -210,10 +440,7 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
-                        mGLTextureId
-                }, 0);
-                mGLTextureId = NO_IMAGE;
+                deletePreviewTextures();
             }
         });
     }
@@ -243,6 +470,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                     mAddedPadding = 0;
                 }
 
+                if (mPreviewIsNV21 || mPreviewTextureWidth != 0) {
+                    // The texture holds a camera frame of another format or size.
+                    deletePreviewTextures();
+                }
                 mGLTextureId = OpenGlUtils.loadTexture(
                         resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle);
                 if (resizedBitmap != null) {
@@ -344,14 +575,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     }
 
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.add(runnable);
-        }
+        mRunOnDraw.add(runnable);
     }
 
     protected void runOnDrawEnd(final Runnable runnable) {
-        synchronized (mRunOnDrawEnd) {
-            mRunOnDrawEnd.add(runnable);
-        }
+        mRunOnDrawEnd.add(runnable);
     }
 }
@@ -17,11 +17,13 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.ColorTransform;
 
 /**
  * saturation: The degree of saturation or desaturation to apply to the image (0.0 - 2.0, with 1.0 as the default)
  */
-public class GPUImageSaturationFilter extends GPUImageFilter {
+public class GPUImageSaturationFilter extends GPUImageFilter
+        implements GPUImagePointOperation, GPUImageAffineColorOperation {
     public static final String SATURATION_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -69,4 +71,25 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         mSaturation = saturation;
         setFloat(mSaturationLocation, mSaturation);
     }
+
+    @Override
+    public String getPointOperationDeclarations() {
+        return "uniform lowp float saturation$;\n";
+    }
+
+    @Override
+    public String getPointOperation() {
+        return "        lowp float luminance = dot(color.rgb, vec3(0.2125, 0.7154, 0.0721));\n" +
+                "        color.rgb = mix(vec3(luminance), color.rgb, saturation$);\n";
+    }
+
+    @Override
+    public void onDrawPointOperation(final GPUImageFusedPointOperationFilter.Uniforms uniforms) {
+        uniforms.setFloat("saturation", mSaturation);
+    }
+
+    @Override
+    public void getColorTransform(final ColorTransform transform) {
+        transform.setSaturation(mSaturation);
+    }
 }
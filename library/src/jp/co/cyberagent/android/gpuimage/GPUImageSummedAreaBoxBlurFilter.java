@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.SummedAreaTable;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Box blur which averages the square around every pixel by reading four
+ * corners of a summed-area table, so it costs the same for any radius. At the
+ * edges only the pixels inside the image are averaged.<br>
+ * <br>
+ * The table is computed on the GPU by {@link GPUImageSummedAreaTable} on
+ * OpenGL ES 3.0. Older contexts read the image back and compute the table
+ * and the means with {@link SummedAreaTable} on the CPU, which is correct but
+ * only fast enough for still images.
+ */
+public class GPUImageSummedAreaBoxBlurFilter extends GPUImageFilter {
+    public static final String MEAN_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "\n" +
+            "uniform highp usampler2D inputImageTexture;\n" +
+            "uniform int radius;\n" +
+            "\n" +
+            "in highp vec2 textureCoordinate;\n" +
+            "out mediump vec4 fragColor;\n" +
+            "\n" +
+            GPUImageSummedAreaTable.BOX_SUM_FUNCTIONS +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    ivec2 size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 p = ivec2(textureCoordinate * vec2(size));\n" +
+            "    ivec2 lowerLeft = max(p - radius, ivec2(0));\n" +
+            "    ivec2 upperRight = min(p + radius, size - 1);\n" +
+            "    ivec2 extent = upperRight - lowerLeft + 1;\n" +
+            "    highp uvec4 sum = boxSum(inputImageTexture, lowerLeft, upperRight);\n" +
+            "    fragColor = vec4(sum) / (float(extent.x * extent.y) * 255.0);\n" +
+            "}";
+
+    private final GPUImageSummedAreaTable mTable = new GPUImageSummedAreaTable();
+    private final MeanPass mMean = new MeanPass();
+    private final GPUImageFilter mCopy = new GPUImageFilter();
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private volatile int mRadius;
+    private boolean mFlipOutput;
+    private boolean mUseGpuTable;
+
+    private SummedAreaTable mCpuTable;
+    private int[] mPixels;
+    private IntBuffer mPixelBuffer;
+    private int mMeanTexture = OpenGlUtils.NO_TEXTURE;
+
+    public GPUImageSummedAreaBoxBlurFilter() {
+        this(8);
+    }
+
+    /**
+     * @param radius see {@link #setRadius(int)}
+     */
+    public GPUImageSummedAreaBoxBlurFilter(final int radius) {
+        super();
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+        mRadius = radius;
+    }
+
+    /**
+     * @param radius the distance in pixels from the center to the edges of
+     *               the averaged square, from 0 on up, default 8
+     */
+    public void setRadius(final int radius) {
+        mRadius = Math.max(radius, 0);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mUseGpuTable = GPUImageSummedAreaTable.isSupported();
+        if (mUseGpuTable) {
+            mTable.init();
+            mMean.init();
+        } else {
+            mCopy.init();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mTable.isInitialized()) {
+            mTable.destroy();
+            mMean.destroy();
+        }
+        if (mCopy.isInitialized()) {
+            mCopy.destroy();
+        }
+        if (mMeanTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{mMeanTexture}, 0);
+            mMeanTexture = OpenGlUtils.NO_TEXTURE;
+        }
+        mCpuTable = null;
+        mPixels = null;
+        mPixelBuffer = null;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        int radius = mRadius;
+        if (!isInitialized() || radius == 0 || mOutputWidth <= 0 || mOutputHeight <= 0) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        runPendingOnDrawTasks();
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+
+        if (mUseGpuTable) {
+            FrameBufferPool.FrameBuffer table =
+                    mTable.compute(textureId, textureBuffer, mOutputWidth, mOutputHeight);
+            restoreFrameBuffer();
+            mMean.setOutputFlipped(mFlipOutput);
+            mMean.setRadius(radius);
+            mMean.onDraw(table.getTextureId(), cubeBuffer, mGLTextureBuffer);
+            mMean.setOutputFlipped(false);
+            FrameBufferPool.get().release(table);
+        } else {
+            computeMeansOnCpu(textureId, textureBuffer, radius);
+            restoreFrameBuffer();
+            super.onDraw(mMeanTexture, cubeBuffer, mGLTextureBuffer);
+        }
+    }
+
+    private void computeMeansOnCpu(final int textureId, final FloatBuffer textureBuffer,
+                                   final int radius) {
+        int width = mOutputWidth;
+        int height = mOutputHeight;
+        if (mCpuTable == null || mCpuTable.getWidth() != width
+                || mCpuTable.getHeight() != height) {
+            mCpuTable = new SummedAreaTable(width, height);
+            mPixels = new int[width * height];
+            mPixelBuffer = ByteBuffer.allocateDirect(width * height * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            if (mMeanTexture != OpenGlUtils.NO_TEXTURE) {
+                GLES20.glDeleteTextures(1, new int[]{mMeanTexture}, 0);
+                mMeanTexture = OpenGlUtils.NO_TEXTURE;
+            }
+        }
+
+        // The input may be an external or rotated texture, so it is drawn
+        // upright into a target first.
+        FrameBufferPool pool = FrameBufferPool.get();
+        FrameBufferPool.FrameBuffer copy = pool.obtain(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, copy.getFrameBufferId());
+        GLES20.glViewport(0, 0, width, height);
+        mCopy.onDraw(textureId, mGLCubeBuffer, textureBuffer);
+        mPixelBuffer.position(0);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mPixelBuffer);
+        pool.release(copy);
+
+        // The RGBA bytes are summed per byte, so their order in the ints does not matter.
+        mPixelBuffer.position(0);
+        mPixelBuffer.get(mPixels);
+        mCpuTable.compute(mPixels);
+        mCpuTable.getBoxMeans(radius, mPixels);
+        mPixelBuffer.position(0);
+        mPixelBuffer.put(mPixels);
+        mPixelBuffer.position(0);
+        mMeanTexture = OpenGlUtils.loadTexture(mPixelBuffer, width, height,
+                GLES20.GL_RGBA, mMeanTexture);
+    }
+
+    private void restoreFrameBuffer() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                mSavedViewport[2], mSavedViewport[3]);
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return false;
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        super.setOutputFlipped(flipped);
+        mFlipOutput = flipped;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return mRadius;
+    }
+
+    /**
+     * Reads the means from the table.
+     */
+    private static class MeanPass extends GPUImageFilter {
+        private int mRadiusLocation;
+
+        MeanPass() {
+            super(GPUImageSummedAreaTable.VERTEX_SHADER, MEAN_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+        }
+
+        void setRadius(final int radius) {
+            setInteger(mRadiusLocation, radius);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import jp.co.cyberagent.android.gpuimage.util.KuwaharaFilter;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Kuwahara filter which reads the mean and variance of each quadrant from
+ * summed-area tables of the colors and squared colors, so it costs the same
+ * for any radius, unlike {@link GPUImageKuwaharaFilter} which loops over all
+ * pixels of the quadrants. The quadrants are clipped to the image and the
+ * alpha of the input is kept.<br>
+ * <br>
+ * {@link #setAnisotropy(float)} stretches the quadrants horizontally or
+ * vertically along the local structure, see {@link KuwaharaFilter}, which
+ * implements the same filter on the CPU.<br>
+ * <br>
+ * The tables are computed on the GPU on OpenGL ES 3.0. Older contexts read
+ * the image back and filter it with {@link KuwaharaFilter}, which is only
+ * fast enough for still images.
+ */
+public class GPUImageSummedAreaKuwaharaFilter extends GPUImageFilter {
+    public static final String KUWAHARA_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp int;\n" +
+            "\n" +
+            "uniform highp usampler2D inputImageTexture;\n" +
+            "uniform highp usampler2D squaresTexture;\n" +
+            "uniform int radius;\n" +
+            "uniform float anisotropy;\n" +
+            "\n" +
+            "in highp vec2 textureCoordinate;\n" +
+            "out mediump vec4 fragColor;\n" +
+            "\n" +
+            GPUImageSummedAreaTable.BOX_SUM_FUNCTIONS +
+            "\n" +
+            "ivec2 size;\n" +
+            "\n" +
+            "float measure(ivec2 lowerLeft, ivec2 upperRight, out vec3 mean)\n" +
+            "{\n" +
+            "    lowerLeft = max(lowerLeft, ivec2(0));\n" +
+            "    upperRight = min(upperRight, size - 1);\n" +
+            "    ivec2 extent = upperRight - lowerLeft + 1;\n" +
+            "    float area = float(extent.x * extent.y);\n" +
+            "    mean = vec3(boxSum(inputImageTexture, lowerLeft, upperRight).rgb) / (area * 255.0);\n" +
+            "    vec3 variance = vec3(boxSum(squaresTexture, lowerLeft, upperRight).rgb)\n" +
+            "            / (area * 65025.0) - mean * mean;\n" +
+            "    variance = max(variance, 0.0);\n" +
+            "    return variance.r + variance.g + variance.b;\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    size = textureSize(inputImageTexture, 0);\n" +
+            "    ivec2 p = ivec2(textureCoordinate * vec2(size));\n" +
+            "    ivec2 halfSize = ivec2(radius);\n" +
+            "    vec3 mean;\n" +
+            "    if (anisotropy > 0.0) {\n" +
+            "        int thickness = radius / 4;\n" +
+            "        float horizontal = measure(p - ivec2(radius, thickness),\n" +
+            "                p + ivec2(radius, thickness), mean);\n" +
+            "        float vertical = measure(p - ivec2(thickness, radius),\n" +
+            "                p + ivec2(thickness, radius), mean);\n" +
+            "        float total = horizontal + vertical;\n" +
+            "        float direction = total > 1e-6 ? (vertical - horizontal) / total : 0.0;\n" +
+            "        float stretch = 1.0 + anisotropy * abs(direction);\n" +
+            "        int along = int(round(float(radius) * stretch));\n" +
+            "        int across = max(int(round(float(radius) / stretch)), 1);\n" +
+            "        halfSize = direction > 0.0 ? ivec2(along, across) : ivec2(across, along);\n" +
+            "    }\n" +
+            "\n" +
+            "    vec3 best;\n" +
+            "    float minVariance = measure(p - halfSize, p, best);\n" +
+            "    float variance = measure(ivec2(p.x, p.y - halfSize.y), ivec2(p.x + halfSize.x, p.y), mean);\n" +
+            "    if (variance < minVariance) {\n" +
+            "        minVariance = variance;\n" +
+            "        best = mean;\n" +
+            "    }\n" +
+            "    variance = measure(p, p + halfSize, mean);\n" +
+            "    if (variance < minVariance) {\n" +
+            "        minVariance = variance;\n" +
+            "        best = mean;\n" +
+            "    }\n" +
+            "    variance = measure(ivec2(p.x - halfSize.x, p.y), ivec2(p.x, p.y + halfSize.y), mean);\n" +
+            "    if (variance < minVariance) {\n" +
+            "        best = mean;\n" +
+            "    }\n" +
+            "    float alpha = float(boxSum(inputImageTexture, p, p).a) / 255.0;\n" +
+            "    fragColor = vec4(best, alpha);\n" +
+            "}";
+
+    private final GPUImageSummedAreaTable mTable = new GPUImageSummedAreaTable();
+    private final GPUImageSummedAreaTable mSquaresTable =
+            new GPUImageSummedAreaTable(GPUImageSummedAreaTable.SQUARED_BYTES_FRAGMENT_SHADER);
+    private final KuwaharaPass mKuwahara = new KuwaharaPass();
+    private final GPUImageFilter mCopy = new GPUImageFilter();
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final int[] mSavedFrameBuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private volatile int mRadius;
+    private volatile float mAnisotropy;
+    private boolean mFlipOutput;
+    private boolean mUseGpuTables;
+
+    private int[] mPixels;
+    private IntBuffer mPixelBuffer;
+    private int mCpuWidth;
+    private int mCpuHeight;
+    private int mOutputTexture = OpenGlUtils.NO_TEXTURE;
+
+    public GPUImageSummedAreaKuwaharaFilter() {
+        this(3, 0f);
+    }
+
+    /**
+     * @param radius see {@link #setRadius(int)}
+     * @param anisotropy see {@link #setAnisotropy(float)}
+     */
+    public GPUImageSummedAreaKuwaharaFilter(final int radius, final float anisotropy) {
+        super();
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+        setRadius(radius);
+        setAnisotropy(anisotropy);
+    }
+
+    /**
+     * The radius to sample from when creating the brush-stroke effect.
+     *
+     * @param radius from 0 to {@link KuwaharaFilter#MAX_RADIUS}, default 3
+     */
+    public void setRadius(final int radius) {
+        mRadius = Math.min(Math.max(radius, 0), KuwaharaFilter.MAX_RADIUS);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * @param anisotropy how far the quadrants are stretched along the local
+     *                   structure, from 0.0 (squares, the default) to
+     *                   {@link KuwaharaFilter#MAX_ANISOTROPY}; 1.0 is a good start
+     */
+    public void setAnisotropy(final float anisotropy) {
+        mAnisotropy = Math.min(Math.max(anisotropy, 0f), KuwaharaFilter.MAX_ANISOTROPY);
+    }
+
+    public float getAnisotropy() {
+        return mAnisotropy;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mUseGpuTables = GPUImageSummedAreaTable.isSupported();
+        if (mUseGpuTables) {
+            mTable.init();
+            mSquaresTable.init();
+            mKuwahara.init();
+        } else {
+            mCopy.init();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mTable.isInitialized()) {
+            mTable.destroy();
+            mSquaresTable.destroy();
+            mKuwahara.destroy();
+        }
+        if (mCopy.isInitialized()) {
+            mCopy.destroy();
+        }
+        if (mOutputTexture != OpenGlUtils.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{mOutputTexture}, 0);
+            mOutputTexture = OpenGlUtils.NO_TEXTURE;
+        }
+        mPixels = null;
+        mPixelBuffer = null;
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        int radius = mRadius;
+        if (!isInitialized() || radius == 0 || mOutputWidth <= 0 || mOutputHeight <= 0) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        runPendingOnDrawTasks();
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFrameBuffer, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+
+        if (mUseGpuTables) {
+            FrameBufferPool pool = FrameBufferPool.get();
+            FrameBufferPool.FrameBuffer table = mTable.compute(textureId, textureBuffer,
+                    mOutputWidth, mOutputHeight);
+            FrameBufferPool.FrameBuffer squaresTable = mSquaresTable.compute(textureId,
+                    textureBuffer, mOutputWidth, mOutputHeight);
+            restoreFrameBuffer();
+            mKuwahara.setOutputFlipped(mFlipOutput);
+            mKuwahara.setParameters(squaresTable.getTextureId(), radius, mAnisotropy);
+            mKuwahara.onDraw(table.getTextureId(), cubeBuffer, mGLTextureBuffer);
+            mKuwahara.setOutputFlipped(false);
+            pool.release(table);
+            pool.release(squaresTable);
+        } else {
+            filterOnCpu(textureId, textureBuffer, radius);
+            restoreFrameBuffer();
+            super.onDraw(mOutputTexture, cubeBuffer, mGLTextureBuffer);
+        }
+    }
+
+    private void filterOnCpu(final int textureId, final FloatBuffer textureBuffer,
+                             final int radius) {
+        int width = mOutputWidth;
+        int height = mOutputHeight;
+        if (mPixels == null || mCpuWidth != width || mCpuHeight != height) {
+            mCpuWidth = width;
+            mCpuHeight = height;
+            mPixels = new int[width * height];
+            mPixelBuffer = ByteBuffer.allocateDirect(width * height * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            if (mOutputTexture != OpenGlUtils.NO_TEXTURE) {
+                GLES20.glDeleteTextures(1, new int[]{mOutputTexture}, 0);
+                mOutputTexture = OpenGlUtils.NO_TEXTURE;
+            }
+        }
+
+        FrameBufferPool pool = FrameBufferPool.get();
+        FrameBufferPool.FrameBuffer copy = pool.obtain(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, copy.getFrameBufferId());
+        GLES20.glViewport(0, 0, width, height);
+        mCopy.onDraw(textureId, mGLCubeBuffer, textureBuffer);
+        mPixelBuffer.position(0);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mPixelBuffer);
+        pool.release(copy);
+        mPixelBuffer.position(0);
+        mPixelBuffer.get(mPixels);
+
+        int[] filtered = new KuwaharaFilter(radius, mAnisotropy).filter(mPixels, width, height);
+        mPixelBuffer.position(0);
+        mPixelBuffer.put(filtered);
+        mPixelBuffer.position(0);
+        mOutputTexture = OpenGlUtils.loadTexture(mPixelBuffer, width, height,
+                GLES20.GL_RGBA, mOutputTexture);
+    }
+
+    private void restoreFrameBuffer() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFrameBuffer[0]);
+        GLES20.glViewport(mSavedViewport[0], mSavedViewport[1],
+                mSavedViewport[2], mSavedViewport[3]);
+    }
+
+    @Override
+    boolean acceptsNV21Input() {
+        return false;
+    }
+
+    @Override
+    void setOutputFlipped(final boolean flipped) {
+        super.setOutputFlipped(flipped);
+        mFlipOutput = flipped;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        return (int) Math.ceil(mRadius * (1f + mAnisotropy));
+    }
+
+    /**
+     * Picks the quadrant with the smallest variance from the tables.
+     */
+    private static class KuwaharaPass extends GPUImageFilter {
+        private int mSquaresTextureLocation;
+        private int mRadiusLocation;
+        private int mAnisotropyLocation;
+        private int mSquaresTexture;
+
+        KuwaharaPass() {
+            super(GPUImageSummedAreaTable.VERTEX_SHADER, KUWAHARA_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mSquaresTextureLocation = GLES20.glGetUniformLocation(getProgram(), "squaresTexture");
+            mRadiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+            mAnisotropyLocation = GLES20.glGetUniformLocation(getProgram(), "anisotropy");
+        }
+
+        void setParameters(final int squaresTexture, final int radius, final float anisotropy) {
+            mSquaresTexture = squaresTexture;
+            setInteger(mRadiusLocation, radius);
+            setFloat(mAnisotropyLocation, anisotropy);
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSquaresTexture);
+            GLES20.glUniform1i(mSquaresTextureLocation, 3);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
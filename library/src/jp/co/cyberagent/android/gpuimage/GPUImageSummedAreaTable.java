@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import jp.co.cyberagent.android.gpuimage.util.SummedAreaTable;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Computes summed-area tables of textures on the GPU, so that filters can sum
+ * any rectangle of their input with four texel fetches.<br>
+ * <br>
+ * A table is a RGBA32UI texture which holds in texel (x, y) the sums of all
+ * texels (x', y') with x' &lt;= x and y' &lt;= y of the converted input. It is
+ * built with log-step prefix sums: every pass adds the values 1, 2 and 3 steps
+ * before a texel and the step grows by four, so a table of w x h texels takes
+ * log4(w) + log4(h) passes. The sums wrap modulo 2^32, but the difference
+ * which gives the sum of a rectangle stays exact as long as it fits into 32
+ * bits.<br>
+ * <br>
+ * Integer textures need OpenGL ES 3.0, see {@link #isSupported()}.
+ * {@link SummedAreaTable} computes the same table on the CPU.
+ */
+public class GPUImageSummedAreaTable {
+    public static final String VERTEX_SHADER = "" +
+            "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "in vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "out highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "}";
+    /**
+     * Sums the color channels of the input as bytes, the default conversion.
+     */
+    public static final String BYTES_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "in highp vec2 textureCoordinate;\n" +
+            "out highp uvec4 fragColor;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    fragColor = uvec4(round(texture(inputImageTexture, textureCoordinate) * 255.0));\n" +
+            "}";
+    /**
+     * Sums the squares of the color channels as bytes, for variances. A
+     * rectangle of up to 257 x 257 texels fits into 32 bits.
+     */
+    public static final String SQUARED_BYTES_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "in highp vec2 textureCoordinate;\n" +
+            "out highp uvec4 fragColor;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp uvec4 value = uvec4(round(texture(inputImageTexture, textureCoordinate) * 255.0));\n" +
+            "    fragColor = value * value;\n" +
+            "}";
+    /**
+     * GLSL functions for shaders which read a table with integer texel
+     * coordinates: boxSum(table, lowerLeft, upperRight) sums the texels of
+     * the rectangle including its corners, which have to lie inside the
+     * table.
+     */
+    public static final String BOX_SUM_FUNCTIONS = "" +
+            "highp uvec4 tableValue(highp usampler2D table, ivec2 p)\n" +
+            "{\n" +
+            "    return p.x < 0 || p.y < 0 ? uvec4(0u) : texelFetch(table, p, 0);\n" +
+            "}\n" +
+            "\n" +
+            "highp uvec4 boxSum(highp usampler2D table, ivec2 lowerLeft, ivec2 upperRight)\n" +
+            "{\n" +
+            "    ivec2 before = lowerLeft - 1;\n" +
+            "    return tableValue(table, upperRight)\n" +
+            "            - tableValue(table, ivec2(before.x, upperRight.y))\n" +
+            "            - tableValue(table, ivec2(upperRight.x, before.y))\n" +
+            "            + tableValue(table, before);\n" +
+            "}\n";
+
+    private final Pass mConvert;
+    private final Pass mHorizontalSums = new Pass(VERTEX_SHADER, createPrefixSumShader("x"));
+    private final Pass mVerticalSums = new Pass(VERTEX_SHADER, createPrefixSumShader("y"));
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+
+    public GPUImageSummedAreaTable() {
+        this(BYTES_FRAGMENT_SHADER);
+    }
+
+    /**
+     * @param convertFragmentShader an OpenGL ES 3.0 shader which reads the
+     *                              input at textureCoordinate and writes the
+     *                              values to sum as uvec4 fragColor, see
+     *                              {@link #BYTES_FRAGMENT_SHADER}
+     */
+    public GPUImageSummedAreaTable(final String convertFragmentShader) {
+        mConvert = new Pass(VERTEX_SHADER, convertFragmentShader);
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+    }
+
+    /**
+     * @return true if the current context can compute tables
+     */
+    public static boolean isSupported() {
+        return OpenGlUtils.isOpenGLES3();
+    }
+
+    private static String createPrefixSumShader(final String axis) {
+        return "" +
+                "#version 300 es\n" +
+                "precision highp float;\n" +
+                "precision highp int;\n" +
+                "\n" +
+                "uniform highp usampler2D inputImageTexture;\n" +
+                "uniform int stepSize;\n" +
+                "\n" +
+                "out highp uvec4 fragColor;\n" +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    ivec2 p = ivec2(gl_FragCoord.xy);\n" +
+                "    highp uvec4 sum = texelFetch(inputImageTexture, p, 0);\n" +
+                "    for (int i = 1; i <= 3; i++) {\n" +
+                "        ivec2 q = p;\n" +
+                "        q." + axis + " -= i * stepSize;\n" +
+                "        if (q." + axis + " >= 0) {\n" +
+                "            sum += texelFetch(inputImageTexture, q, 0);\n" +
+                "        }\n" +
+                "    }\n" +
+                "    fragColor = sum;\n" +
+                "}";
+    }
+
+    public void init() {
+        mConvert.init();
+        mHorizontalSums.init();
+        mVerticalSums.init();
+    }
+
+    public void destroy() {
+        mConvert.destroy();
+        mHorizontalSums.destroy();
+        mVerticalSums.destroy();
+    }
+
+    public boolean isInitialized() {
+        return mConvert.isInitialized();
+    }
+
+    /**
+     * Computes the table of a texture. Changes the framebuffer binding and
+     * the viewport.
+     *
+     * @param textureId the input texture
+     * @param textureBuffer the texture coordinates of the input
+     * @param width the width of the table
+     * @param height the height of the table
+     * @return a RGBA32UI target of the {@link FrameBufferPool} which holds
+     *         the table upright and has to be released by the caller
+     */
+    public FrameBufferPool.FrameBuffer compute(final int textureId, final FloatBuffer textureBuffer,
+                                               final int width, final int height) {
+        FrameBufferPool.FrameBuffer values =
+                FrameBufferPool.get().obtain(width, height, GLES30.GL_RGBA32UI);
+        bind(values);
+        mConvert.onDraw(textureId, mGLCubeBuffer, textureBuffer);
+        return computeFromValues(values);
+    }
+
+    /**
+     * Computes the table of values which a filter has already rendered,
+     * skipping the conversion. Changes the framebuffer binding and the
+     * viewport.
+     *
+     * @param values a RGBA32UI target of the {@link FrameBufferPool}, which
+     *               is released
+     * @return a RGBA32UI target which holds the table and has to be released
+     *         by the caller
+     */
+    public FrameBufferPool.FrameBuffer computeFromValues(final FrameBufferPool.FrameBuffer values) {
+        FrameBufferPool pool = FrameBufferPool.get();
+        FrameBufferPool.FrameBuffer table =
+                addPrefixSums(pool, values, mHorizontalSums, values.getWidth());
+        return addPrefixSums(pool, table, mVerticalSums, values.getHeight());
+    }
+
+    private FrameBufferPool.FrameBuffer addPrefixSums(final FrameBufferPool pool,
+                                                      FrameBufferPool.FrameBuffer table,
+                                                      final Pass pass, final int size) {
+        for (int step = 1; step < size; step *= 4) {
+            FrameBufferPool.FrameBuffer output =
+                    pool.obtain(table.getWidth(), table.getHeight(), GLES30.GL_RGBA32UI);
+            bind(output);
+            pass.setStepSize(step);
+            pass.onDraw(table.getTextureId(), mGLCubeBuffer, mGLTextureBuffer);
+            pool.release(table);
+            table = output;
+        }
+        return table;
+    }
+
+    private static void bind(final FrameBufferPool.FrameBuffer target) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target.getFrameBufferId());
+        GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+    }
+
+    /**
+     * The conversion or one prefix sum pass.
+     */
+    private static class Pass extends GPUImageFilter {
+        private int mStepSizeLocation;
+
+        Pass(final String vertexShader, final String fragmentShader) {
+            super(vertexShader, fragmentShader);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mStepSizeLocation = GLES20.glGetUniformLocation(getProgram(), "stepSize");
+        }
+
+        void setStepSize(final int stepSize) {
+            setInteger(mStepSizeLocation, stepSize);
+        }
+    }
+}
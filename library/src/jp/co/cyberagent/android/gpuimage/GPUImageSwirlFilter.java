@@ -114,4 +114,10 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
         mCenter = center;
         setPoint(mCenterLocation, center);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The swirl is placed relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -292,4 +292,10 @@ public class GPUImageTestBlurFilter extends GPUImageTwoPassTextureSamplingFilter
     public float getHorizontalTexelOffsetRatio() {
         return blurSize;
     }
+
+    @Override
+    protected float getSampleReach() {
+        // At most GAUSSIAN_WEIGHT_NUMBERS - 1 steps to each side.
+        return 20f;
+    }
 }
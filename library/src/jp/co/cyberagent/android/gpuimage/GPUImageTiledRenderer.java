@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * Applies a filter to images larger than a texture or pbuffer may be, by
+ * rendering them in tiles.<br>
+ * <br>
+ * Each tile is extended by a halo of {@link GPUImageFilter#getSamplingRadius()}
+ * pixels on every side, so the pixels near its edges see the same neighbors
+ * as in the whole image. Only the inner part of each rendered tile is kept,
+ * which makes the stitched result free of seams. With a
+ * {@link BitmapRegionDecoder} as source and a {@link TileSink} which writes
+ * tiles out, the memory needed is bounded by the tile size and not by the
+ * image size.<br>
+ * <br>
+ * Filters with an unbounded sampling radius can only be applied to images
+ * which fit into a single tile.
+ */
+public class GPUImageTiledRenderer {
+    /** Supported as texture and pbuffer size by every OpenGL ES 2 device in practice. */
+    public static final int DEFAULT_TILE_SIZE = 2048;
+
+    private final GPUImageFilter mFilter;
+    private final OffscreenSession mSession;
+    private final boolean mOwnsSession;
+    private int mTileSize = DEFAULT_TILE_SIZE;
+
+    public GPUImageTiledRenderer(final GPUImageFilter filter) {
+        this(filter, new OffscreenSession(), true);
+    }
+
+    /**
+     * @param filter the filter to apply
+     * @param session the session to render the tiles with, not released by
+     *                {@link #release()}
+     */
+    public GPUImageTiledRenderer(final GPUImageFilter filter, final OffscreenSession session) {
+        this(filter, session, false);
+    }
+
+    private GPUImageTiledRenderer(final GPUImageFilter filter, final OffscreenSession session,
+                                  final boolean ownsSession) {
+        mFilter = filter;
+        mSession = session;
+        mOwnsSession = ownsSession;
+    }
+
+    /**
+     * @param tileSize the largest width and height of a tile including its
+     *                 halo, at most GL_MAX_TEXTURE_SIZE of the device
+     */
+    public void setTileSize(final int tileSize) {
+        // Even, so that full tiles never need to be widened by a pixel.
+        mTileSize = tileSize & ~1;
+    }
+
+    /**
+     * Applies the filter to a bitmap which is already in memory.
+     *
+     * @param bitmap the input, not recycled
+     * @return a new bitmap of the same size with the filter applied
+     */
+    public Bitmap render(final Bitmap bitmap) {
+        final Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        render(new TileSource() {
+            @Override
+            public int getWidth() {
+                return bitmap.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return bitmap.getHeight();
+            }
+
+            @Override
+            public Bitmap getRegion(final Rect rect, final Bitmap reuse) {
+                return Bitmap.createBitmap(bitmap, rect.left, rect.top, rect.width(), rect.height());
+            }
+        }, bitmap, new TileSink() {
+            private int[] mRows;
+
+            @Override
+            public void onTile(final Bitmap tile, final Rect inner, final int x, final int y) {
+                int width = inner.width();
+                int height = inner.height();
+                if (mRows == null || mRows.length < width * height) {
+                    mRows = new int[width * height];
+                }
+                tile.getPixels(mRows, 0, width, inner.left, inner.top, width, height);
+                output.setPixels(mRows, 0, width, x, y, width, height);
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Applies the filter to an image which is decoded one tile at a time.
+     *
+     * @param decoder the image
+     * @param sink gets the filtered tiles
+     */
+    public void render(final BitmapRegionDecoder decoder, final TileSink sink) {
+        render(new TileSource() {
+            @Override
+            public int getWidth() {
+                return decoder.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return decoder.getHeight();
+            }
+
+            @Override
+            public Bitmap getRegion(final Rect rect, final Bitmap reuse) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                // Mutable, so the next tile of the same size can decode into it.
+                options.inMutable = true;
+                options.inBitmap = reuse;
+                return decoder.decodeRegion(rect, options);
+            }
+        }, sink);
+    }
+
+    /**
+     * Applies the filter tile by tile, in rows from the top left.
+     *
+     * @param source the image
+     * @param sink gets the filtered tiles
+     */
+    public void render(final TileSource source, final TileSink sink) {
+        render(source, null, sink);
+    }
+
+    /**
+     * @param image a bitmap the source may return which must not be recycled
+     */
+    private void render(final TileSource source, final Bitmap image, final TileSink sink) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int halo = mFilter.getSamplingRadius();
+        if (halo == GPUImageFilter.SAMPLING_RADIUS_UNBOUNDED) {
+            if (width > mTileSize || height > mTileSize) {
+                throw new IllegalStateException("The filter depends on the whole image"
+                        + " and can not be applied to an image larger than a tile.");
+            }
+            halo = 0;
+        }
+        int step = mTileSize - 2 * halo;
+        if (step <= 0) {
+            throw new IllegalStateException("The sampling radius " + halo
+                    + " of the filter is too large for tiles of " + mTileSize + " pixels.");
+        }
+
+        Rect region = new Rect();
+        Rect inner = new Rect();
+        Bitmap input = null;
+        Bitmap output = null;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                int innerRight = Math.min(x + step, width);
+                int innerBottom = Math.min(y + step, height);
+                int left = Math.max(x - halo, 0);
+                int top = Math.max(y - halo, 0);
+                int right = Math.min(innerRight + halo, width);
+                int bottom = Math.min(innerBottom + halo, height);
+                if ((right - left) % 2 == 1) {
+                    // The renderer pads odd widths, which would scale the tile slightly.
+                    if (left > 0) {
+                        left--;
+                    } else if (right < width) {
+                        right++;
+                    }
+                }
+                region.set(left, top, right, bottom);
+                inner.set(x - left, y - top, innerRight - left, innerBottom - top);
+
+                Bitmap reuse = input != null && input.isMutable()
+                        && input.getWidth() == region.width()
+                        && input.getHeight() == region.height() ? input : null;
+                Bitmap previous = input;
+                input = source.getRegion(region, reuse);
+                if (previous != null && previous != input && previous != image) {
+                    previous.recycle();
+                }
+
+                Bitmap rendered = mSession.render(input, mFilter, output);
+                if (output != null && rendered != output) {
+                    output.recycle();
+                }
+                output = rendered;
+                sink.onTile(output, inner, x, y);
+            }
+        }
+        if (input != null && input != image) {
+            input.recycle();
+        }
+        if (output != null) {
+            output.recycle();
+        }
+    }
+
+    /**
+     * Releases the session if it was created by this renderer.
+     */
+    public void release() {
+        if (mOwnsSession) {
+            mSession.release();
+        }
+    }
+
+    /**
+     * Provides the regions of the input image.
+     */
+    public interface TileSource {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * @param rect the region to read
+         * @param reuse a mutable bitmap of the region size which may be
+         *              reused for the result, or null
+         * @return the region as ARGB_8888 bitmap, recycled by the renderer when
+         *         it is not reused for the next region
+         */
+        Bitmap getRegion(Rect rect, Bitmap reuse);
+    }
+
+    /**
+     * Receives the filtered tiles.
+     */
+    public interface TileSink {
+        /**
+         * @param tile the rendered tile including its halo, only valid during the call
+         * @param inner the part of the tile which belongs into the output
+         * @param x the left of the inner part in the output image
+         * @param y the top of the inner part in the output image
+         */
+        void onTile(Bitmap tile, Rect inner, int x, int y);
+    }
+}
@@ -99,6 +99,12 @@ public class GPUImageTransformFilter extends GPUImageFilter {
         super.onDraw(textureId, vertBuffer, textureBuffer);
     }
 
+    @Override
+    boolean canFlipOutput() {
+        // The vertices are flipped before the transform, which mirrors the result differently.
+        return false;
+    }
+
     public void setTransform3D(float[] transform3D) {
         this.transform3D = transform3D;
         setUniformMatrix4f(transformMatrixUniform, transform3D);
@@ -131,4 +137,10 @@ public class GPUImageTransformFilter extends GPUImageFilter {
     public boolean anchorTopLeft() {
         return anchorTopLeft;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The transform moves pixels across the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -128,4 +128,10 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
         mTexture2CoordinatesBuffer = bBuffer;
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The second image is stretched over the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
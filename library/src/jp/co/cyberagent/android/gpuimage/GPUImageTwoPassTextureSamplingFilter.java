@@ -17,7 +17,6 @@
 package jp.co.cyberagent.android.gpuimage;
 
 import android.graphics.PointF;
-import android.opengl.GLES20;
 
 public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter {
     public GPUImageTwoPassTextureSamplingFilter(String firstVertexShader, String firstFragmentShader,
@@ -34,14 +33,14 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
 
     protected void initWeights(int size, float[] weights){
         GPUImageFilter filter = mFilters.get(0);
-        int sampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "sampleSize");
-        int weightsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "weight");
+        int sampleSizeLoc = filter.getUniformLocation("sampleSize");
+        int weightsLoc = filter.getUniformLocation("weight");
         filter.setInteger(sampleSizeLoc, size);
         filter.setFloatArray(weightsLoc, weights);
 
         filter = mFilters.get(1);
-        sampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "sampleSize");
-        weightsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "weight");
+        sampleSizeLoc = filter.getUniformLocation("sampleSize");
+        weightsLoc = filter.getUniformLocation("weight");
         filter.setInteger(sampleSizeLoc, size);
         filter.setFloatArray(weightsLoc, weights);
     }
@@ -49,43 +48,43 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
     protected void initTexelOffsets() {
         float ratio = getHorizontalTexelOffsetRatio();
         GPUImageFilter filter = mFilters.get(0);
-        int texelWidthOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelWidthOffset");
-        int texelHeightOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelHeightOffset");
-        filter.setFloat(texelWidthOffsetLocation, ratio / mOutputHeight);
+        int texelWidthOffsetLocation = filter.getUniformLocation("texelWidthOffset");
+        int texelHeightOffsetLocation = filter.getUniformLocation("texelHeightOffset");
+        filter.setFloat(texelWidthOffsetLocation, ratio / mOutputWidth);
         filter.setFloat(texelHeightOffsetLocation, 0);
 
         ratio = getVerticalTexelOffsetRatio();
         filter = mFilters.get(1);
-        texelWidthOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelWidthOffset");
-        texelHeightOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelHeightOffset");
+        texelWidthOffsetLocation = filter.getUniformLocation("texelWidthOffset");
+        texelHeightOffsetLocation = filter.getUniformLocation("texelHeightOffset");
         filter.setFloat(texelWidthOffsetLocation, 0);
         filter.setFloat(texelHeightOffsetLocation, ratio / mOutputHeight);
     }
 
     protected void initStepAndWeight(float[] steps, float[] weights){
         GPUImageFilter filter = mFilters.get(0);
-        int stepsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "stepOffset");
-        int weightsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "standardGaussianWeights");
+        int stepsLoc = filter.getUniformLocation("stepOffset");
+        int weightsLoc = filter.getUniformLocation("standardGaussianWeights");
         filter.setFloatArray(stepsLoc, steps);
         filter.setFloatArray(weightsLoc, weights);
 
         filter = mFilters.get(1);
-        stepsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "stepOffset");
-        weightsLoc = GLES20.glGetUniformLocation(filter.getProgram(), "standardGaussianWeights");
+        stepsLoc = filter.getUniformLocation("stepOffset");
+        weightsLoc = filter.getUniformLocation("standardGaussianWeights");
         filter.setFloatArray(stepsLoc, steps);
         filter.setFloatArray(weightsLoc, weights);
     }
 
     protected void initSampleSize(int size, int optSize){
         GPUImageFilter filter = mFilters.get(0);
-        int sampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "sampleSize");
-        int optimizeSampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "optimizeSampleSize");
+        int sampleSizeLoc = filter.getUniformLocation("sampleSize");
+        int optimizeSampleSizeLoc = filter.getUniformLocation("optimizeSampleSize");
         filter.setInteger(sampleSizeLoc, size);
         filter.setInteger(optimizeSampleSizeLoc, optSize);
 
         filter = mFilters.get(1);
-        sampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "sampleSize");
-        optimizeSampleSizeLoc = GLES20.glGetUniformLocation(filter.getProgram(), "optimizeSampleSize");
+        sampleSizeLoc = filter.getUniformLocation("sampleSize");
+        optimizeSampleSizeLoc = filter.getUniformLocation("optimizeSampleSize");
         filter.setInteger(sampleSizeLoc, size);
         filter.setInteger(optimizeSampleSizeLoc, optSize);
     }
@@ -93,7 +92,7 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
     protected void updateUinformValue(String locationname, float value){
         for(int i =0; i< mFilters.size(); i++){
             GPUImageFilter filter = mFilters.get(i);
-            int valueLocation = GLES20.glGetUniformLocation(filter.getProgram(), locationname);
+            int valueLocation = filter.getUniformLocation(locationname);
             filter.setFloat(valueLocation, value);
         }
     }
@@ -101,7 +100,7 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
     protected void updateUinformValue(String locationname, PointF center){
         for(int i =0; i< mFilters.size(); i++){
             GPUImageFilter filter = mFilters.get(i);
-            int valueLocation = GLES20.glGetUniformLocation(filter.getProgram(), locationname);
+            int valueLocation = filter.getUniformLocation(locationname);
             filter.setPoint(valueLocation, center);
         }
     }
@@ -119,4 +118,23 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
     public float getHorizontalTexelOffsetRatio() {
         return 1f;
     }
+
+    /**
+     * @return how many texel offsets away from the center the shaders sample,
+     *         or a negative value if unknown
+     */
+    protected float getSampleReach() {
+        return -1f;
+    }
+
+    @Override
+    public int getSamplingRadius() {
+        float reach = getSampleReach();
+        if (reach < 0) {
+            return SAMPLING_RADIUS_UNBOUNDED;
+        }
+        float ratio = Math.max(getHorizontalTexelOffsetRatio(), getVerticalTexelOffsetRatio());
+        // One more pixel for the neighbor a bilinear sample between two texels reads.
+        return (int) Math.ceil(reach * ratio) + 1;
+    }
 }
@@ -35,6 +35,7 @@ import android.widget.ProgressBar;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.concurrent.Semaphore;
 
@@ -329,6 +330,21 @@ public class GPUImageView extends FrameLayout {
         return bitmap;
     }
 
+    /**
+     * Capture the current image with the size as it is displayed without
+     * blocking. Unlike {@link #capture()} this can be called from any thread.
+     *
+     * @param listener gets the current output as Bitmap on the OpenGL thread
+     */
+    public void capture(final GPUImage.ResponseListener<Bitmap> listener) {
+        mGPUImage.readPixels(new PixelReader.Callback() {
+            @Override
+            public void onPixelsRead(final ByteBuffer pixels, final int width, final int height) {
+                listener.response(PixelReader.toBitmap(pixels, width, height));
+            }
+        });
+    }
+
     /**
      * Pauses the GLSurfaceView.
      */
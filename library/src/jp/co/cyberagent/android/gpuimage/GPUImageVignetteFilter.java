@@ -105,4 +105,10 @@ public class GPUImageVignetteFilter extends GPUImageFilter {
         mVignetteEnd = vignetteEnd;
         setFloat(mVignetteEndLocation, mVignetteEnd);
     }
+
+    @Override
+    public int getSamplingRadius() {
+        // The vignette is placed relative to the whole image.
+        return SAMPLING_RADIUS_UNBOUNDED;
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import jp.co.cyberagent.android.gpuimage.util.YuvConverter;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Lets a filter read a NV21 frame instead of a RGBA texture, so camera frames
+ * do not need to be converted on the CPU.<br>
+ * <br>
+ * The luma plane is bound as <code>inputImageTexture</code> (GL_LUMINANCE) and
+ * the interleaved VU plane as <code>inputImageTextureChroma</code>
+ * (GL_LUMINANCE_ALPHA). The fragment shader of the filter is rewritten so
+ * that every <code>texture2D(inputImageTexture, ...)</code> converts the
+ * sample to RGB.
+ */
+final class NV21Input {
+    static final String CHROMA_TEXTURE_UNIFORM = "inputImageTextureChroma";
+    static final String COLOR_MATRIX_UNIFORM = "nv21ColorMatrix";
+    static final String OFFSET_UNIFORM = "nv21Offset";
+
+    private static final Pattern INPUT_TEXTURE_DECLARATION = Pattern.compile(
+            "uniform\\s+(?:(?:lowp|mediump|highp)\\s+)?sampler2D\\s+inputImageTexture\\s*;");
+    private static final Pattern INPUT_TEXTURE_SAMPLE = Pattern.compile(
+            "texture2D\\s*\\(\\s*inputImageTexture\\s*,");
+
+    private static final String SAMPLE_FUNCTION = "\n" +
+            "uniform sampler2D " + CHROMA_TEXTURE_UNIFORM + ";\n" +
+            "uniform mediump mat3 " + COLOR_MATRIX_UNIFORM + ";\n" +
+            "uniform mediump vec3 " + OFFSET_UNIFORM + ";\n" +
+            "\n" +
+            "lowp vec4 sampleNV21(highp vec2 coordinate)\n" +
+            "{\n" +
+            "    mediump vec3 yuv = vec3(texture2D(inputImageTexture, coordinate).r,\n" +
+            "            texture2D(" + CHROMA_TEXTURE_UNIFORM + ", coordinate).ar) - " + OFFSET_UNIFORM + ";\n" +
+            "    return vec4(clamp(" + COLOR_MATRIX_UNIFORM + " * yuv, 0.0, 1.0), 1.0);\n" +
+            "}\n";
+
+    private NV21Input() {
+    }
+
+    /**
+     * @return true if the shader samples the input in a way which can be rewritten
+     */
+    static boolean canRewrite(final String fragmentShader) {
+        return INPUT_TEXTURE_DECLARATION.matcher(fragmentShader).find();
+    }
+
+    /**
+     * @return the shader with the input sampled from a NV21 frame
+     */
+    static String rewrite(final String fragmentShader) {
+        String shader = INPUT_TEXTURE_SAMPLE.matcher(fragmentShader).replaceAll("sampleNV21(");
+        Matcher declaration = INPUT_TEXTURE_DECLARATION.matcher(shader);
+        if (!declaration.find()) {
+            return fragmentShader;
+        }
+        return shader.substring(0, declaration.end()) + SAMPLE_FUNCTION
+                + shader.substring(declaration.end());
+    }
+
+    /**
+     * Computes the uniforms which implement the color space of a converter on
+     * normalized texture values.
+     *
+     * @param converter the converter
+     * @param colorMatrix receives the column-major 3x3 matrix applied to (Y, U, V)
+     * @param offset receives the value subtracted from (Y, U, V) before
+     */
+    static void getColorSpace(final YuvConverter converter, final float[] colorMatrix,
+                              final float[] offset) {
+        int[] c = converter.getCoefficients();
+        float scale = 1.0f / 65536.0f;
+        colorMatrix[0] = c[1] * scale;
+        colorMatrix[1] = c[1] * scale;
+        colorMatrix[2] = c[1] * scale;
+        colorMatrix[3] = 0.0f;
+        colorMatrix[4] = c[3] * scale;
+        colorMatrix[5] = c[5] * scale;
+        colorMatrix[6] = c[2] * scale;
+        colorMatrix[7] = c[4] * scale;
+        colorMatrix[8] = 0.0f;
+        offset[0] = c[0] / 255.0f;
+        offset[1] = 128.0f / 255.0f;
+        offset[2] = 128.0f / 255.0f;
+    }
+}
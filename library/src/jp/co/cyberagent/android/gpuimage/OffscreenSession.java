@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders bitmaps offscreen with one EGL context which is kept alive between
+ * calls, for applying filters to many images in a row.<br>
+ * <br>
+ * The context lives on a thread owned by the session. The pbuffer only grows,
+ * smaller images are rendered into its corner. The filter stays initialized
+ * until another filter is used or the session is released, so repeated calls
+ * with the same filter neither compile nor link anything.
+ */
+public class OffscreenSession {
+    private final ExecutorService mExecutor;
+    private PixelBuffer mPixelBuffer;
+    private GPUImageRenderer mRenderer;
+    private GPUImageFilter mFilter;
+    private int mImageWidth;
+    private int mImageHeight;
+    private GPUImage.ScaleType mScaleType = GPUImage.ScaleType.CENTER_CROP;
+    private Rotation mRotation = Rotation.NORMAL;
+    private boolean mFlipHorizontal;
+    private boolean mFlipVertical;
+    private boolean mReleased;
+
+    public OffscreenSession() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "OffscreenSession");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setScaleType(final GPUImage.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    public void setRotation(final Rotation rotation, final boolean flipHorizontal,
+                            final boolean flipVertical) {
+        mRotation = rotation;
+        mFlipHorizontal = flipHorizontal;
+        mFlipVertical = flipVertical;
+    }
+
+    /**
+     * Applies a filter to a bitmap. Blocks until the result is read back, also
+     * if the calling thread is interrupted, whose interrupt status is then set
+     * again on return.
+     *
+     * @param bitmap the input, not recycled
+     * @param filter the filter, initialized on the session context until
+     *               another filter is used or {@link #releaseFilter()}
+     * @return a new bitmap with the filter applied
+     */
+    public Bitmap render(final Bitmap bitmap, final GPUImageFilter filter) {
+        return render(bitmap, filter, null);
+    }
+
+    /**
+     * Applies a filter to a bitmap. Blocks until the result is read back, like
+     * {@link #render(Bitmap, GPUImageFilter)}.
+     *
+     * @param bitmap the input, not recycled
+     * @param filter the filter
+     * @param reuse a mutable ARGB_8888 bitmap of the size of the input which
+     *              receives the result, or null
+     * @return reuse, or a new bitmap if it could not be used
+     */
+    public Bitmap render(final Bitmap bitmap, final GPUImageFilter filter, final Bitmap reuse) {
+        return call(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                int width = bitmap.getWidth();
+                int height = bitmap.getHeight();
+                if (mPixelBuffer == null) {
+                    mRenderer = new GPUImageRenderer(filter);
+                    mFilter = filter;
+                    mPixelBuffer = new PixelBuffer(width, height);
+                    mPixelBuffer.setRenderer(mRenderer);
+                } else {
+                    if (filter != mFilter) {
+                        mRenderer.setFilter(filter);
+                        mFilter = filter;
+                    }
+                    mPixelBuffer.setSize(width, height);
+                }
+                if (width != mImageWidth || height != mImageHeight) {
+                    // The input texture is only updated in place if the size matches.
+                    mRenderer.deleteImage();
+                    mImageWidth = width;
+                    mImageHeight = height;
+                }
+                mRenderer.setScaleType(mScaleType);
+                mRenderer.setRotation(mRotation, mFlipHorizontal, mFlipVertical);
+                mRenderer.setImageBitmap(bitmap, false);
+                return mPixelBuffer.drawBitmapOnce(reuse);
+            }
+        });
+    }
+
+    /**
+     * Destroys the filter on the session context, e.g. before it is drawn on
+     * another context. It is initialized again by the next render.
+     */
+    public void releaseFilter() {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (mFilter != null) {
+                    // Swapping in a pass-through filter destroys the current one right away.
+                    mRenderer.setFilter(new GPUImageFilter());
+                    mRenderer.getRunOnDrawQueue().runAll();
+                    mFilter = null;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Destroys the filter and the EGL context and stops the session thread.
+     */
+    public void release() {
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        Future<?> future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mPixelBuffer != null) {
+                    if (mFilter != null) {
+                        mFilter.destroy();
+                    }
+                    mRenderer.deleteImage();
+                    mPixelBuffer.destroy();
+                    mPixelBuffer = null;
+                    mRenderer = null;
+                    mFilter = null;
+                }
+            }
+        });
+        mExecutor.shutdown();
+        getUninterruptibly(future);
+    }
+
+    private <T> T call(final Callable<T> callable) {
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("The session was released.");
+            }
+        }
+        return getUninterruptibly(mExecutor.submit(callable));
+    }
+
+    /**
+     * Waits for a task on the session thread even if the caller is
+     * interrupted, since the task may still use the caller's bitmaps, and
+     * interrupts the caller again afterwards.
+     */
+    private static <T> T getUninterruptibly(final Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
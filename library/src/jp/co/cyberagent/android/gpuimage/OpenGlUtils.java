@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.Buffer;
 import java.nio.IntBuffer;
 
 import android.content.Context;
@@ -33,6 +34,15 @@ import android.util.Log;
 public class OpenGlUtils {
     public static final int NO_TEXTURE = -1;
 
+    /**
+     * @return true if the current context supports OpenGL ES 3.0 or later
+     */
+    public static boolean isOpenGLES3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && !version.startsWith("OpenGL ES 2.");
+    }
+
     public static int loadTexture(final Bitmap img, final int usedTexId) {
         return loadTexture(img, usedTexId, true);
     }
@@ -64,6 +74,20 @@ public class OpenGlUtils {
     }
 
     public static int loadTexture(final IntBuffer data, final Size size, final int usedTexId) {
+        return loadTexture(data, size.width, size.height, usedTexId);
+    }
+
+    public static int loadTexture(final IntBuffer data, final int width, final int height,
+                                  final int usedTexId) {
+        return loadTexture(data, width, height, GLES20.GL_RGBA, usedTexId);
+    }
+
+    /**
+     * Uploads unsigned bytes of the given format, e.g. GL_LUMINANCE for a plane
+     * of a YUV frame. Rows have to be aligned according to GL_UNPACK_ALIGNMENT.
+     */
+    public static int loadTexture(final Buffer data, final int width, final int height,
+                                  final int format, final int usedTexId) {
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
@@ -76,12 +100,12 @@ public class OpenGlUtils {
                     GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size.width, size.height,
-                    0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height,
+                    0, format, GLES20.GL_UNSIGNED_BYTE, data);
         } else {
             GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size.width,
-                    size.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                    height, format, GLES20.GL_UNSIGNED_BYTE, data);
             textures[0] = usedTexId;
         }
         return textures[0];
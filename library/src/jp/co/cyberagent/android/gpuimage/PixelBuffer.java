@@ -22,6 +22,8 @@ import static javax.microedition.khronos.egl.EGL10.EGL_WIDTH;
 import static javax.microedition.khronos.opengles.GL10.GL_RGBA;
 import static javax.microedition.khronos.opengles.GL10.GL_UNSIGNED_BYTE;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 import javax.microedition.khronos.egl.EGL10;
@@ -41,7 +43,11 @@ public class PixelBuffer {
 
     GLSurfaceView.Renderer mRenderer; // borrow this interface
     int mWidth, mHeight;
+    int mSurfaceWidth, mSurfaceHeight;
     Bitmap mBitmap;
+    ByteBuffer mPixels;
+    int[] mFlipPixels;
+    int[] mFlipRow;
 
     EGL10 mEGL;
     EGLDisplay mEGLDisplay;
@@ -56,6 +62,8 @@ public class PixelBuffer {
     public PixelBuffer(final int width, final int height) {
         mWidth = width;
         mHeight = height;
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
 
         int[] version = new int[2];
         int[] attribList = new int[] {
@@ -91,6 +99,10 @@ public class PixelBuffer {
 
     public void setRenderer(final GLSurfaceView.Renderer renderer) {
         mRenderer = renderer;
+        if (mRenderer instanceof GPUImageRenderer) {
+            // Draw upside down, glReadPixels then returns the rows in Bitmap order.
+            ((GPUImageRenderer) mRenderer).setFlipOutputVertically(true);
+        }
 
         // Does this thread own the OpenGL context?
         if (!Thread.currentThread().getName().equals(mThreadOwner)) {
@@ -103,7 +115,53 @@ public class PixelBuffer {
         mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
     }
 
+    /**
+     * Changes the size of the rendered frames, keeping the context. The pbuffer
+     * is only recreated if it is too small, smaller frames are rendered into
+     * its lower left corner.
+     *
+     * @param width the new width
+     * @param height the new height
+     */
+    public void setSize(final int width, final int height) {
+        if (!Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "setSize: This thread does not own the OpenGL context.");
+            return;
+        }
+        if (width > mSurfaceWidth || height > mSurfaceHeight) {
+            mSurfaceWidth = Math.max(width, mSurfaceWidth);
+            mSurfaceHeight = Math.max(height, mSurfaceHeight);
+            int[] attribList = new int[] {
+                    EGL_WIDTH, mSurfaceWidth,
+                    EGL_HEIGHT, mSurfaceHeight,
+                    EGL_NONE
+            };
+            EGLSurface surface = mEGL.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig, attribList);
+            mEGL.eglMakeCurrent(mEGLDisplay, surface, surface, mEGLContext);
+            mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
+            mEGLSurface = surface;
+        }
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            if (mRenderer != null) {
+                mRenderer.onSurfaceChanged(mGL, mWidth, mHeight);
+            }
+        }
+    }
+
     public Bitmap getBitmap() {
+        return getBitmap(null);
+    }
+
+    /**
+     * Renders a frame into the given bitmap. Reusing the same bitmap for every
+     * frame of a batch avoids allocating a new full size bitmap each time.
+     *
+     * @param reuse a mutable ARGB_8888 bitmap of the buffer size, or null
+     * @return reuse, or a new bitmap if it could not be used
+     */
+    public Bitmap getBitmap(final Bitmap reuse) {
         // Do we have a renderer?
         if (mRenderer == null) {
             Log.e(TAG, "getBitmap: Renderer was not set.");
@@ -120,13 +178,30 @@ public class PixelBuffer {
         // work if this is only called once)
         mRenderer.onDrawFrame(mGL);
         mRenderer.onDrawFrame(mGL);
-        convertToBitmap();
+        convertToBitmap(reuse);
+        return mBitmap;
+    }
+
+    /**
+     * Like {@link #getBitmap(Bitmap)}, but draws only once. Only safe if no
+     * task queued by the draw itself is needed for the frame.
+     */
+    Bitmap drawBitmapOnce(final Bitmap reuse) {
+        if (mRenderer == null
+                || !Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "drawBitmapOnce: No renderer or wrong thread.");
+            return null;
+        }
+        mRenderer.onDrawFrame(mGL);
+        convertToBitmap(reuse);
         return mBitmap;
     }
 
     public void destroy() {
         mRenderer.onDrawFrame(mGL);
         mRenderer.onDrawFrame(mGL);
+        FrameBufferPool.destroyCurrent();
+        ProgramCache.destroyCurrent();
         mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
                 EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
 
@@ -188,23 +263,44 @@ public class PixelBuffer {
                 attribute, value) ? value[0] : 0;
     }
 
-    private void convertToBitmap() {
-        int[] iat = new int[mWidth * mHeight];
-        IntBuffer ib = IntBuffer.allocate(mWidth * mHeight);
-        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
-        int[] ia = ib.array();
-
-        //Stupid !
-        // Convert upside down mirror-reversed image to right-side up normal
-        // image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                iat[(mHeight - i - 1) * mWidth + j] = ia[i * mWidth + j];
+    private void convertToBitmap(final Bitmap reuse) {
+        if (reuse != null && reuse.isMutable() && !reuse.isRecycled()
+                && reuse.getConfig() == Bitmap.Config.ARGB_8888
+                && reuse.getWidth() == mWidth && reuse.getHeight() == mHeight) {
+            mBitmap = reuse;
+        } else {
+            mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        if (mRenderer instanceof GPUImageRenderer
+                && ((GPUImageRenderer) mRenderer).isOutputFlipped()) {
+            // The rows are already in Bitmap order, so they can be copied as they are.
+            int size = mWidth * mHeight * 4;
+            if (mPixels == null || mPixels.capacity() < size) {
+                mPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
             }
+            mPixels.clear();
+            mPixels.limit(size);
+            mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, mPixels);
+            mBitmap.copyPixelsFromBuffer(mPixels);
+            return;
         }
-        
 
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        // Convert the upside down image to right-side up one row at a time.
+        if (mFlipPixels == null || mFlipPixels.length < mWidth * mHeight) {
+            mFlipPixels = new int[mWidth * mHeight];
+        }
+        if (mFlipRow == null || mFlipRow.length < mWidth) {
+            mFlipRow = new int[mWidth];
+        }
+        IntBuffer ib = IntBuffer.wrap(mFlipPixels, 0, mWidth * mHeight);
+        mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
+        for (int top = 0, bottom = (mHeight - 1) * mWidth; top < bottom;
+                top += mWidth, bottom -= mWidth) {
+            System.arraycopy(mFlipPixels, top, mFlipRow, 0, mWidth);
+            System.arraycopy(mFlipPixels, bottom, mFlipPixels, top, mWidth);
+            System.arraycopy(mFlipRow, 0, mFlipPixels, bottom, mWidth);
+        }
+        mBitmap.copyPixelsFromBuffer(ib);
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Reads the current framebuffer back without waiting for the GPU.<br>
+ * <br>
+ * On OpenGL ES 3 every read goes into one of a ring of pixel pack buffers and
+ * is handed to its callback once the GPU finished it, which is usually one or
+ * two frames later. {@link #poll()} has to be called regularly, e.g. once per
+ * frame, to deliver finished reads. On OpenGL ES 2 the pixels are read
+ * synchronously and the callback is called right away.<br>
+ * <br>
+ * All methods have to be called on the OpenGL thread.
+ */
+public class PixelReader {
+    public static final int DEFAULT_BUFFER_COUNT = 2;
+
+    private final Slot[] mSlots;
+    private int mNextSlot;
+    private int mOldestSlot;
+    private int mPendingCount;
+    private Boolean mAsync;
+    private ByteBuffer mSyncPixels;
+
+    public PixelReader() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount the number of reads which can be in flight at once
+     */
+    public PixelReader(final int bufferCount) {
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("bufferCount must be at least 1");
+        }
+        mSlots = new Slot[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            mSlots[i] = new Slot();
+        }
+    }
+
+    /**
+     * @return true if reads are asynchronous on the current context
+     */
+    public boolean isAsync() {
+        if (mAsync == null) {
+            mAsync = OpenGlUtils.isOpenGLES3();
+        }
+        return mAsync;
+    }
+
+    /**
+     * Starts reading the lower left corner of the bound framebuffer. If all
+     * buffers are in flight, the oldest read is finished first.
+     *
+     * @param width the width to read
+     * @param height the height to read
+     * @param callback gets the pixels, called on the OpenGL thread
+     */
+    public void read(final int width, final int height, final Callback callback) {
+        if (!isAsync()) {
+            int size = width * height * 4;
+            if (mSyncPixels == null || mSyncPixels.capacity() < size) {
+                mSyncPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            mSyncPixels.clear();
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mSyncPixels);
+            mSyncPixels.limit(size);
+            callback.onPixelsRead(mSyncPixels, width, height);
+            return;
+        }
+
+        if (mPendingCount == mSlots.length) {
+            finish(mSlots[mOldestSlot], true);
+        }
+        Slot slot = mSlots[mNextSlot];
+        mNextSlot = (mNextSlot + 1) % mSlots.length;
+        mPendingCount++;
+
+        int size = width * height * 4;
+        if (slot.mBufferId == 0) {
+            int[] buffers = new int[1];
+            GLES30.glGenBuffers(1, buffers, 0);
+            slot.mBufferId = buffers[0];
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBufferId);
+        if (slot.mCapacity < size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            slot.mCapacity = size;
+        }
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        slot.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        slot.mWidth = width;
+        slot.mHeight = height;
+        slot.mCallback = callback;
+        // Make sure the fence is submitted, otherwise polling it might never succeed.
+        GLES20.glFlush();
+    }
+
+    /**
+     * Delivers all reads which the GPU finished, oldest first.
+     *
+     * @return true if reads are still in flight
+     */
+    public boolean poll() {
+        while (mPendingCount > 0 && finish(mSlots[mOldestSlot], false)) {
+            // Keep going, the next read might be done as well.
+        }
+        return mPendingCount > 0;
+    }
+
+    /**
+     * Waits for and delivers all reads in flight.
+     */
+    public void finishAll() {
+        while (mPendingCount > 0) {
+            finish(mSlots[mOldestSlot], true);
+        }
+    }
+
+    /**
+     * @return the number of reads in flight
+     */
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * Drops all reads in flight and deletes the buffers.
+     */
+    public void destroy() {
+        for (Slot slot : mSlots) {
+            if (slot.mFence != 0) {
+                GLES30.glDeleteSync(slot.mFence);
+            }
+            if (slot.mBufferId != 0) {
+                GLES30.glDeleteBuffers(1, new int[]{slot.mBufferId}, 0);
+            }
+            slot.clear();
+            slot.mBufferId = 0;
+            slot.mCapacity = 0;
+        }
+        mPendingCount = 0;
+        mNextSlot = 0;
+        mOldestSlot = 0;
+        mSyncPixels = null;
+    }
+
+    private boolean finish(final Slot slot, final boolean wait) {
+        if (!wait) {
+            int status = GLES30.glClientWaitSync(slot.mFence, 0, 0);
+            if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+                return false;
+            }
+        }
+        GLES30.glDeleteSync(slot.mFence);
+        int size = slot.mWidth * slot.mHeight * 4;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.mBufferId);
+        // Mapping waits for the read if the fence was not signaled yet.
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, size, GLES30.GL_MAP_READ_BIT);
+        Callback callback = slot.mCallback;
+        int width = slot.mWidth;
+        int height = slot.mHeight;
+        slot.clear();
+        mOldestSlot = (mOldestSlot + 1) % mSlots.length;
+        mPendingCount--;
+        try {
+            if (pixels != null) {
+                callback.onPixelsRead(pixels.order(ByteOrder.nativeOrder()), width, height);
+            }
+        } finally {
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Copies pixels as delivered to a {@link Callback} into a new bitmap,
+     * turning them right-side up.
+     *
+     * @param pixels the pixels, bottom row first
+     * @param width the width of the pixels
+     * @param height the height of the pixels
+     * @return a new ARGB_8888 bitmap
+     */
+    public static Bitmap toBitmap(final ByteBuffer pixels, final int width, final int height) {
+        int[] rows = new int[width * height];
+        IntBuffer source = pixels.asIntBuffer();
+        for (int y = 0; y < height; y++) {
+            source.position(y * width);
+            source.get(rows, (height - 1 - y) * width, width);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(rows));
+        return bitmap;
+    }
+
+    /**
+     * Receives the pixels of a read.
+     */
+    public interface Callback {
+        /**
+         * @param pixels RGBA pixels, bottom row first, only valid during the call
+         * @param width the width of the pixels
+         * @param height the height of the pixels
+         */
+        void onPixelsRead(ByteBuffer pixels, int width, int height);
+    }
+
+    private static class Slot {
+        private int mBufferId;
+        private int mCapacity;
+        private long mFence;
+        private int mWidth;
+        private int mHeight;
+        private Callback mCallback;
+
+        private void clear() {
+            mFence = 0;
+            mCallback = null;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import jp.co.cyberagent.android.gpuimage.util.ProgramBinaryCache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Cache of linked shader programs, one per EGL context, keyed by the vertex
+ * and fragment shader source.<br>
+ * <br>
+ * Uniform values belong to a program, so a program is only handed to one
+ * filter at a time. Released programs are kept idle and given to the next
+ * filter with the same sources instead of compiling them again, e.g. when
+ * switching back and forth between filters. Compiled shaders are reference
+ * counted and shared between programs, so the common vertex shaders are only
+ * compiled once.<br>
+ * <br>
+ * If a {@link ProgramBinaryCache} is set and the context supports OpenGL ES
+ * 3.0, linked programs are also stored on disk and later loaded from there
+ * instead of being compiled, falling back to compiling if the driver rejects
+ * the binary.<br>
+ * <br>
+ * All methods have to be called on the OpenGL thread which owns the context.
+ */
+public class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final int DEFAULT_MAX_IDLE_PROGRAMS = 32;
+
+    private static final Map<EGLContext, ProgramCache> sCaches =
+            new HashMap<EGLContext, ProgramCache>();
+    private static ProgramBinaryCache sBinaryCache;
+
+    private final Map<String, Shader> mShaders = new HashMap<String, Shader>();
+    private final Map<Integer, Program> mLeasedPrograms = new HashMap<Integer, Program>();
+    private final LinkedList<Program> mIdlePrograms = new LinkedList<Program>();
+    private int mMaxIdlePrograms = DEFAULT_MAX_IDLE_PROGRAMS;
+    private int mHitCount;
+    private int mMissCount;
+    private String mDriver;
+    private boolean mSupportsBinaries;
+
+    private ProgramCache() {
+    }
+
+    /**
+     * Sets the persistent cache used for program binaries of all contexts.
+     *
+     * @param binaryCache the cache, or null to always compile
+     */
+    public static void setBinaryCache(final ProgramBinaryCache binaryCache) {
+        synchronized (sCaches) {
+            sBinaryCache = binaryCache;
+        }
+    }
+
+    private static ProgramBinaryCache getBinaryCache() {
+        synchronized (sCaches) {
+            return sBinaryCache;
+        }
+    }
+
+    /**
+     * Gets the cache of the EGL context current on the calling thread.
+     *
+     * @return the cache of the current context
+     */
+    public static ProgramCache get() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        synchronized (sCaches) {
+            ProgramCache cache = sCaches.get(context);
+            if (cache == null) {
+                cache = new ProgramCache();
+                sCaches.put(context, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forgets the cache of the current EGL context without deleting anything.
+     * Has to be called when a context was (re)created, because a new context
+     * can get the handle of a destroyed one and the old names are invalid.
+     */
+    public static void onContextCreated() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        synchronized (sCaches) {
+            sCaches.remove(context);
+        }
+    }
+
+    /**
+     * Deletes all idle programs of the current EGL context and forgets its
+     * cache. Has to be called before the context is destroyed.
+     */
+    public static void destroyCurrent() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        ProgramCache cache;
+        synchronized (sCaches) {
+            cache = sCaches.remove(context);
+        }
+        if (cache != null) {
+            cache.purge();
+        }
+    }
+
+    /**
+     * Takes a program for the given sources from the cache, compiling and
+     * linking it if no idle one exists.
+     *
+     * @param vertexSource the vertex shader source
+     * @param fragmentSource the fragment shader source
+     * @return the program, exclusively owned until it is released, or 0 on failure
+     */
+    public int obtain(final String vertexSource, final String fragmentSource) {
+        String key = getKey(vertexSource, fragmentSource);
+        for (Iterator<Program> it = mIdlePrograms.iterator(); it.hasNext(); ) {
+            Program program = it.next();
+            if (program.mKey.equals(key)) {
+                it.remove();
+                mLeasedPrograms.put(program.mId, program);
+                mHitCount++;
+                return program.mId;
+            }
+        }
+
+        mMissCount++;
+        Program program = createProgram(key, vertexSource, fragmentSource);
+        if (program == null) {
+            return 0;
+        }
+        mLeasedPrograms.put(program.mId, program);
+        return program.mId;
+    }
+
+    /**
+     * Gets the active uniforms of a program, reading them only the first time
+     * for each program.
+     *
+     * @param programId a program obtained by {@link #obtain(String, String)}
+     * @return the uniforms of the program
+     */
+    public UniformSchema getUniformSchema(final int programId) {
+        Program program = mLeasedPrograms.get(programId);
+        if (program == null) {
+            return UniformSchema.read(programId);
+        }
+        if (program.mUniformSchema == null) {
+            program.mUniformSchema = UniformSchema.read(programId);
+        }
+        return program.mUniformSchema;
+    }
+
+    /**
+     * Returns a program obtained by {@link #obtain(String, String)} to the cache.
+     *
+     * @param programId the program, 0 is ignored
+     */
+    public void release(final int programId) {
+        if (programId == 0) {
+            return;
+        }
+        Program program = mLeasedPrograms.remove(programId);
+        if (program == null) {
+            Log.w(TAG, "Released program " + programId + " which was not obtained from the cache");
+            return;
+        }
+        mIdlePrograms.addLast(program);
+        while (mIdlePrograms.size() > mMaxIdlePrograms) {
+            deleteProgram(mIdlePrograms.removeFirst());
+        }
+    }
+
+    /**
+     * Deletes all idle programs and the shaders only they used.
+     */
+    public void purge() {
+        for (Program program : mIdlePrograms) {
+            deleteProgram(program);
+        }
+        mIdlePrograms.clear();
+    }
+
+    /**
+     * Sets how many released programs are kept, the least recently released
+     * ones are deleted first.
+     *
+     * @param maxIdlePrograms the maximum number of idle programs
+     */
+    public void setMaxIdlePrograms(final int maxIdlePrograms) {
+        mMaxIdlePrograms = maxIdlePrograms;
+        while (mIdlePrograms.size() > mMaxIdlePrograms) {
+            deleteProgram(mIdlePrograms.removeFirst());
+        }
+    }
+
+    /**
+     * @return how often an idle program was reused
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how often a program had to be compiled and linked
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of programs alive on the GPU, idle or in use
+     */
+    public int getProgramCount() {
+        return mLeasedPrograms.size() + mIdlePrograms.size();
+    }
+
+    /**
+     * @return the number of compiled shaders alive on the GPU
+     */
+    public int getShaderCount() {
+        return mShaders.size();
+    }
+
+    private static String getKey(final String vertexSource, final String fragmentSource) {
+        return vertexSource + '\0' + fragmentSource;
+    }
+
+    private Program createProgram(final String key, final String vertexSource,
+                                  final String fragmentSource) {
+        ProgramBinaryCache binaryCache = getBinaryCache();
+        if (binaryCache != null && supportsBinaries()) {
+            Program program = loadProgramBinary(binaryCache, key, vertexSource, fragmentSource);
+            if (program != null) {
+                return program;
+            }
+        } else {
+            binaryCache = null;
+        }
+
+        Shader vertexShader = obtainShader(vertexSource, GLES20.GL_VERTEX_SHADER);
+        if (vertexShader == null) {
+            Log.d("Load Program", "Vertex Shader Failed");
+            return null;
+        }
+        Shader fragmentShader = obtainShader(fragmentSource, GLES20.GL_FRAGMENT_SHADER);
+        if (fragmentShader == null) {
+            Log.d("Load Program", "Fragment Shader Failed");
+            releaseShader(vertexShader);
+            return null;
+        }
+
+        int programId = GLES20.glCreateProgram();
+        GLES20.glAttachShader(programId, vertexShader.mId);
+        GLES20.glAttachShader(programId, fragmentShader.mId);
+        if (binaryCache != null) {
+            GLES30.glProgramParameteri(programId,
+                    GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+        GLES20.glLinkProgram(programId);
+
+        int[] link = new int[1];
+        GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, link, 0);
+        if (link[0] <= 0) {
+            Log.d("Load Program", "Linking Failed");
+            GLES20.glDeleteProgram(programId);
+            releaseShader(vertexShader);
+            releaseShader(fragmentShader);
+            return null;
+        }
+        if (binaryCache != null) {
+            storeProgramBinary(binaryCache, programId, vertexSource, fragmentSource);
+        }
+        return new Program(programId, key, vertexShader, fragmentShader);
+    }
+
+    private boolean supportsBinaries() {
+        if (mDriver == null) {
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            mDriver = GLES20.glGetString(GLES20.GL_RENDERER) + "; " + version;
+            // Android only exposes program binaries through the OpenGL ES 3.0 API.
+            int[] formats = new int[1];
+            if (OpenGlUtils.isOpenGLES3()) {
+                GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+            }
+            mSupportsBinaries = formats[0] > 0;
+        }
+        return mSupportsBinaries;
+    }
+
+    private Program loadProgramBinary(final ProgramBinaryCache binaryCache, final String key,
+                                      final String vertexSource, final String fragmentSource) {
+        ProgramBinaryCache.Binary binary = binaryCache.load(mDriver, vertexSource, fragmentSource);
+        if (binary == null) {
+            return null;
+        }
+        int programId = GLES20.glCreateProgram();
+        byte[] data = binary.getData();
+        GLES30.glProgramBinary(programId, binary.getFormat(), ByteBuffer.wrap(data), data.length);
+        int[] link = new int[1];
+        GLES20.glGetProgramiv(programId, GLES20.GL_LINK_STATUS, link, 0);
+        if (link[0] <= 0) {
+            // The driver may reject binaries at any time, e.g. after an update.
+            GLES20.glDeleteProgram(programId);
+            binaryCache.remove(mDriver, vertexSource, fragmentSource);
+            return null;
+        }
+        return new Program(programId, key, null, null);
+    }
+
+    private void storeProgramBinary(final ProgramBinaryCache binaryCache, final int programId,
+                                    final String vertexSource, final String fragmentSource) {
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(programId, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]);
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(programId, length[0], length, 0, format, 0, buffer);
+        byte[] data = new byte[length[0]];
+        buffer.get(data);
+        binaryCache.store(mDriver, vertexSource, fragmentSource,
+                new ProgramBinaryCache.Binary(format[0], data));
+    }
+
+    private void deleteProgram(final Program program) {
+        GLES20.glDeleteProgram(program.mId);
+        // Programs loaded from a binary have no shaders.
+        if (program.mVertexShader != null) {
+            releaseShader(program.mVertexShader);
+            releaseShader(program.mFragmentShader);
+        }
+    }
+
+    private Shader obtainShader(final String source, final int type) {
+        String key = type + "\0" + source;
+        Shader shader = mShaders.get(key);
+        if (shader == null) {
+            int shaderId = OpenGlUtils.loadShader(source, type);
+            if (shaderId == 0) {
+                return null;
+            }
+            shader = new Shader(shaderId, key);
+            mShaders.put(key, shader);
+        }
+        shader.mRefCount++;
+        return shader;
+    }
+
+    private void releaseShader(final Shader shader) {
+        shader.mRefCount--;
+        if (shader.mRefCount == 0) {
+            mShaders.remove(shader.mKey);
+            // Attached shaders are only flagged and go away with their last program.
+            GLES20.glDeleteShader(shader.mId);
+        }
+    }
+
+    private static class Shader {
+        private final int mId;
+        private final String mKey;
+        private int mRefCount;
+
+        private Shader(final int id, final String key) {
+            mId = id;
+            mKey = key;
+        }
+    }
+
+    private static class Program {
+        private final int mId;
+        private final String mKey;
+        private final Shader mVertexShader;
+        private final Shader mFragmentShader;
+        private UniformSchema mUniformSchema;
+
+        private Program(final int id, final String key, final Shader vertexShader,
+                        final Shader fragmentShader) {
+            mId = id;
+            mKey = key;
+            mVertexShader = vertexShader;
+            mFragmentShader = fragmentShader;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The active uniforms of a linked program with their locations and types,
+ * resolved once per program by {@link ProgramCache} and shared by all filters
+ * which use the program.
+ */
+public class UniformSchema {
+    private final Map<String, Uniform> mUniforms;
+    private final List<Uniform> mUniformList;
+
+    private UniformSchema(final List<Uniform> uniforms) {
+        mUniformList = Collections.unmodifiableList(uniforms);
+        mUniforms = new HashMap<String, Uniform>(uniforms.size() * 2);
+        for (Uniform uniform : uniforms) {
+            mUniforms.put(uniform.mName, uniform);
+        }
+    }
+
+    /**
+     * Reads the active uniforms of a program. Has to be called on the OpenGL
+     * thread which owns the program.
+     *
+     * @param program the linked program
+     * @return the schema of the program
+     */
+    static UniformSchema read(final int program) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, values, 0);
+        int count = values[0];
+        GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH, values, 0);
+        byte[] nameBytes = new byte[Math.max(values[0], 1)];
+        int[] length = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+
+        List<Uniform> uniforms = new ArrayList<Uniform>(count);
+        for (int i = 0; i < count; i++) {
+            GLES20.glGetActiveUniform(program, i, nameBytes.length, length, 0, size, 0, type, 0,
+                    nameBytes, 0);
+            String name = new String(nameBytes, 0, length[0]);
+            // Arrays are reported as "name[0]" but looked up by their plain name.
+            if (name.endsWith("[0]")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            int location = GLES20.glGetUniformLocation(program, name);
+            uniforms.add(new Uniform(name, location, type[0], size[0]));
+        }
+        return new UniformSchema(uniforms);
+    }
+
+    /**
+     * @param name the uniform name, without array subscript
+     * @return the uniform, or null if the program has no active uniform of that name
+     */
+    public Uniform getUniform(final String name) {
+        return mUniforms.get(name);
+    }
+
+    /**
+     * @param name the uniform name, without array subscript
+     * @return the location, or -1 if the program has no active uniform of that name
+     */
+    public int getLocation(final String name) {
+        Uniform uniform = mUniforms.get(name);
+        return uniform != null ? uniform.mLocation : -1;
+    }
+
+    /**
+     * @return all active uniforms of the program
+     */
+    public List<Uniform> getUniforms() {
+        return mUniformList;
+    }
+
+    @Override
+    public String toString() {
+        return mUniformList.toString();
+    }
+
+    /**
+     * An active uniform of a program.
+     */
+    public static class Uniform {
+        private final String mName;
+        private final int mLocation;
+        private final int mType;
+        private final int mSize;
+
+        Uniform(final String name, final int location, final int type, final int size) {
+            mName = name;
+            mLocation = location;
+            mType = type;
+            mSize = size;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getLocation() {
+            return mLocation;
+        }
+
+        /**
+         * @return the GL type, e.g. {@link GLES20#GL_FLOAT_VEC2}
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return the number of array elements, 1 for non-arrays
+         */
+        public int getSize() {
+            return mSize;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "@" + mLocation + " type=0x" + Integer.toHexString(mType)
+                    + (mSize > 1 ? "[" + mSize + "]" : "");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pending uniform values of a filter, uploaded when the filter is drawn.<br>
+ * <br>
+ * Only the last value set for a location is uploaded, and values are copied
+ * into arrays owned by the table, so setting a uniform does not allocate
+ * once its location was used. Setters may be called from any thread,
+ * {@link #flush()} has to be called on the OpenGL thread while the program
+ * of the filter is in use.
+ */
+class UniformTable {
+    static final int TYPE_INT = 0;
+    static final int TYPE_FLOAT = 1;
+    static final int TYPE_VEC2 = 2;
+    static final int TYPE_VEC3 = 3;
+    static final int TYPE_VEC4 = 4;
+    static final int TYPE_FLOAT_ARRAY = 5;
+    static final int TYPE_MAT3 = 6;
+    static final int TYPE_MAT4 = 7;
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private Entry[] mDirtyEntries = new Entry[8];
+    private int mDirtyCount;
+
+    synchronized void setInt(final int location, final int value) {
+        Entry entry = obtain(location, TYPE_INT, 0);
+        entry.mIntValue = value;
+    }
+
+    synchronized void setFloat(final int location, final float value) {
+        Entry entry = obtain(location, TYPE_FLOAT, 1);
+        entry.mValues[0] = value;
+    }
+
+    synchronized void setFloat2(final int location, final float x, final float y) {
+        Entry entry = obtain(location, TYPE_VEC2, 2);
+        entry.mValues[0] = x;
+        entry.mValues[1] = y;
+    }
+
+    /**
+     * Sets a vector, array or matrix uniform.
+     *
+     * @param location the uniform location
+     * @param type one of the vector, array or matrix types
+     * @param values the values, copied
+     */
+    synchronized void setFloats(final int location, final int type, final float[] values) {
+        Entry entry = obtain(location, type, values.length);
+        System.arraycopy(values, 0, entry.mValues, 0, values.length);
+    }
+
+    synchronized boolean isDirty() {
+        return mDirtyCount > 0;
+    }
+
+    /**
+     * Uploads all values which changed since the last flush to the current program.
+     */
+    synchronized void flush() {
+        for (int i = 0; i < mDirtyCount; i++) {
+            Entry entry = mDirtyEntries[i];
+            mDirtyEntries[i] = null;
+            entry.mDirty = false;
+            upload(entry);
+        }
+        mDirtyCount = 0;
+    }
+
+    private static void upload(final Entry entry) {
+        int location = entry.mLocation;
+        float[] values = entry.mValues;
+        switch (entry.mType) {
+            case TYPE_INT:
+                GLES20.glUniform1i(location, entry.mIntValue);
+                break;
+            case TYPE_FLOAT:
+                GLES20.glUniform1f(location, values[0]);
+                break;
+            case TYPE_VEC2:
+                GLES20.glUniform2fv(location, 1, values, 0);
+                break;
+            case TYPE_VEC3:
+                GLES20.glUniform3fv(location, 1, values, 0);
+                break;
+            case TYPE_VEC4:
+                GLES20.glUniform4fv(location, 1, values, 0);
+                break;
+            case TYPE_FLOAT_ARRAY:
+                GLES20.glUniform1fv(location, entry.mCount, values, 0);
+                break;
+            case TYPE_MAT3:
+                GLES20.glUniformMatrix3fv(location, 1, false, values, 0);
+                break;
+            case TYPE_MAT4:
+                GLES20.glUniformMatrix4fv(location, 1, false, values, 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Entry obtain(final int location, final int type, final int count) {
+        Entry entry = null;
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).mLocation == location) {
+                entry = mEntries.get(i);
+                break;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry(location);
+            mEntries.add(entry);
+        }
+        entry.mType = type;
+        entry.mCount = count;
+        if (entry.mValues.length < count) {
+            entry.mValues = new float[count];
+        }
+        if (!entry.mDirty) {
+            entry.mDirty = true;
+            if (mDirtyCount == mDirtyEntries.length) {
+                Entry[] dirtyEntries = new Entry[mDirtyCount * 2];
+                System.arraycopy(mDirtyEntries, 0, dirtyEntries, 0, mDirtyCount);
+                mDirtyEntries = dirtyEntries;
+            }
+            mDirtyEntries[mDirtyCount++] = entry;
+        }
+        return entry;
+    }
+
+    private static class Entry {
+        private final int mLocation;
+        private int mType;
+        private int mCount;
+        private int mIntValue;
+        private float[] mValues = new float[4];
+        private boolean mDirty;
+
+        private Entry(final int location) {
+            mLocation = location;
+        }
+    }
+}
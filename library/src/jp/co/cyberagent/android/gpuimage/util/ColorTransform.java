@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.Arrays;
+
+/**
+ * An affine transform of RGBA colors: <code>out = matrix * in + offset</code>.<br>
+ * <br>
+ * The matrix is stored row-major, which is the layout
+ * {@link jp.co.cyberagent.android.gpuimage.GPUImageColorMatrixFilter} expects
+ * for its color matrix. This class does not depend on Android and can be used
+ * on the JVM.
+ */
+public class ColorTransform {
+    /** Luminance weights used by the saturation, grayscale and monochrome filters. */
+    public static final float[] LUMINANCE_WEIGHTS = {0.2125f, 0.7154f, 0.0721f};
+
+    private static final float[] RGB_TO_YIQ = {
+            0.299f, 0.587f, 0.114f,
+            0.595716f, -0.274453f, -0.321263f,
+            0.211456f, -0.522591f, 0.31135f
+    };
+    private static final float[] YIQ_TO_RGB = {
+            1.0f, 0.9563f, 0.6210f,
+            1.0f, -0.2721f, -0.6474f,
+            1.0f, -1.1070f, 1.7046f
+    };
+
+    private final float[] mMatrix = new float[16];
+    private final float[] mOffset = new float[4];
+    private final float[] mTempMatrix = new float[16];
+    private final float[] mTempOffset = new float[4];
+
+    public ColorTransform() {
+        reset();
+    }
+
+    public ColorTransform(final ColorTransform other) {
+        set(other);
+    }
+
+    /**
+     * Sets this transform to the identity.
+     */
+    public void reset() {
+        Arrays.fill(mMatrix, 0.0f);
+        Arrays.fill(mOffset, 0.0f);
+        for (int i = 0; i < 4; i++) {
+            mMatrix[i * 4 + i] = 1.0f;
+        }
+    }
+
+    public void set(final ColorTransform other) {
+        System.arraycopy(other.mMatrix, 0, mMatrix, 0, 16);
+        System.arraycopy(other.mOffset, 0, mOffset, 0, 4);
+    }
+
+    /**
+     * Sets this transform from a row-major 4x4 matrix and an offset.
+     *
+     * @param matrix the row-major matrix
+     * @param offset the offset, or null for none
+     */
+    public void set(final float[] matrix, final float[] offset) {
+        System.arraycopy(matrix, 0, mMatrix, 0, 16);
+        if (offset != null) {
+            System.arraycopy(offset, 0, mOffset, 0, 4);
+        } else {
+            Arrays.fill(mOffset, 0.0f);
+        }
+    }
+
+    /**
+     * Applies this transform after the given one: <code>this = this * other</code>.
+     *
+     * @param other the transform which is applied first
+     */
+    public void preConcat(final ColorTransform other) {
+        concat(mMatrix, mOffset, other.mMatrix, other.mOffset);
+    }
+
+    /**
+     * Applies the given transform after this one: <code>this = other * this</code>.
+     *
+     * @param other the transform which is applied last
+     */
+    public void postConcat(final ColorTransform other) {
+        concat(other.mMatrix, other.mOffset, mMatrix, mOffset);
+    }
+
+    private void concat(final float[] outerMatrix, final float[] outerOffset,
+                        final float[] innerMatrix, final float[] innerOffset) {
+        for (int row = 0; row < 4; row++) {
+            float offset = outerOffset[row];
+            for (int col = 0; col < 4; col++) {
+                float sum = 0.0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += outerMatrix[row * 4 + k] * innerMatrix[k * 4 + col];
+                }
+                mTempMatrix[row * 4 + col] = sum;
+                offset += outerMatrix[row * 4 + col] * innerOffset[col];
+            }
+            mTempOffset[row] = offset;
+        }
+        System.arraycopy(mTempMatrix, 0, mMatrix, 0, 16);
+        System.arraycopy(mTempOffset, 0, mOffset, 0, 4);
+    }
+
+    /**
+     * Transforms a RGBA color.
+     *
+     * @param color the input color, 4 components
+     * @param out the output color, 4 components, may be the same array as color
+     */
+    public void apply(final float[] color, final float[] out) {
+        float r = color[0];
+        float g = color[1];
+        float b = color[2];
+        float a = color[3];
+        for (int row = 0; row < 4; row++) {
+            out[row] = mMatrix[row * 4] * r + mMatrix[row * 4 + 1] * g
+                    + mMatrix[row * 4 + 2] * b + mMatrix[row * 4 + 3] * a + mOffset[row];
+        }
+    }
+
+    /**
+     * @param out receives the row-major 4x4 matrix
+     */
+    public void getMatrix(final float[] out) {
+        System.arraycopy(mMatrix, 0, out, 0, 16);
+    }
+
+    /**
+     * @param out receives the 4 offset components
+     */
+    public void getOffset(final float[] out) {
+        System.arraycopy(mOffset, 0, out, 0, 4);
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageBrightnessFilter}.
+     */
+    public void setBrightness(final float brightness) {
+        reset();
+        mOffset[0] = brightness;
+        mOffset[1] = brightness;
+        mOffset[2] = brightness;
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageContrastFilter}.
+     */
+    public void setContrast(final float contrast) {
+        reset();
+        for (int i = 0; i < 3; i++) {
+            mMatrix[i * 4 + i] = contrast;
+            mOffset[i] = 0.5f * (1.0f - contrast);
+        }
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageSaturationFilter}.
+     * A saturation of 0 matches {@link jp.co.cyberagent.android.gpuimage.GPUImageGrayscaleFilter}.
+     */
+    public void setSaturation(final float saturation) {
+        reset();
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                mMatrix[row * 4 + col] = (1.0f - saturation) * LUMINANCE_WEIGHTS[col]
+                        + (row == col ? saturation : 0.0f);
+            }
+        }
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageHueFilter}: rotates
+     * the chroma in YIQ space.
+     *
+     * @param hue the hue in degrees
+     */
+    public void setHue(final float hue) {
+        reset();
+        double hueAdjust = (hue % 360.0f) * (float) Math.PI / 180.0f;
+        float cos = (float) Math.cos(hueAdjust);
+        float sin = (float) Math.sin(hueAdjust);
+        // I' = I cos + Q sin, Q' = Q cos - I sin
+        float[] rotation = {
+                1.0f, 0.0f, 0.0f,
+                0.0f, cos, sin,
+                0.0f, -sin, cos
+        };
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                float sum = 0.0f;
+                for (int j = 0; j < 3; j++) {
+                    float rotated = 0.0f;
+                    for (int k = 0; k < 3; k++) {
+                        rotated += rotation[j * 3 + k] * RGB_TO_YIQ[k * 3 + col];
+                    }
+                    sum += YIQ_TO_RGB[row * 3 + j] * rotated;
+                }
+                mMatrix[row * 4 + col] = sum;
+            }
+        }
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageRGBFilter}, which
+     * also makes the output opaque.
+     */
+    public void setChannelMultipliers(final float red, final float green, final float blue) {
+        reset();
+        mMatrix[0] = red;
+        mMatrix[5] = green;
+        mMatrix[10] = blue;
+        mMatrix[15] = 0.0f;
+        mOffset[3] = 1.0f;
+    }
+
+    /**
+     * Matches {@link jp.co.cyberagent.android.gpuimage.GPUImageColorMatrixFilter}.
+     *
+     * @param intensity how much of the transformed color is mixed in
+     * @param colorMatrix the row-major color matrix
+     * @param colorOffset the offset added after the matrix, or null for none
+     */
+    public void setColorMatrix(final float intensity, final float[] colorMatrix,
+                               final float[] colorOffset) {
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                mMatrix[row * 4 + col] = intensity * colorMatrix[row * 4 + col]
+                        + (row == col ? 1.0f - intensity : 0.0f);
+            }
+            mOffset[row] = colorOffset != null ? intensity * colorOffset[row] : 0.0f;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ColorTransform)) {
+            return false;
+        }
+        ColorTransform other = (ColorTransform) o;
+        return Arrays.equals(mMatrix, other.mMatrix) && Arrays.equals(mOffset, other.mOffset);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(mMatrix) + Arrays.hashCode(mOffset);
+    }
+
+    @Override
+    public String toString() {
+        return "ColorTransform{matrix=" + Arrays.toString(mMatrix)
+                + ", offset=" + Arrays.toString(mOffset) + "}";
+    }
+}
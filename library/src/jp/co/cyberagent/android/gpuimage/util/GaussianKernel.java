@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A normalized one dimensional Gaussian kernel and the shaders which apply it
+ * along a texel offset, generated for its radius with all weights and
+ * offsets as constants and all samples unrolled.<br>
+ * <br>
+ * The kernel reaches as far as the Gaussian is above 1/256 of its peak,
+ * rounded up to an even radius. Neighboring texel pairs are merged into one
+ * bilinear sample between them, weighted by their sum, so a kernel of radius
+ * r takes r + 1 samples. The first {@link #MAX_VARYING_SAMPLES} sample
+ * coordinates are computed in the vertex shader, the rest in the fragment
+ * shader.<br>
+ * <br>
+ * Sigma is rounded to {@link #SIGMA_STEP} and clamped to {@link #MAX_SIGMA},
+ * and the kernels of recently used sigmas are cached, so that changing the
+ * blur continuously does not generate a new program for every value.<br>
+ * <br>
+ * This class does not depend on Android.
+ */
+public class GaussianKernel {
+    public static final float SIGMA_STEP = 0.25f;
+    /**
+     * The largest sigma, whose kernel of radius 214 takes 215 samples a pass.
+     * Wider blurs are cheaper with a summed-area table or an image pyramid.
+     */
+    public static final float MAX_SIGMA = 64f;
+    /** Center plus 7 pairs, within the 8 varying vectors of OpenGL ES 2.0. */
+    public static final int MAX_VARYING_SAMPLES = 15;
+    private static final float MIN_WEIGHT = 1f / 256f;
+    private static final int MAX_CACHED_KERNELS = 16;
+
+    private static final Map<Float, GaussianKernel> sKernels =
+            new LinkedHashMap<Float, GaussianKernel>(MAX_CACHED_KERNELS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Float, GaussianKernel> eldest) {
+                    return size() > MAX_CACHED_KERNELS;
+                }
+            };
+
+    private final float mSigma;
+    private final int mRadius;
+    private final float[] mWeights;
+    private final float[] mSampleOffsets;
+    private final float[] mSampleWeights;
+    private String mVertexShader;
+    private String mFragmentShader;
+
+    private GaussianKernel(final float sigma) {
+        mSigma = sigma;
+        mRadius = getRadius(sigma);
+        mWeights = computeWeights(sigma, mRadius);
+
+        int pairs = mRadius / 2;
+        mSampleOffsets = new float[pairs];
+        mSampleWeights = new float[pairs];
+        for (int i = 0; i < pairs; i++) {
+            int first = i * 2 + 1;
+            float weight = mWeights[first] + mWeights[first + 1];
+            mSampleWeights[i] = weight;
+            // Where bilinear filtering reads both texels in the ratio of their weights.
+            mSampleOffsets[i] = (first * mWeights[first] + (first + 1) * mWeights[first + 1])
+                    / weight;
+        }
+    }
+
+    /**
+     * @param sigma the standard deviation in texels, rounded to {@link #SIGMA_STEP}
+     *            and clamped to {@link #MAX_SIGMA}
+     * @return the kernel, shared with other callers
+     */
+    public static GaussianKernel forSigma(final float sigma) {
+        float rounded = Math.max(0f, Math.min(MAX_SIGMA, Math.round(sigma / SIGMA_STEP) * SIGMA_STEP));
+        synchronized (sKernels) {
+            GaussianKernel kernel = sKernels.get(rounded);
+            if (kernel == null) {
+                kernel = new GaussianKernel(rounded);
+                sKernels.put(rounded, kernel);
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * @return the even radius in texels, 0 for a sigma below 1
+     */
+    public static int getRadius(final float sigma) {
+        if (sigma < 1f) {
+            return 0;
+        }
+        // exp(-r^2 / (2 sigma^2)) = MIN_WEIGHT, relative to the peak of 1.
+        int radius = (int) Math.floor(sigma * Math.sqrt(-2.0 * Math.log(MIN_WEIGHT)));
+        return radius + radius % 2;
+    }
+
+    /**
+     * Samples the Gaussian at the texel centers and normalizes the weights,
+     * counting the ones besides the center twice.
+     *
+     * @return the weights of the offsets 0 to radius
+     */
+    public static float[] computeWeights(final float sigma, final int radius) {
+        float[] weights = new float[radius + 1];
+        if (radius == 0) {
+            weights[0] = 1f;
+            return weights;
+        }
+        double sum = 0.0;
+        for (int i = 0; i <= radius; i++) {
+            double weight = Math.exp(-(double) i * i / (2.0 * sigma * sigma));
+            weights[i] = (float) weight;
+            sum += i == 0 ? weight : 2.0 * weight;
+        }
+        for (int i = 0; i <= radius; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    public float getSigma() {
+        return mSigma;
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * @return the weights of the offsets 0 to radius
+     */
+    public float[] getWeights() {
+        return mWeights.clone();
+    }
+
+    /**
+     * @return the offsets of the merged samples on one side, in texels
+     */
+    public float[] getSampleOffsets() {
+        return mSampleOffsets.clone();
+    }
+
+    /**
+     * @return the weights of the merged samples on one side
+     */
+    public float[] getSampleWeights() {
+        return mSampleWeights.clone();
+    }
+
+    /**
+     * Computes the weight each texel gets from the merged bilinear samples,
+     * which is what the shaders apply.
+     *
+     * @return the effective weights of the offsets 0 to radius
+     */
+    public float[] getEffectiveWeights() {
+        float[] weights = new float[mRadius + 1];
+        weights[0] = mWeights[0];
+        for (int i = 0; i < mSampleOffsets.length; i++) {
+            int texel = (int) Math.floor(mSampleOffsets[i]);
+            float fraction = mSampleOffsets[i] - texel;
+            weights[texel] += mSampleWeights[i] * (1f - fraction);
+            if (texel + 1 <= mRadius) {
+                weights[texel + 1] += mSampleWeights[i] * fraction;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @return the vertex shader, which needs the uniforms
+     *         <code>texelWidthOffset</code> and <code>texelHeightOffset</code>
+     */
+    public synchronized String getVertexShader() {
+        if (mVertexShader == null) {
+            mVertexShader = generateVertexShader();
+        }
+        return mVertexShader;
+    }
+
+    /**
+     * @return the fragment shader, which blurs the color and keeps the alpha
+     *         of the center
+     */
+    public synchronized String getFragmentShader() {
+        if (mFragmentShader == null) {
+            mFragmentShader = generateFragmentShader();
+        }
+        return mFragmentShader;
+    }
+
+    private int getVaryingPairs() {
+        return Math.min(mSampleOffsets.length, (MAX_VARYING_SAMPLES - 1) / 2);
+    }
+
+    private String generateVertexShader() {
+        int varyings = 1 + getVaryingPairs() * 2;
+        StringBuilder shader = new StringBuilder()
+                .append("attribute vec4 position;\n")
+                .append("attribute vec4 inputTextureCoordinate;\n")
+                .append("\n")
+                .append("uniform float texelWidthOffset;\n")
+                .append("uniform float texelHeightOffset;\n")
+                .append("\n")
+                .append("varying vec2 blurCoordinates[").append(varyings).append("];\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    gl_Position = position;\n")
+                .append("    vec2 singleStepOffset = vec2(texelWidthOffset, texelHeightOffset);\n")
+                .append("    blurCoordinates[0] = inputTextureCoordinate.xy;\n");
+        for (int i = 0; i < getVaryingPairs(); i++) {
+            String offset = format(mSampleOffsets[i]);
+            shader.append("    blurCoordinates[").append(i * 2 + 1)
+                    .append("] = inputTextureCoordinate.xy + singleStepOffset * ")
+                    .append(offset).append(";\n");
+            shader.append("    blurCoordinates[").append(i * 2 + 2)
+                    .append("] = inputTextureCoordinate.xy - singleStepOffset * ")
+                    .append(offset).append(";\n");
+        }
+        return shader.append("}\n").toString();
+    }
+
+    private String generateFragmentShader() {
+        int varyings = 1 + getVaryingPairs() * 2;
+        boolean dependentSamples = mSampleOffsets.length > getVaryingPairs();
+        StringBuilder shader = new StringBuilder()
+                .append("uniform sampler2D inputImageTexture;\n");
+        if (dependentSamples) {
+            shader.append("uniform highp float texelWidthOffset;\n")
+                    .append("uniform highp float texelHeightOffset;\n");
+        }
+        shader.append("\n")
+                .append("varying highp vec2 blurCoordinates[").append(varyings).append("];\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    lowp vec4 center = texture2D(inputImageTexture, blurCoordinates[0]);\n")
+                .append("    mediump vec3 sum = center.rgb * ").append(format(mWeights[0]))
+                .append(";\n");
+        for (int i = 0; i < getVaryingPairs(); i++) {
+            String weight = format(mSampleWeights[i]);
+            shader.append("    sum += texture2D(inputImageTexture, blurCoordinates[")
+                    .append(i * 2 + 1).append("]).rgb * ").append(weight).append(";\n");
+            shader.append("    sum += texture2D(inputImageTexture, blurCoordinates[")
+                    .append(i * 2 + 2).append("]).rgb * ").append(weight).append(";\n");
+        }
+        if (dependentSamples) {
+            shader.append("\n")
+                    .append("    highp vec2 singleStepOffset = vec2(texelWidthOffset, texelHeightOffset);\n");
+            for (int i = getVaryingPairs(); i < mSampleOffsets.length; i++) {
+                String offset = format(mSampleOffsets[i]);
+                String weight = format(mSampleWeights[i]);
+                shader.append("    sum += texture2D(inputImageTexture, blurCoordinates[0] + singleStepOffset * ")
+                        .append(offset).append(").rgb * ").append(weight).append(";\n");
+                shader.append("    sum += texture2D(inputImageTexture, blurCoordinates[0] - singleStepOffset * ")
+                        .append(offset).append(").rgb * ").append(weight).append(";\n");
+            }
+        }
+        return shader.append("    gl_FragColor = vec4(sum, center.a);\n")
+                .append("}\n")
+                .toString();
+    }
+
+    /**
+     * Formats a GLSL float literal, which must not use an exponent.
+     */
+    private static String format(final float value) {
+        return String.format(Locale.US, "%.8f", value);
+    }
+}
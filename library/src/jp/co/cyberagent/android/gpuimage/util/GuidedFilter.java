@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * CPU reference of the guided filter drawn by
+ * {@link jp.co.cyberagent.android.gpuimage.GPUImageGuidedFilter}, which
+ * smooths every color channel guided by itself.<br>
+ * <br>
+ * For every pixel the mean m and the variance v of the channel in the square
+ * around it give the coefficients <code>a = v / (v + epsilon)</code>, or 0
+ * where v is 0, and <code>b = m - a * m</code> of a local linear model. The
+ * output is <code>mean(a) * I + mean(b)</code>, with the means over the same
+ * square. Flat areas (v &lt;&lt; epsilon) are averaged, edges
+ * (v &gt;&gt; epsilon) are kept. Channels are in [0, 1] and at the edges only the pixels inside the
+ * image are averaged.<br>
+ * <br>
+ * The channels are taken from the three lowest bytes of the ints and the
+ * highest byte is kept, so this works for ARGB ints as used by Bitmap as well
+ * as for RGBA bytes read as little endian ints from OpenGL. Box means are
+ * computed from summed-area tables in double precision, so the cost does not
+ * depend on the radius.<br>
+ * <br>
+ * This class does not depend on Android.
+ */
+public class GuidedFilter {
+    private static final int CHANNELS = 3;
+
+    private final int mRadius;
+    private final float mEpsilon;
+
+    /**
+     * @param radius the distance from the center to the edges of the square, from 0 on up
+     * @param epsilon the variance below which details are smoothed, from 0.0 on up
+     */
+    public GuidedFilter(final int radius, final float epsilon) {
+        mRadius = radius;
+        mEpsilon = epsilon;
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    public float getEpsilon() {
+        return mEpsilon;
+    }
+
+    /**
+     * Filters an image.
+     *
+     * @param pixels width * height pixels, row by row
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the filtered pixels in the layout of the input
+     */
+    public int[] filter(final int[] pixels, final int width, final int height) {
+        int size = width * height;
+        double[] channel = new double[size];
+        double[] meanScale = new double[size];
+        double[] meanOffset = new double[size];
+        int[] out = new int[size];
+        for (int i = 0; i < size; i++) {
+            out[i] = pixels[i] & 0xff000000;
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            readChannel(pixels, c, channel);
+            computeMeanCoefficients(channel, width, height, meanScale, meanOffset);
+            for (int i = 0; i < size; i++) {
+                double value = meanScale[i] * channel[i] + meanOffset[i];
+                out[i] |= toByte(value) << (c * 8);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Computes mean(a) and mean(b) of every pixel rounded to bytes, i.e. what
+     * the filter stores in 8 bit textures before it applies them to the
+     * image, possibly at a higher resolution.
+     *
+     * @param pixels width * height pixels, row by row
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param meanScales receives mean(a) in the channels of the input
+     * @param meanOffsets receives mean(b) in the channels of the input
+     */
+    public void computeCoefficients(final int[] pixels, final int width, final int height,
+                                    final int[] meanScales, final int[] meanOffsets) {
+        int size = width * height;
+        double[] channel = new double[size];
+        double[] meanScale = new double[size];
+        double[] meanOffset = new double[size];
+        for (int i = 0; i < size; i++) {
+            meanScales[i] = 0;
+            meanOffsets[i] = 0;
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            readChannel(pixels, c, channel);
+            computeMeanCoefficients(channel, width, height, meanScale, meanOffset);
+            for (int i = 0; i < size; i++) {
+                meanScales[i] |= toByte(meanScale[i]) << (c * 8);
+                meanOffsets[i] |= toByte(meanOffset[i]) << (c * 8);
+            }
+        }
+    }
+
+    private void computeMeanCoefficients(final double[] channel, final int width,
+                                         final int height, final double[] meanScale,
+                                         final double[] meanOffset) {
+        int size = width * height;
+        double[] squares = new double[size];
+        for (int i = 0; i < size; i++) {
+            squares[i] = channel[i] * channel[i];
+        }
+        boxMeans(channel, width, height, mRadius, meanOffset);
+        boxMeans(squares, width, height, mRadius, meanScale);
+        for (int i = 0; i < size; i++) {
+            double mean = meanOffset[i];
+            double variance = Math.max(meanScale[i] - mean * mean, 0.0);
+            // Flat squares with an epsilon of 0 would divide 0 by 0.
+            double a = variance > 0.0 ? variance / (variance + mEpsilon) : 0.0;
+            meanScale[i] = a;
+            meanOffset[i] = mean - a * mean;
+        }
+        boxMeans(meanScale, width, height, mRadius, meanScale);
+        boxMeans(meanOffset, width, height, mRadius, meanOffset);
+    }
+
+    /**
+     * Averages the square around every value, clipped to the image.
+     *
+     * @param values width * height values, row by row
+     * @param out receives the means, may be the input
+     */
+    static void boxMeans(final double[] values, final int width, final int height,
+                         final int radius, final double[] out) {
+        int stride = width + 1;
+        double[] table = new double[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double rowSum = 0.0;
+            for (int x = 0; x < width; x++) {
+                rowSum += values[y * width + x];
+                table[(y + 1) * stride + x + 1] = table[y * stride + x + 1] + rowSum;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int top = Math.max(y - radius, 0);
+            int bottom = Math.min(y + radius, height - 1) + 1;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - radius, 0);
+                int right = Math.min(x + radius, width - 1) + 1;
+                double sum = table[bottom * stride + right] - table[top * stride + right]
+                        - table[bottom * stride + left] + table[top * stride + left];
+                out[y * width + x] = sum / ((right - left) * (bottom - top));
+            }
+        }
+    }
+
+    private static void readChannel(final int[] pixels, final int channel, final double[] out) {
+        int shift = channel * 8;
+        for (int i = 0; i < pixels.length; i++) {
+            out[i] = ((pixels[i] >> shift) & 0xff) / 255.0;
+        }
+    }
+
+    private static int toByte(final double value) {
+        int rounded = (int) Math.round(value * 255.0);
+        return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * CPU reference of the Kuwahara filter drawn by
+ * {@link jp.co.cyberagent.android.gpuimage.GPUImageSummedAreaKuwaharaFilter}.<br>
+ * <br>
+ * Every pixel takes the mean color of the one of four rectangles meeting at
+ * it with the smallest sum of channel variances. The rectangles reach
+ * <code>radius</code> pixels to the left or right and up or down, including
+ * the pixel's row and column, and are clipped to the image. Means and
+ * variances come from summed-area tables of the colors and squared colors,
+ * so the cost does not depend on the radius.<br>
+ * <br>
+ * With an anisotropy above 0 the rectangles are stretched along the local
+ * structure. Its direction is estimated by comparing the variance of a
+ * horizontal and a vertical strip of <code>2 * radius + 1</code> by
+ * <code>2 * (radius / 4) + 1</code> pixels: for
+ * <code>A = (vertical - horizontal) / (vertical + horizontal)</code> the
+ * rectangles reach <code>round(radius * s)</code> along and
+ * <code>max(round(radius / s), 1)</code> across the structure, where
+ * <code>s = 1 + anisotropy * |A|</code>. Like the regions of the anisotropic
+ * Kuwahara filter by Kyprianidis et al., with 1 / anisotropy as alpha, but
+ * only horizontal or vertical, since the tables sum axis-aligned
+ * rectangles.<br>
+ * <br>
+ * The channels are taken from the three lowest bytes of the ints and the
+ * highest byte is kept, so this works for ARGB ints as used by Bitmap as well
+ * as for RGBA bytes read as little endian ints from OpenGL. Large images are
+ * filtered in bands of rows on several threads.<br>
+ * <br>
+ * This class does not depend on Android.
+ */
+public class KuwaharaFilter {
+    /** Larger rectangles could overflow the 32 bit sums of squared bytes. */
+    public static final int MAX_RADIUS = 128;
+    public static final float MAX_ANISOTROPY = 3f;
+
+    private static final int CHANNELS = 3;
+
+    private final int mRadius;
+    private final float mAnisotropy;
+    private boolean mParallel = true;
+
+    /**
+     * @param radius the reach of the rectangles, from 0 to {@link #MAX_RADIUS}
+     * @param anisotropy how far the rectangles are stretched, from 0.0 (squares)
+     *                   to {@link #MAX_ANISOTROPY}
+     */
+    public KuwaharaFilter(final int radius, final float anisotropy) {
+        mRadius = Math.min(Math.max(radius, 0), MAX_RADIUS);
+        mAnisotropy = Math.min(Math.max(anisotropy, 0f), MAX_ANISOTROPY);
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    public float getAnisotropy() {
+        return mAnisotropy;
+    }
+
+    /**
+     * Enables or disables filtering large images on several threads. Enabled
+     * by default.
+     */
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Filters an image.
+     *
+     * @param pixels width * height pixels, row by row
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the filtered pixels in the layout of the input
+     */
+    public int[] filter(final int[] pixels, final int width, final int height) {
+        final SummedAreaTable sums = new SummedAreaTable(width, height);
+        final SummedAreaTable squares = new SummedAreaTable(width, height);
+        sums.setParallel(mParallel);
+        squares.setParallel(mParallel);
+        sums.compute(pixels);
+        squares.computeSquares(pixels);
+
+        final int[] out = new int[width * height];
+        boolean parallel = mParallel && width * height >= SummedAreaTable.MIN_PARALLEL_PIXELS;
+        SummedAreaTable.runInBands(height, parallel, new SummedAreaTable.Band() {
+            @Override
+            public void run(final int start, final int end) {
+                Region region = new Region(sums, squares);
+                for (int y = start; y < end; y++) {
+                    for (int x = 0; x < width; x++) {
+                        out[y * width + x] = filterPixel(region, pixels[y * width + x], x, y);
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    private int filterPixel(final Region region, final int pixel, final int x, final int y) {
+        int halfWidth = mRadius;
+        int halfHeight = mRadius;
+        if (mAnisotropy > 0f && mRadius > 0) {
+            int thickness = mRadius / 4;
+            double horizontal = region.measure(x - mRadius, y - thickness,
+                    x + mRadius, y + thickness);
+            double vertical = region.measure(x - thickness, y - mRadius,
+                    x + thickness, y + mRadius);
+            double total = horizontal + vertical;
+            double anisotropy = total > 1e-6 ? (vertical - horizontal) / total : 0.0;
+            double stretch = 1.0 + mAnisotropy * Math.abs(anisotropy);
+            int along = (int) Math.round(mRadius * stretch);
+            int across = Math.max((int) Math.round(mRadius / stretch), 1);
+            halfWidth = anisotropy > 0.0 ? along : across;
+            halfHeight = anisotropy > 0.0 ? across : along;
+        }
+
+        int best = region.measureMeans(x - halfWidth, y - halfHeight, x, y);
+        double minVariance = region.mVariance;
+        int mean = region.measureMeans(x, y - halfHeight, x + halfWidth, y);
+        if (region.mVariance < minVariance) {
+            minVariance = region.mVariance;
+            best = mean;
+        }
+        mean = region.measureMeans(x, y, x + halfWidth, y + halfHeight);
+        if (region.mVariance < minVariance) {
+            minVariance = region.mVariance;
+            best = mean;
+        }
+        mean = region.measureMeans(x - halfWidth, y, x, y + halfHeight);
+        if (region.mVariance < minVariance) {
+            best = mean;
+        }
+        return (pixel & 0xff000000) | best;
+    }
+
+    /**
+     * Measures rectangles clipped to the image, one instance per thread.
+     */
+    private static class Region {
+        private final SummedAreaTable mSums;
+        private final SummedAreaTable mSquares;
+        private final int mWidth;
+        private final int mHeight;
+        /** The sum of the channel variances of the last rectangle, in [0, 1]^2. */
+        private double mVariance;
+
+        Region(final SummedAreaTable sums, final SummedAreaTable squares) {
+            mSums = sums;
+            mSquares = squares;
+            mWidth = sums.getWidth();
+            mHeight = sums.getHeight();
+        }
+
+        /**
+         * @return the sum of the channel variances
+         */
+        double measure(final int left, final int top, final int right, final int bottom) {
+            measureMeans(left, top, right, bottom);
+            return mVariance;
+        }
+
+        /**
+         * Stores the sum of the channel variances in {@link #mVariance}.
+         *
+         * @return the mean colors rounded to bytes, in the layout of the pixels
+         */
+        int measureMeans(final int left, final int top, final int right, final int bottom) {
+            int x0 = Math.max(left, 0);
+            int y0 = Math.max(top, 0);
+            int x1 = Math.min(right, mWidth - 1);
+            int y1 = Math.min(bottom, mHeight - 1);
+            int area = (x1 - x0 + 1) * (y1 - y0 + 1);
+            int means = 0;
+            double variance = 0.0;
+            for (int c = 0; c < CHANNELS; c++) {
+                int sum = mSums.getSum(c, x0, y0, x1, y1);
+                long sumOfSquares = mSquares.getUnsignedSum(c, x0, y0, x1, y1);
+                double mean = sum / (area * 255.0);
+                variance += Math.max(sumOfSquares / (area * 65025.0) - mean * mean, 0.0);
+                means |= ((sum + area / 2) / area) << (c * 8);
+            }
+            mVariance = variance;
+            return means;
+        }
+    }
+}
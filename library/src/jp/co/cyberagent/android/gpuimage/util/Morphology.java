@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * CPU reference of the grayscale morphology drawn by
+ * {@link jp.co.cyberagent.android.gpuimage.GPUImageMorphologyFilter}, with a
+ * square structuring element of <code>2 * radius + 1</code> pixels which is
+ * clipped to the image.<br>
+ * <br>
+ * Every channel is filtered on its own. Rows and then columns are filtered
+ * with the van Herk/Gil-Werman algorithm, which takes three comparisons per
+ * pixel for any radius, in bands on several threads. The differences
+ * {@link Operation#TOP_HAT} and {@link Operation#GRADIENT} keep the alpha of
+ * the image they subtract from.<br>
+ * <br>
+ * {@link #getPassOffsets(int)} plans the passes the GPU draws instead, see
+ * there. The channels are taken from the bytes of the ints, so this works for
+ * ARGB ints as used by Bitmap as well as for RGBA bytes read as little endian
+ * ints from OpenGL.<br>
+ * <br>
+ * This class does not depend on Android.
+ */
+public class Morphology {
+    public enum Operation {
+        /** The maximum of the neighborhood, grows bright areas. */
+        DILATE,
+        /** The minimum of the neighborhood, grows dark areas. */
+        ERODE,
+        /** Erosion followed by dilation, removes bright details. */
+        OPEN,
+        /** Dilation followed by erosion, removes dark details. */
+        CLOSE,
+        /** The image minus its opening, keeps only the bright details. */
+        TOP_HAT,
+        /** Dilation minus erosion, the local contrast. */
+        GRADIENT
+    }
+
+    private static final int ALPHA_MASK = 0xff000000;
+
+    private final Operation mOperation;
+    private final int mRadius;
+    private boolean mParallel = true;
+
+    /**
+     * @param operation the operation
+     * @param radius the distance from the center to the edges of the square, from 0 on up
+     */
+    public Morphology(final Operation operation, final int radius) {
+        mOperation = operation;
+        mRadius = Math.max(radius, 0);
+    }
+
+    public Operation getOperation() {
+        return mOperation;
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * Enables or disables filtering large images on several threads. Enabled
+     * by default.
+     */
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Plans the separable passes of one axis of a dilation or erosion on the
+     * GPU. Each pass takes the extremum of 5 samples at 0, +-near and +-far
+     * texels. A pass over a neighborhood of radius R covers 2R + 1 texels
+     * per sample, so the samples may be that far apart without a gap and the
+     * radius grows to R + far, up to 5R + 2. The returned passes reach the
+     * radius exactly with as few passes as possible, e.g. one for radius 1
+     * and 2, two up to 12, three up to 62 and four up to 312.
+     *
+     * @param radius the radius of the neighborhood, from 0 on up
+     * @return {near, far} offsets in texels of each pass, none for radius 0
+     */
+    public static int[][] getPassOffsets(final int radius) {
+        int count = 0;
+        for (int reach = 0; reach < radius; reach = 5 * reach + 2) {
+            count++;
+        }
+        int[][] passes = new int[count][];
+        int reach = 0;
+        for (int i = 0; i < count; i++) {
+            int far = Math.min(radius - reach, 2 * (2 * reach + 1));
+            passes[i] = new int[]{(far + 1) / 2, far};
+            reach += far;
+        }
+        return passes;
+    }
+
+    /**
+     * Filters an image.
+     *
+     * @param pixels width * height pixels, row by row
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the filtered pixels in the layout of the input
+     */
+    public int[] apply(final int[] pixels, final int width, final int height) {
+        switch (mOperation) {
+            case DILATE:
+                return filter(pixels, width, height, true);
+            case ERODE:
+                return filter(pixels, width, height, false);
+            case OPEN:
+                return filter(filter(pixels, width, height, false), width, height, true);
+            case CLOSE:
+                return filter(filter(pixels, width, height, true), width, height, false);
+            case TOP_HAT:
+                return subtract(pixels,
+                        filter(filter(pixels, width, height, false), width, height, true));
+            case GRADIENT:
+                return subtract(filter(pixels, width, height, true),
+                        filter(pixels, width, height, false));
+            default:
+                throw new IllegalStateException("Unknown operation " + mOperation);
+        }
+    }
+
+    private int[] filter(final int[] pixels, final int width, final int height,
+                         final boolean dilate) {
+        final int[] rows = new int[pixels.length];
+        final int[] out = new int[pixels.length];
+        boolean parallel = mParallel && width * height >= SummedAreaTable.MIN_PARALLEL_PIXELS;
+        SummedAreaTable.runInBands(height, parallel, new SummedAreaTable.Band() {
+            @Override
+            public void run(final int start, final int end) {
+                Line line = new Line(width, mRadius, dilate);
+                for (int y = start; y < end; y++) {
+                    line.filter(pixels, rows, y * width, 1);
+                }
+            }
+        });
+        SummedAreaTable.runInBands(width, parallel, new SummedAreaTable.Band() {
+            @Override
+            public void run(final int start, final int end) {
+                Line line = new Line(height, mRadius, dilate);
+                for (int x = start; x < end; x++) {
+                    line.filter(rows, out, x, width);
+                }
+            }
+        });
+        return out;
+    }
+
+    private static int[] subtract(final int[] minuends, final int[] subtrahends) {
+        int[] out = new int[minuends.length];
+        for (int i = 0; i < minuends.length; i++) {
+            int minuend = minuends[i];
+            int subtrahend = subtrahends[i];
+            int pixel = minuend & ALPHA_MASK;
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = ((minuend >>> shift) & 0xff) - ((subtrahend >>> shift) & 0xff);
+                pixel |= Math.max(difference, 0) << shift;
+            }
+            out[i] = pixel;
+        }
+        return out;
+    }
+
+    /**
+     * Filters rows or columns with the van Herk/Gil-Werman algorithm: the
+     * padded line is split into blocks of the window size, and the extremum of
+     * a window is the one of the suffix of the block it starts in and the
+     * prefix of the block it ends in.
+     */
+    private static class Line {
+        private final int mLength;
+        private final int mRadius;
+        private final boolean mDilate;
+        private final int[] mPrefixes;
+        private final int[] mSuffixes;
+
+        Line(final int length, final int radius, final boolean dilate) {
+            mLength = length;
+            mRadius = radius;
+            mDilate = dilate;
+            mPrefixes = new int[length + 2 * radius];
+            mSuffixes = new int[length + 2 * radius];
+        }
+
+        void filter(final int[] in, final int[] out, final int offset, final int stride) {
+            int window = 2 * mRadius + 1;
+            int padded = mLength + 2 * mRadius;
+            // Padding with the neutral value clips the window to the line.
+            int neutral = mDilate ? 0 : 0xff;
+            for (int i = 0; i < mLength; i++) {
+                out[offset + i * stride] = 0;
+            }
+            for (int shift = 0; shift < 32; shift += 8) {
+                for (int j = 0; j < padded; j++) {
+                    int i = j - mRadius;
+                    int value = i < 0 || i >= mLength
+                            ? neutral : (in[offset + i * stride] >>> shift) & 0xff;
+                    mPrefixes[j] = j % window == 0 ? value : extremum(mPrefixes[j - 1], value);
+                }
+                for (int j = padded - 1; j >= 0; j--) {
+                    int i = j - mRadius;
+                    int value = i < 0 || i >= mLength
+                            ? neutral : (in[offset + i * stride] >>> shift) & 0xff;
+                    mSuffixes[j] = j % window == window - 1 || j == padded - 1
+                            ? value : extremum(mSuffixes[j + 1], value);
+                }
+                for (int i = 0; i < mLength; i++) {
+                    int value = extremum(mSuffixes[i], mPrefixes[i + window - 1]);
+                    out[offset + i * stride] |= value << shift;
+                }
+            }
+        }
+
+        private int extremum(final int a, final int b) {
+            return mDilate ? Math.max(a, b) : Math.min(a, b);
+        }
+    }
+}
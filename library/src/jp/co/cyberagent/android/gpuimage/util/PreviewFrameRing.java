@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * Hands camera preview frames from the camera thread to the OpenGL thread,
+ * keeping only the latest one.<br>
+ * <br>
+ * The ring owns a fixed set of frame buffers which are given to a
+ * {@link BufferSink} (normally <code>Camera.addCallbackBuffer</code>) to be
+ * filled. A filled frame replaces the previous one if that was not taken yet;
+ * the replaced frame counts as dropped and its buffer goes straight back to
+ * the sink. This class does not depend on Android and can be used on the JVM.
+ */
+public class PreviewFrameRing {
+    private final int mWidth;
+    private final int mHeight;
+    private final BufferSink mSink;
+    private byte[] mLatestFrame;
+    private long mReceivedCount;
+    private long mProcessedCount;
+    private long mDroppedCount;
+
+    /**
+     * Receives buffers which can be filled with the next frame.
+     */
+    public interface BufferSink {
+        void onBufferAvailable(byte[] buffer);
+    }
+
+    /**
+     * Creates the ring and gives all its buffers to the sink.
+     *
+     * @param width the frame width
+     * @param height the frame height
+     * @param bufferCount the number of buffers, 3 lets the camera fill one while
+     *                    one waits and one is processed
+     * @param bufferSize the size of each buffer in bytes
+     * @param sink receives buffers to fill
+     */
+    public PreviewFrameRing(final int width, final int height, final int bufferCount,
+                            final int bufferSize, final BufferSink sink) {
+        mWidth = width;
+        mHeight = height;
+        mSink = sink;
+        for (int i = 0; i < bufferCount; i++) {
+            sink.onBufferAvailable(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * @return the buffer size in bytes of a NV21 frame
+     */
+    public static int getNV21BufferSize(final int width, final int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Publishes a filled frame, dropping the previous one if it was not taken.
+     * Called by the producer.
+     *
+     * @param frame the frame
+     */
+    public void offer(final byte[] frame) {
+        byte[] dropped;
+        synchronized (this) {
+            mReceivedCount++;
+            dropped = mLatestFrame;
+            mLatestFrame = frame;
+            if (dropped != null) {
+                mDroppedCount++;
+            }
+        }
+        if (dropped != null) {
+            mSink.onBufferAvailable(dropped);
+        }
+    }
+
+    /**
+     * Takes the latest frame. Called by the consumer, which has to
+     * {@link #release(byte[])} it when done.
+     *
+     * @return the latest frame, or null if no new frame arrived
+     */
+    public synchronized byte[] acquireLatest() {
+        byte[] frame = mLatestFrame;
+        mLatestFrame = null;
+        if (frame != null) {
+            mProcessedCount++;
+        }
+        return frame;
+    }
+
+    /**
+     * Returns a frame taken by {@link #acquireLatest()} so it can be filled again.
+     *
+     * @param frame the frame
+     */
+    public void release(final byte[] frame) {
+        mSink.onBufferAvailable(frame);
+    }
+
+    /**
+     * @return the number of frames offered
+     */
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return the number of frames taken by the consumer
+     */
+    public synchronized long getProcessedCount() {
+        return mProcessedCount;
+    }
+
+    /**
+     * @return the number of frames replaced before the consumer took them
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of linked program binaries.<br>
+ * <br>
+ * Entries are keyed by a hash of the shader sources and named after the
+ * driver (GL renderer and version) which produced them. Entries of other
+ * drivers are deleted the first time a driver is seen, and entries which
+ * fail their checksum are deleted when read. This class does not call
+ * OpenGL and does not depend on Android, so it can be used on the JVM with
+ * any {@link Storage}.
+ */
+public class ProgramBinaryCache {
+    private static final int MAGIC = 0x47505042; // "GPPB"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Storage mStorage;
+    private String mCheckedDriver;
+    private int mHitCount;
+    private int mMissCount;
+    private int mCorruptCount;
+
+    /**
+     * Where the cache entries are kept.
+     */
+    public interface Storage {
+        /**
+         * @return the names of all entries
+         */
+        String[] list();
+
+        /**
+         * @return the content of the entry, or null if it does not exist
+         */
+        byte[] read(String name) throws IOException;
+
+        void write(String name, byte[] data) throws IOException;
+
+        void delete(String name);
+    }
+
+    /**
+     * A program binary and the driver specific format it is in.
+     */
+    public static class Binary {
+        private final int mFormat;
+        private final byte[] mData;
+
+        public Binary(final int format, final byte[] data) {
+            mFormat = format;
+            mData = data;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+
+    public ProgramBinaryCache(final Storage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * Creates a cache which keeps its entries as files in the given directory.
+     *
+     * @param directory the cache directory, created if needed
+     */
+    public ProgramBinaryCache(final File directory) {
+        this(new FileStorage(directory));
+    }
+
+    /**
+     * Loads the binary of a program.
+     *
+     * @param driver identifies the driver, e.g. GL renderer and version
+     * @param vertexSource the vertex shader source
+     * @param fragmentSource the fragment shader source
+     * @return the binary, or null if it is not cached or corrupt
+     */
+    public synchronized Binary load(final String driver, final String vertexSource,
+                                    final String fragmentSource) {
+        checkDriver(driver);
+        String name = getName(driver, vertexSource, fragmentSource);
+        byte[] data;
+        try {
+            data = mStorage.read(name);
+        } catch (IOException e) {
+            data = null;
+        }
+        if (data == null) {
+            mMissCount++;
+            return null;
+        }
+        Binary binary = decode(data);
+        if (binary == null) {
+            mCorruptCount++;
+            mMissCount++;
+            mStorage.delete(name);
+            return null;
+        }
+        mHitCount++;
+        return binary;
+    }
+
+    /**
+     * Stores the binary of a program, replacing an existing one.
+     *
+     * @param driver identifies the driver, e.g. GL renderer and version
+     * @param vertexSource the vertex shader source
+     * @param fragmentSource the fragment shader source
+     * @param binary the binary
+     * @return true if the binary was written
+     */
+    public synchronized boolean store(final String driver, final String vertexSource,
+                                      final String fragmentSource, final Binary binary) {
+        checkDriver(driver);
+        String name = getName(driver, vertexSource, fragmentSource);
+        try {
+            mStorage.write(name, encode(binary));
+            return true;
+        } catch (IOException e) {
+            mStorage.delete(name);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the binary of a program, e.g. because the driver rejected it.
+     */
+    public synchronized void remove(final String driver, final String vertexSource,
+                                    final String fragmentSource) {
+        mStorage.delete(getName(driver, vertexSource, fragmentSource));
+    }
+
+    /**
+     * Deletes all entries.
+     */
+    public synchronized void clear() {
+        String[] names = mStorage.list();
+        if (names != null) {
+            for (String name : names) {
+                mStorage.delete(name);
+            }
+        }
+    }
+
+    /**
+     * @return how often a binary was loaded
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how often no usable binary was found
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return how often a corrupt entry was found and deleted
+     */
+    public synchronized int getCorruptCount() {
+        return mCorruptCount;
+    }
+
+    private void checkDriver(final String driver) {
+        if (driver.equals(mCheckedDriver)) {
+            return;
+        }
+        // Binaries are only valid for the driver which produced them.
+        String prefix = hash(driver) + "-";
+        String[] names = mStorage.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(prefix)) {
+                    mStorage.delete(name);
+                }
+            }
+        }
+        mCheckedDriver = driver;
+    }
+
+    static String getName(final String driver, final String vertexSource,
+                          final String fragmentSource) {
+        return hash(driver) + "-" + hash(vertexSource + '\0' + fragmentSource);
+    }
+
+    private static String hash(final String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] encode(final Binary binary) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(binary.mData);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(binary.mData.length + 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(binary.mFormat);
+        out.writeInt(binary.mData.length);
+        out.writeLong(crc.getValue());
+        out.write(binary.mData);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Binary decode(final byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (length <= 0 || length != in.available()) {
+                return null;
+            }
+            byte[] binary = new byte[length];
+            in.readFully(binary);
+            CRC32 crc = new CRC32();
+            crc.update(binary);
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            return new Binary(format, binary);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the entries as files in a directory. Files are written to a
+     * temporary name first, so a crash never leaves a half written entry.
+     */
+    public static class FileStorage implements Storage {
+        private static final String TEMP_SUFFIX = ".tmp";
+
+        private final File mDirectory;
+
+        public FileStorage(final File directory) {
+            mDirectory = directory;
+        }
+
+        @Override
+        public String[] list() {
+            return mDirectory.list();
+        }
+
+        @Override
+        public byte[] read(final String name) throws IOException {
+            File file = new File(mDirectory, name);
+            if (!file.isFile()) {
+                return null;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] data = new byte[(int) file.length()];
+                int offset = 0;
+                while (offset < data.length) {
+                    int count = in.read(data, offset, data.length - offset);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+                    offset += count;
+                }
+                return data;
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void write(final String name, final byte[] data) throws IOException {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Cannot create " + mDirectory);
+            }
+            File temp = new File(mDirectory, name + TEMP_SUFFIX);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(new File(mDirectory, name))) {
+                temp.delete();
+                throw new IOException("Cannot rename " + temp);
+            }
+        }
+
+        @Override
+        public void delete(final String name) {
+            new File(mDirectory, name).delete();
+        }
+    }
+}
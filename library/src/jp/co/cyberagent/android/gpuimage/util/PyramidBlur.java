@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * CPU reference of the dual Kawase pyramid blur drawn by
+ * {@link jp.co.cyberagent.android.gpuimage.GPUImageDualKawaseBlurFilter}.<br>
+ * <br>
+ * Level 0 is the input. Each of the <code>iterations</code> down passes
+ * renders level i at <code>max(1, (size + 1) / 2)</code> of level i - 1,
+ * averaging its center with weight 4 and the four diagonal neighbors at
+ * <code>offset</code> texels of level i - 1 with weight 1. The up passes
+ * render level i - 1 from level i with a tent of four axis samples at
+ * <code>offset</code> texels of level i (weight 1) and four diagonal samples
+ * at half of that (weight 2). All samples are bilinear with clamped edges at
+ * pixel centers, like OpenGL does, and every pass is rounded to 8 bits like
+ * a RGBA8 framebuffer.<br>
+ * <br>
+ * The cost per output pixel is about the same for every radius, since each
+ * level has a quarter of the pixels of the previous one.<br>
+ * <br>
+ * This class does not depend on Android.
+ */
+public class PyramidBlur {
+    /** Levels below 1/256 of the input size hardly change the result. */
+    public static final int MAX_ITERATIONS = 8;
+
+    private final int mIterations;
+    private final float mOffset;
+
+    /**
+     * @param iterations the number of levels below the input, 0 copies the input
+     * @param offset the sample distance in texels of the level read, from 0 on up
+     */
+    public PyramidBlur(final int iterations, final float offset) {
+        mIterations = iterations;
+        mOffset = offset;
+    }
+
+    /**
+     * Chooses the pass count and offset which blur about as much as a
+     * Gaussian with the given standard deviation.
+     *
+     * @param sigma the standard deviation in pixels of the input
+     * @param maxOffset the largest offset to use; larger offsets need fewer
+     *                  levels but show more artifacts
+     * @return the blur
+     */
+    public static PyramidBlur forSigma(final float sigma, final float maxOffset) {
+        int iterations = 0;
+        while (iterations < MAX_ITERATIONS && getSigma(iterations, maxOffset) < sigma) {
+            iterations++;
+        }
+        if (iterations == 0) {
+            return new PyramidBlur(0, 0f);
+        }
+        // Fine tune the offset of the last level count, the spread grows with it.
+        float low = 0f;
+        float high = maxOffset;
+        for (int i = 0; i < 16; i++) {
+            float mid = (low + high) / 2f;
+            if (getSigma(iterations, mid) < sigma) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return new PyramidBlur(iterations, (low + high) / 2f);
+    }
+
+    /**
+     * Computes the standard deviation of the blur in pixels of the input,
+     * averaged over where a detail lies relative to the texels of the levels,
+     * ignoring the edges and the rounding to 8 bits.
+     */
+    public static float getSigma(final int iterations, final float offset) {
+        if (iterations <= 0) {
+            return 0f;
+        }
+        // Variances add up through the passes. The down pass to level i reads
+        // texels of 2^(i - 1) input pixels, its output pixels lie between
+        // them. The up pass from level i reads texels of 2^i input pixels,
+        // its output pixels lie a quarter texel off theirs. Per axis and in
+        // texels of the level read, every sample adds its squared distance
+        // plus the spread of its bilinear weights.
+        double variance = 0.0;
+        for (int i = 1; i <= iterations; i++) {
+            double down = Math.pow(2, i - 1);
+            double up = Math.pow(2, i);
+            double downVariance = (4.0 * getBilinearVariance(0.5)
+                    + 2.0 * (offset * offset + getBilinearVariance(0.5 + offset))
+                    + 2.0 * (offset * offset + getBilinearVariance(0.5 - offset))) / 8.0;
+            double upVariance = (2.0 * getBilinearVariance(0.25)
+                    + offset * offset + getBilinearVariance(0.25 + offset)
+                    + offset * offset + getBilinearVariance(0.25 - offset)
+                    + 4.0 * (offset * offset / 4.0 + getBilinearVariance(0.25 + offset / 2.0))
+                    + 4.0 * (offset * offset / 4.0 + getBilinearVariance(0.25 - offset / 2.0)))
+                    / 12.0;
+            variance += downVariance * down * down + upVariance * up * up;
+        }
+        return (float) Math.sqrt(variance);
+    }
+
+    /**
+     * @return the variance of the two texel weights of a linear sample
+     *         between texel centers
+     */
+    private static double getBilinearVariance(final double position) {
+        double fraction = position - Math.floor(position);
+        return fraction * (1.0 - fraction);
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    public float getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Blurs ARGB pixels.
+     *
+     * @param pixels the input, width * height ARGB ints as used by Bitmap
+     * @param width the input width
+     * @param height the input height
+     * @return the blurred pixels
+     */
+    public int[] blur(final int[] pixels, final int width, final int height) {
+        float[] level = new float[width * height * 4];
+        for (int i = 0; i < width * height; i++) {
+            int color = pixels[i];
+            level[i * 4] = ((color >> 16) & 0xff) / 255f;
+            level[i * 4 + 1] = ((color >> 8) & 0xff) / 255f;
+            level[i * 4 + 2] = (color & 0xff) / 255f;
+            level[i * 4 + 3] = (color >>> 24) / 255f;
+        }
+
+        float[][] levels = new float[mIterations + 1][];
+        int[] widths = new int[mIterations + 1];
+        int[] heights = new int[mIterations + 1];
+        levels[0] = level;
+        widths[0] = width;
+        heights[0] = height;
+        for (int i = 1; i <= mIterations; i++) {
+            widths[i] = getLevelSize(widths[i - 1]);
+            heights[i] = getLevelSize(heights[i - 1]);
+            levels[i] = downsample(levels[i - 1], widths[i - 1], heights[i - 1],
+                    widths[i], heights[i]);
+        }
+        for (int i = mIterations; i > 0; i--) {
+            level = upsample(levels[i], widths[i], heights[i],
+                    widths[i - 1], heights[i - 1]);
+            levels[i - 1] = level;
+        }
+
+        int[] out = new int[width * height];
+        for (int i = 0; i < width * height; i++) {
+            out[i] = (toByte(level[i * 4 + 3]) << 24) | (toByte(level[i * 4]) << 16)
+                    | (toByte(level[i * 4 + 1]) << 8) | toByte(level[i * 4 + 2]);
+        }
+        return out;
+    }
+
+    /**
+     * @return the size of the next smaller level
+     */
+    public static int getLevelSize(final int size) {
+        return Math.max(1, (size + 1) / 2);
+    }
+
+    private float[] downsample(final float[] source, final int sourceWidth,
+                               final int sourceHeight, final int width, final int height) {
+        float[] out = new float[width * height * 4];
+        float[] sample = new float[4];
+        float dx = mOffset / sourceWidth;
+        float dy = mOffset / sourceHeight;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float u = (x + 0.5f) / width;
+                float v = (y + 0.5f) / height;
+                int index = (y * width + x) * 4;
+                addSample(source, sourceWidth, sourceHeight, u, v, 4f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u - dx, v - dy, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u + dx, v + dy, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u + dx, v - dy, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u - dx, v + dy, 1f, out, index, sample);
+                quantize(out, index, 8f);
+            }
+        }
+        return out;
+    }
+
+    private float[] upsample(final float[] source, final int sourceWidth,
+                             final int sourceHeight, final int width, final int height) {
+        float[] out = new float[width * height * 4];
+        float[] sample = new float[4];
+        float dx = mOffset / sourceWidth;
+        float dy = mOffset / sourceHeight;
+        float hx = dx / 2f;
+        float hy = dy / 2f;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float u = (x + 0.5f) / width;
+                float v = (y + 0.5f) / height;
+                int index = (y * width + x) * 4;
+                addSample(source, sourceWidth, sourceHeight, u - dx, v, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u + dx, v, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u, v - dy, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u, v + dy, 1f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u - hx, v - hy, 2f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u + hx, v + hy, 2f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u + hx, v - hy, 2f, out, index, sample);
+                addSample(source, sourceWidth, sourceHeight, u - hx, v + hy, 2f, out, index, sample);
+                quantize(out, index, 12f);
+            }
+        }
+        return out;
+    }
+
+    private static void addSample(final float[] source, final int width, final int height,
+                                  final float u, final float v, final float weight,
+                                  final float[] out, final int index, final float[] sample) {
+        sampleBilinear(source, width, height, u, v, sample);
+        for (int c = 0; c < 4; c++) {
+            out[index + c] += sample[c] * weight;
+        }
+    }
+
+    /**
+     * Samples like GL_LINEAR with GL_CLAMP_TO_EDGE.
+     */
+    static void sampleBilinear(final float[] source, final int width, final int height,
+                               final float u, final float v, final float[] out) {
+        float x = u * width - 0.5f;
+        float y = v * height - 0.5f;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = x - x0;
+        float fy = y - y0;
+        int x1 = clamp(x0 + 1, width);
+        int y1 = clamp(y0 + 1, height);
+        x0 = clamp(x0, width);
+        y0 = clamp(y0, height);
+        for (int c = 0; c < 4; c++) {
+            float top = source[(y0 * width + x0) * 4 + c] * (1f - fx)
+                    + source[(y0 * width + x1) * 4 + c] * fx;
+            float bottom = source[(y1 * width + x0) * 4 + c] * (1f - fx)
+                    + source[(y1 * width + x1) * 4 + c] * fx;
+            out[c] = top * (1f - fy) + bottom * fy;
+        }
+    }
+
+    private static int clamp(final int value, final int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    private static void quantize(final float[] out, final int index, final float weightSum) {
+        for (int c = 0; c < 4; c++) {
+            out[index + c] = toByte(out[index + c] / weightSum) / 255f;
+        }
+    }
+
+    private static int toByte(final float value) {
+        int result = Math.round(value * 255f);
+        return result < 0 ? 0 : result > 255 ? 255 : result;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Summed-area table of 32 bit pixels with four 8 bit channels, so that the
+ * sum of any rectangle takes four lookups per channel.<br>
+ * <br>
+ * The channels are taken from the bytes of the ints, lowest byte first, so
+ * the table works for ARGB ints as used by Bitmap as well as for RGBA bytes
+ * read as little endian ints from OpenGL. The sums are kept in ints which
+ * may overflow for large images, but the sum of a rectangle is computed
+ * modulo 2^32 and is exact as long as it is below 2^31, i.e. for rectangles
+ * of up to 8 million pixels.<br>
+ * <br>
+ * Rows are summed in parallel, then columns. This class does not depend on
+ * Android.
+ */
+public class SummedAreaTable {
+    /** Tables with fewer entries are computed on the calling thread. */
+    static final int MIN_PARALLEL_PIXELS = 640 * 480;
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private final int mWidth;
+    private final int mHeight;
+    /** Entry (x + 1, y + 1) holds the sums of x' <= x, y' <= y; row and column 0 are 0. */
+    private final int[][] mTables = new int[4][];
+    private boolean mParallel = true;
+
+    public SummedAreaTable(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        for (int c = 0; c < 4; c++) {
+            mTables[c] = new int[(width + 1) * (height + 1)];
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Enables or disables computing large tables on several threads. Enabled
+     * by default.
+     */
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Computes the table.
+     *
+     * @param pixels width * height pixels, row by row
+     */
+    public void compute(final int[] pixels) {
+        compute(pixels, false);
+    }
+
+    /**
+     * Computes the table of the squared channels, for variances. The sum of a
+     * rectangle of up to 257 x 257 pixels fits into 32 bits, but has to be
+     * read with {@link #getUnsignedSum(int, int, int, int, int)}.
+     *
+     * @param pixels width * height pixels, row by row
+     */
+    public void computeSquares(final int[] pixels) {
+        compute(pixels, true);
+    }
+
+    private void compute(final int[] pixels, final boolean squared) {
+        final int stride = mWidth + 1;
+        runInBands(mHeight, new Band() {
+            @Override
+            public void run(final int start, final int end) {
+                for (int y = start; y < end; y++) {
+                    int row = (y + 1) * stride;
+                    for (int c = 0; c < 4; c++) {
+                        int[] table = mTables[c];
+                        int shift = c * 8;
+                        int sum = 0;
+                        for (int x = 0; x < mWidth; x++) {
+                            int value = (pixels[y * mWidth + x] >>> shift) & 0xff;
+                            sum += squared ? value * value : value;
+                            table[row + x + 1] = sum;
+                        }
+                    }
+                }
+            }
+        });
+        runInBands(mWidth, new Band() {
+            @Override
+            public void run(final int start, final int end) {
+                for (int c = 0; c < 4; c++) {
+                    int[] table = mTables[c];
+                    for (int y = 2; y <= mHeight; y++) {
+                        int row = y * stride;
+                        for (int x = start + 1; x <= end; x++) {
+                            table[row + x] += table[row - stride + x];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sums a channel over a rectangle, which is clipped to the image.
+     *
+     * @param channel the byte of the pixels, 0 for the lowest
+     * @param left the first column
+     * @param top the first row
+     * @param right the last column, inclusive
+     * @param bottom the last row, inclusive
+     * @return the sum
+     */
+    public int getSum(final int channel, final int left, final int top, final int right,
+                      final int bottom) {
+        int x0 = Math.max(left, 0);
+        int y0 = Math.max(top, 0);
+        int x1 = Math.min(right, mWidth - 1) + 1;
+        int y1 = Math.min(bottom, mHeight - 1) + 1;
+        if (x1 <= x0 || y1 <= y0) {
+            return 0;
+        }
+        int stride = mWidth + 1;
+        int[] table = mTables[channel];
+        return table[y1 * stride + x1] - table[y0 * stride + x1]
+                - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    /**
+     * Like {@link #getSum(int, int, int, int, int)}, for sums of up to 2^32 - 1.
+     */
+    public long getUnsignedSum(final int channel, final int left, final int top,
+                               final int right, final int bottom) {
+        return getSum(channel, left, top, right, bottom) & 0xffffffffL;
+    }
+
+    /**
+     * Computes the mean of the square around every pixel. At the edges only
+     * the pixels inside the image are averaged.
+     *
+     * @param radius the distance from the center to the edges of the square
+     * @param out receives width * height pixels in the layout of the input
+     */
+    public void getBoxMeans(final int radius, final int[] out) {
+        runInBands(mHeight, new Band() {
+            @Override
+            public void run(final int start, final int end) {
+                for (int y = start; y < end; y++) {
+                    int top = Math.max(y - radius, 0);
+                    int bottom = Math.min(y + radius, mHeight - 1);
+                    for (int x = 0; x < mWidth; x++) {
+                        int left = Math.max(x - radius, 0);
+                        int right = Math.min(x + radius, mWidth - 1);
+                        int area = (right - left + 1) * (bottom - top + 1);
+                        int pixel = 0;
+                        for (int c = 0; c < 4; c++) {
+                            int sum = getSum(c, left, top, right, bottom);
+                            pixel |= ((sum + area / 2) / area) << (c * 8);
+                        }
+                        out[y * mWidth + x] = pixel;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A range of rows or columns which is processed on one thread.
+     */
+    interface Band {
+        void run(int start, int end);
+    }
+
+    private void runInBands(final int size, final Band band) {
+        runInBands(size, mParallel && mWidth * mHeight >= MIN_PARALLEL_PIXELS, band);
+    }
+
+    /**
+     * Splits 0 until size into a band per processor and waits until all ran.
+     *
+     * @param parallel false to run everything on the calling thread
+     */
+    static void runInBands(final int size, final boolean parallel, final Band band) {
+        int threads = Math.min(THREAD_COUNT, size);
+        if (!parallel || threads < 2) {
+            band.run(0, size);
+            return;
+        }
+
+        int bandSize = (size + threads - 1) / threads;
+        ExecutorService executor = YuvConverter.getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int bandStart = bandSize; bandStart < size; bandStart += bandSize) {
+            final int start = bandStart;
+            final int end = Math.min(bandStart + bandSize, size);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    band.run(start, end);
+                }
+            }));
+        }
+        try {
+            band.run(0, Math.min(bandSize, size));
+        } finally {
+            YuvConverter.awaitAll(futures);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Converts NV21 frames (camera preview) to 32 bit RGBA pixels.<br>
+ * <br>
+ * The conversion is specified in 16.16 fixed point, so every implementation
+ * produces the same bits. With the coefficients of {@link #getCoefficients()}
+ * <code>{yOffset, cy, crv, cgu, cgv, cbu}</code> and u, v in [0, 255]:
+ * <pre>
+ * y' = (y - yOffset) * cy + 32768
+ * r  = clamp((y' + (v - 128) * crv) &gt;&gt; 16)
+ * g  = clamp((y' + (u - 128) * cgu + (v - 128) * cgv) &gt;&gt; 16)
+ * b  = clamp((y' + (u - 128) * cbu) &gt;&gt; 16)
+ * </pre>
+ * where <code>&gt;&gt;</code> is an arithmetic shift and clamp limits to
+ * [0, 255]. The coefficients are the {@link Standard} matrix scaled for the
+ * {@link Range}, multiplied by 65536 and rounded. Chroma is shared by 2x2
+ * pixels; its rows are <code>(width + 1) &amp; ~1</code> bytes long.<br>
+ * <br>
+ * This class implements the specification with lookup tables and does not
+ * depend on Android. Large frames are split into bands of rows which are
+ * converted in parallel. A faster {@link RowConverter}, e.g. the native one
+ * of {@link jp.co.cyberagent.android.gpuimage.GPUImageNativeLibrary}, can be
+ * plugged in and checked against this one.
+ */
+public class YuvConverter {
+    /** Frames with fewer pixels are converted on the calling thread. */
+    private static final int MIN_PARALLEL_PIXELS = 640 * 480;
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService sExecutor;
+
+    public enum Standard {
+        /** ITU-R BT.601, used by JPEG and standard definition video. */
+        BT601(0.299, 0.114),
+        /** ITU-R BT.709, used by high definition video. */
+        BT709(0.2126, 0.0722);
+
+        private final double mKr;
+        private final double mKb;
+
+        Standard(final double kr, final double kb) {
+            mKr = kr;
+            mKb = kb;
+        }
+    }
+
+    public enum Range {
+        /** Y in [16, 235], chroma in [16, 240]. */
+        LIMITED,
+        /** Y and chroma in [0, 255], e.g. JFIF. */
+        FULL
+    }
+
+    /**
+     * Converts a band of rows.
+     */
+    public interface RowConverter {
+        /**
+         * @param yuv the NV21 frame
+         * @param width the frame width
+         * @param height the frame height
+         * @param out receives width * height pixels
+         * @param rowStart the first row to convert
+         * @param rowEnd the row after the last one to convert
+         * @param coefficients see {@link YuvConverter#getCoefficients()}
+         * @param argb true for ARGB ints as used by Bitmap, false for ints whose
+         *             little endian bytes are R, G, B, A as used by OpenGL
+         */
+        void convertRows(byte[] yuv, int width, int height, int[] out, int rowStart, int rowEnd,
+                         int[] coefficients, boolean argb);
+    }
+
+    private final int[] mCoefficients;
+    private final int[] mYTable = new int[256];
+    private final int[] mRvTable = new int[256];
+    private final int[] mGuTable = new int[256];
+    private final int[] mGvTable = new int[256];
+    private final int[] mBuTable = new int[256];
+    private final RowConverter mJavaRowConverter = new RowConverter() {
+        @Override
+        public void convertRows(final byte[] yuv, final int width, final int height,
+                                final int[] out, final int rowStart, final int rowEnd,
+                                final int[] coefficients, final boolean argb) {
+            convertRowsWithTables(yuv, width, height, out, rowStart, rowEnd, argb);
+        }
+    };
+    private RowConverter mRowConverter = mJavaRowConverter;
+    private boolean mParallel = true;
+
+    public YuvConverter(final Standard standard, final Range range) {
+        mCoefficients = computeCoefficients(standard, range);
+        int yOffset = mCoefficients[0];
+        for (int i = 0; i < 256; i++) {
+            int c = i - 128;
+            mYTable[i] = (i - yOffset) * mCoefficients[1] + 32768;
+            mRvTable[i] = c * mCoefficients[2];
+            mGuTable[i] = c * mCoefficients[3];
+            mGvTable[i] = c * mCoefficients[4];
+            mBuTable[i] = c * mCoefficients[5];
+        }
+    }
+
+    static int[] computeCoefficients(final Standard standard, final Range range) {
+        double kr = standard.mKr;
+        double kb = standard.mKb;
+        double kg = 1.0 - kr - kb;
+        double yScale = range == Range.LIMITED ? 255.0 / 219.0 : 1.0;
+        double cScale = range == Range.LIMITED ? 255.0 / 224.0 : 1.0;
+        return new int[] {
+                range == Range.LIMITED ? 16 : 0,
+                fixed(yScale),
+                fixed(2.0 * (1.0 - kr) * cScale),
+                fixed(-2.0 * kb * (1.0 - kb) / kg * cScale),
+                fixed(-2.0 * kr * (1.0 - kr) / kg * cScale),
+                fixed(2.0 * (1.0 - kb) * cScale)
+        };
+    }
+
+    private static int fixed(final double value) {
+        return (int) Math.round(value * 65536.0);
+    }
+
+    /**
+     * @return <code>{yOffset, cy, crv, cgu, cgv, cbu}</code>, see the class description
+     */
+    public int[] getCoefficients() {
+        return mCoefficients.clone();
+    }
+
+    /**
+     * Sets the implementation which converts the rows.
+     *
+     * @param rowConverter the implementation, or null for the Java one
+     */
+    public void setRowConverter(final RowConverter rowConverter) {
+        mRowConverter = rowConverter != null ? rowConverter : mJavaRowConverter;
+    }
+
+    /**
+     * Enables or disables converting large frames on several threads. Enabled
+     * by default.
+     */
+    public void setParallel(final boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Converts a NV21 frame.
+     *
+     * @param yuv the NV21 frame
+     * @param width the frame width
+     * @param height the frame height
+     * @param out receives width * height pixels
+     * @param argb true for ARGB ints as used by Bitmap, false for ints whose
+     *             little endian bytes are R, G, B, A as used by OpenGL
+     */
+    public void convert(final byte[] yuv, final int width, final int height, final int[] out,
+                        final boolean argb) {
+        int threads = Math.min(THREAD_COUNT, height / 2);
+        if (!mParallel || threads < 2 || width * height < MIN_PARALLEL_PIXELS) {
+            mRowConverter.convertRows(yuv, width, height, out, 0, height, mCoefficients, argb);
+            return;
+        }
+
+        // Bands start at even rows, so no chroma row is split.
+        int bandHeight = ((height + threads - 1) / threads + 1) & ~1;
+        ExecutorService executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int rowStart = bandHeight; rowStart < height; rowStart += bandHeight) {
+            final int start = rowStart;
+            final int end = Math.min(rowStart + bandHeight, height);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mRowConverter.convertRows(yuv, width, height, out, start, end,
+                            mCoefficients, argb);
+                }
+            }));
+        }
+        try {
+            mRowConverter.convertRows(yuv, width, height, out, 0, Math.min(bandHeight, height),
+                    mCoefficients, argb);
+        } finally {
+            awaitAll(futures);
+        }
+    }
+
+    /**
+     * Waits for all tasks even if the calling thread is interrupted, since
+     * they still use the caller's arrays, and interrupts it again afterwards.
+     *
+     * @throws RuntimeException with the cause of the first task which failed
+     */
+    static void awaitAll(final List<Future<?>> futures) {
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /**
+     * Converts rows with the Java implementation, e.g. as a reference for
+     * other implementations.
+     */
+    public void convertRowsWithTables(final byte[] yuv, final int width, final int height,
+                                      final int[] out, final int rowStart, final int rowEnd,
+                                      final boolean argb) {
+        int chromaStride = (width + 1) & ~1;
+        int frameSize = width * height;
+        int rv = 0;
+        int guv = 0;
+        int bu = 0;
+        for (int j = rowStart; j < rowEnd; j++) {
+            int index = j * width;
+            int chromaIndex = frameSize + (j >> 1) * chromaStride;
+            for (int i = 0; i < width; i++, index++) {
+                if ((i & 1) == 0) {
+                    int v = yuv[chromaIndex + i] & 0xff;
+                    int u = yuv[chromaIndex + i + 1] & 0xff;
+                    rv = mRvTable[v];
+                    guv = mGuTable[u] + mGvTable[v];
+                    bu = mBuTable[u];
+                }
+                int y = mYTable[yuv[index] & 0xff];
+                int r = clamp((y + rv) >> 16);
+                int g = clamp((y + guv) >> 16);
+                int b = clamp((y + bu) >> 16);
+                out[index] = argb
+                        ? 0xff000000 | (r << 16) | (g << 8) | b
+                        : 0xff000000 | (b << 16) | (g << 8) | r;
+            }
+        }
+    }
+
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * @return the worker threads, also used by {@link SummedAreaTable}
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT - 1, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "GPUImageWorker-" + mCount++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
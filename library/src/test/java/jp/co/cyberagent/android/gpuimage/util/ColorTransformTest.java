@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ColorTransformTest {
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void foldedMatchesSequentialWithoutClamping() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            List<ColorTransform> stages = randomStages(random, 2 + random.nextInt(5));
+            ColorTransform folded = fold(stages);
+            for (int i = 0; i < 20; i++) {
+                float[] color = randomColor(random);
+                float[] expected = applySequentially(stages, color, false);
+                float[] actual = new float[4];
+                folded.apply(color, actual);
+                assertArrayEquals(stages.toString(), expected, actual, EPSILON * 10f);
+            }
+        }
+    }
+
+    @Test
+    public void foldedMatchesClampedPassesInGamut() {
+        List<ColorTransform> stages = new ArrayList<ColorTransform>();
+        stages.add(transform().brightness(0.1f));
+        stages.add(transform().contrast(0.8f));
+        stages.add(transform().saturation(0.5f));
+        stages.add(transform().channels(0.9f, 1f, 0.8f));
+        ColorTransform folded = fold(stages);
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            // Every stage keeps these colors inside [0, 1], so clamping does nothing.
+            float[] color = {0.8f * random.nextFloat(), 0.8f * random.nextFloat(),
+                    0.8f * random.nextFloat(), random.nextFloat()};
+            float[] actual = new float[4];
+            folded.apply(color, actual);
+            assertArrayEquals(applySequentially(stages, color, true), clamp(actual), EPSILON);
+        }
+    }
+
+    @Test
+    public void foldedSkipsIntermediateClamp() {
+        List<ColorTransform> stages = new ArrayList<ColorTransform>();
+        stages.add(transform().brightness(0.5f));
+        stages.add(transform().brightness(-0.5f));
+        ColorTransform folded = fold(stages);
+        float[] white = {1f, 1f, 1f, 1f};
+
+        // Separate passes clamp white + 0.5 to 1 before subtracting.
+        assertArrayEquals(new float[] {0.5f, 0.5f, 0.5f, 1f},
+                applySequentially(stages, white, true), EPSILON);
+        // The folded pass adds nothing and keeps white.
+        float[] actual = new float[4];
+        folded.apply(white, actual);
+        assertArrayEquals(white, clamp(actual), EPSILON);
+    }
+
+    @Test
+    public void preConcatAppliesOtherFirst() {
+        ColorTransform contrast = transform().contrast(1.5f);
+        ColorTransform brightness = transform().brightness(0.2f);
+        ColorTransform pre = new ColorTransform(contrast);
+        pre.preConcat(brightness);
+        ColorTransform post = new ColorTransform(brightness);
+        post.postConcat(contrast);
+        assertEquals(post, pre);
+
+        float[] actual = new float[4];
+        pre.apply(new float[] {0.5f, 0.5f, 0.5f, 1f}, actual);
+        // (0.5 + 0.2) * 1.5 + 0.5 * (1 - 1.5)
+        assertEquals(0.8f, actual[0], EPSILON);
+        assertEquals(1f, actual[3], EPSILON);
+    }
+
+    @Test
+    public void channelMultipliersMakeOpaque() {
+        float[] actual = new float[4];
+        transform().channels(0.5f, 1f, 2f).apply(new float[] {0.4f, 0.4f, 0.4f, 0.2f}, actual);
+        assertArrayEquals(new float[] {0.2f, 0.4f, 0.8f, 1f}, actual, EPSILON);
+    }
+
+    private static List<ColorTransform> randomStages(final Random random, final int count) {
+        List<ColorTransform> stages = new ArrayList<ColorTransform>();
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    stages.add(transform().brightness(random.nextFloat() - 0.5f));
+                    break;
+                case 1:
+                    stages.add(transform().contrast(2f * random.nextFloat()));
+                    break;
+                case 2:
+                    stages.add(transform().saturation(2f * random.nextFloat()));
+                    break;
+                case 3:
+                    stages.add(transform().hue(360f * random.nextFloat()));
+                    break;
+                case 4:
+                    stages.add(transform().channels(random.nextFloat(), random.nextFloat(),
+                            random.nextFloat()));
+                    break;
+                default:
+                    float[] matrix = new float[16];
+                    float[] offset = new float[4];
+                    for (int j = 0; j < 16; j++) {
+                        matrix[j] = random.nextFloat() - 0.5f;
+                    }
+                    for (int j = 0; j < 4; j++) {
+                        offset[j] = 0.2f * random.nextFloat() - 0.1f;
+                    }
+                    ColorTransform transform = new ColorTransform();
+                    transform.setColorMatrix(random.nextFloat(), matrix, offset);
+                    stages.add(transform);
+                    break;
+            }
+        }
+        return stages;
+    }
+
+    private static ColorTransform fold(final List<ColorTransform> stages) {
+        // As GPUImageFoldedColorMatrixFilter composes its filters.
+        ColorTransform folded = new ColorTransform();
+        for (ColorTransform stage : stages) {
+            folded.postConcat(stage);
+        }
+        return folded;
+    }
+
+    /**
+     * Applies every stage's matrix and offset on its own, optionally clamping
+     * after each stage like separate render passes into 8 bit targets.
+     */
+    private static float[] applySequentially(final List<ColorTransform> stages, final float[] color,
+                                             final boolean clamp) {
+        float[] matrix = new float[16];
+        float[] offset = new float[4];
+        float[] current = color.clone();
+        for (ColorTransform stage : stages) {
+            stage.getMatrix(matrix);
+            stage.getOffset(offset);
+            float[] next = new float[4];
+            for (int row = 0; row < 4; row++) {
+                float sum = offset[row];
+                for (int col = 0; col < 4; col++) {
+                    sum += matrix[row * 4 + col] * current[col];
+                }
+                next[row] = sum;
+            }
+            current = clamp ? clamp(next) : next;
+        }
+        return current;
+    }
+
+    private static float[] clamp(final float[] color) {
+        float[] out = new float[color.length];
+        for (int i = 0; i < color.length; i++) {
+            out[i] = Math.max(0f, Math.min(1f, color[i]));
+        }
+        return out;
+    }
+
+    private static float[] randomColor(final Random random) {
+        return new float[] {random.nextFloat(), random.nextFloat(), random.nextFloat(),
+                random.nextFloat()};
+    }
+
+    private static Builder transform() {
+        return new Builder();
+    }
+
+    private static class Builder extends ColorTransform {
+        Builder brightness(final float brightness) {
+            setBrightness(brightness);
+            return this;
+        }
+
+        Builder contrast(final float contrast) {
+            setContrast(contrast);
+            return this;
+        }
+
+        Builder saturation(final float saturation) {
+            setSaturation(saturation);
+            return this;
+        }
+
+        Builder hue(final float hue) {
+            setHue(hue);
+            return this;
+        }
+
+        Builder channels(final float red, final float green, final float blue) {
+            setChannelMultipliers(red, green, blue);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GaussianKernelTest {
+    private static final float MIN_WEIGHT = 1f / 256f;
+    private static final float EPSILON = 1e-6f;
+
+    @Test
+    public void effectiveWeightsMatchComputedWeights() {
+        for (float sigma = 0f; sigma <= GaussianKernel.MAX_SIGMA; sigma += GaussianKernel.SIGMA_STEP) {
+            GaussianKernel kernel = GaussianKernel.forSigma(sigma);
+            float[] weights = GaussianKernel.computeWeights(kernel.getSigma(), kernel.getRadius());
+            assertArrayEquals("sigma " + sigma, weights, kernel.getEffectiveWeights(), EPSILON);
+            assertArrayEquals("sigma " + sigma, weights, kernel.getWeights(), 0f);
+        }
+    }
+
+    @Test
+    public void weightsMatchNormalizedGaussian() {
+        for (float sigma = 1f; sigma <= GaussianKernel.MAX_SIGMA; sigma += GaussianKernel.SIGMA_STEP) {
+            GaussianKernel kernel = GaussianKernel.forSigma(sigma);
+            int radius = kernel.getRadius();
+            double[] gaussian = new double[radius + 1];
+            double sum = 0.0;
+            for (int i = -radius; i <= radius; i++) {
+                double weight = Math.exp(-i * i / (2.0 * sigma * sigma)) / (Math.sqrt(2.0 * Math.PI) * sigma);
+                if (i >= 0) {
+                    gaussian[i] = weight;
+                }
+                sum += weight;
+            }
+            float[] effective = kernel.getEffectiveWeights();
+            float total = effective[0];
+            for (int i = 0; i <= radius; i++) {
+                assertEquals("sigma " + sigma + " offset " + i, gaussian[i] / sum, effective[i], EPSILON);
+                if (i > 0) {
+                    total += 2f * effective[i];
+                }
+            }
+            assertEquals("sigma " + sigma, 1f, total, EPSILON * radius);
+        }
+    }
+
+    @Test
+    public void radiusReachesMinimumWeight() {
+        for (float sigma = 1f; sigma <= 200f; sigma += GaussianKernel.SIGMA_STEP) {
+            int radius = GaussianKernel.getRadius(sigma);
+            assertEquals("sigma " + sigma, 0, radius % 2);
+            // The last texel before the radius is still above 1/256 of the peak,
+            // the first one past it is below.
+            assertTrue("sigma " + sigma, relativeWeight(sigma, radius - 1) >= MIN_WEIGHT);
+            assertTrue("sigma " + sigma, relativeWeight(sigma, radius + 1) < MIN_WEIGHT);
+        }
+    }
+
+    @Test
+    public void radiusGrowsWithSigma() {
+        int previous = 0;
+        for (float sigma = 0f; sigma <= 200f; sigma += GaussianKernel.SIGMA_STEP) {
+            int radius = GaussianKernel.getRadius(sigma);
+            assertTrue("sigma " + sigma, radius >= previous);
+            assertTrue("sigma " + sigma, sigma < 1f || radius >= (int) (3f * sigma));
+            previous = radius;
+        }
+        assertEquals(0, GaussianKernel.getRadius(0.75f));
+        assertEquals(4, GaussianKernel.getRadius(1f));
+        assertEquals(32, GaussianKernel.getRadius(9.8f));
+        assertEquals(666, GaussianKernel.getRadius(200f));
+    }
+
+    @Test
+    public void largeSigmaIsClamped() {
+        GaussianKernel kernel = GaussianKernel.forSigma(150f);
+        assertEquals(GaussianKernel.MAX_SIGMA, kernel.getSigma(), 0f);
+        assertEquals(214, kernel.getRadius());
+        assertEquals(107, kernel.getSampleOffsets().length);
+        assertTrue(kernel.getFragmentShader().contains("singleStepOffset * 213."));
+    }
+
+    private static double relativeWeight(final float sigma, final int offset) {
+        return Math.exp(-(double) offset * offset / (2.0 * sigma * sigma));
+    }
+}
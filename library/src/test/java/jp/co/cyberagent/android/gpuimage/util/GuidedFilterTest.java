@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GuidedFilterTest {
+    /** Half a byte, plus what the summed-area tables may lose in double precision. */
+    private static final double ROUNDING = 0.5 + 1e-6;
+
+    @Test
+    public void boxMeansMatchNaive() {
+        Random random = new Random(43);
+        int width = 13;
+        int height = 8;
+        double[] values = new double[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble();
+        }
+        for (int radius = 0; radius <= 15; radius++) {
+            double[] out = new double[values.length];
+            GuidedFilter.boxMeans(values, width, height, radius, out);
+            double[] expected = naiveBoxMeans(values, width, height, radius);
+            for (int i = 0; i < values.length; i++) {
+                assertEquals("radius " + radius, expected[i], out[i], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void filterMatchesNaive() {
+        Random random = new Random(47);
+        int[][] sizes = {{1, 1}, {9, 4}, {20, 17}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            int[] pixels = blockyPixels(random, width, height);
+            for (int radius : new int[] {0, 1, 3, 8}) {
+                for (float epsilon : new float[] {0f, 0.001f, 0.01f, 0.2f}) {
+                    int[] out = new GuidedFilter(radius, epsilon).filter(pixels, width, height);
+                    for (int c = 0; c < 3; c++) {
+                        double[] channel = readChannel(pixels, c);
+                        double[][] coefficients = naiveCoefficients(channel, width, height,
+                                radius, epsilon);
+                        for (int i = 0; i < pixels.length; i++) {
+                            double expected = coefficients[0][i] * channel[i] + coefficients[1][i];
+                            assertByte(width + "x" + height + " radius " + radius + " epsilon "
+                                    + epsilon, expected, (out[i] >>> (c * 8)) & 0xff);
+                        }
+                    }
+                    for (int i = 0; i < pixels.length; i++) {
+                        assertEquals(pixels[i] & 0xff000000, out[i] & 0xff000000);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void coefficientsRoundLikeByteTargets() {
+        Random random = new Random(53);
+        int width = 16;
+        int height = 11;
+        int[] pixels = blockyPixels(random, width, height);
+        for (int radius : new int[] {1, 4}) {
+            for (float epsilon : new float[] {0.001f, 0.05f}) {
+                GuidedFilter filter = new GuidedFilter(radius, epsilon);
+                int[] meanScales = new int[pixels.length];
+                int[] meanOffsets = new int[pixels.length];
+                filter.computeCoefficients(pixels, width, height, meanScales, meanOffsets);
+                int[] out = filter.filter(pixels, width, height);
+                for (int c = 0; c < 3; c++) {
+                    double[] channel = readChannel(pixels, c);
+                    double[][] coefficients = naiveCoefficients(channel, width, height,
+                            radius, epsilon);
+                    for (int i = 0; i < pixels.length; i++) {
+                        int scale = (meanScales[i] >>> (c * 8)) & 0xff;
+                        int offset = (meanOffsets[i] >>> (c * 8)) & 0xff;
+                        assertByte("scale", coefficients[0][i], scale);
+                        assertByte("offset", coefficients[1][i], offset);
+                        // Applying the stored bytes, as the GPU does, stays within one level.
+                        double applied = scale / 255.0 * channel[i] + offset / 255.0;
+                        int filtered = (out[i] >>> (c * 8)) & 0xff;
+                        assertTrue(Math.abs(unorm8(applied) - filtered) <= 1);
+                    }
+                }
+                for (int i = 0; i < pixels.length; i++) {
+                    assertEquals(0, meanScales[i] & 0xff000000);
+                    assertEquals(0, meanOffsets[i] & 0xff000000);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts to an 8 bit normalized value as OpenGL ES does for color
+     * attachments: clamp to [0, 1], scale by 255 and round to nearest.
+     */
+    private static int unorm8(final double value) {
+        return (int) Math.floor(Math.max(0.0, Math.min(1.0, value)) * 255.0 + 0.5);
+    }
+
+    private static void assertByte(final String message, final double expected, final int actual) {
+        double scaled = Math.max(0.0, Math.min(1.0, expected)) * 255.0;
+        assertTrue(message + ": " + scaled + " vs " + actual, Math.abs(scaled - actual) <= ROUNDING);
+    }
+
+    /**
+     * @return {mean(a), mean(b)} of every pixel, from windows summed directly
+     */
+    private static double[][] naiveCoefficients(final double[] channel, final int width,
+                                                final int height, final int radius,
+                                                final float epsilon) {
+        double[] a = new double[channel.length];
+        double[] b = new double[channel.length];
+        double[] squares = new double[channel.length];
+        for (int i = 0; i < channel.length; i++) {
+            squares[i] = channel[i] * channel[i];
+        }
+        double[] means = naiveBoxMeans(channel, width, height, radius);
+        double[] meanSquares = naiveBoxMeans(squares, width, height, radius);
+        for (int i = 0; i < channel.length; i++) {
+            double variance = Math.max(meanSquares[i] - means[i] * means[i], 0.0);
+            a[i] = variance > 0.0 ? variance / (variance + epsilon) : 0.0;
+            b[i] = means[i] - a[i] * means[i];
+        }
+        return new double[][] {naiveBoxMeans(a, width, height, radius),
+                naiveBoxMeans(b, width, height, radius)};
+    }
+
+    private static double[] naiveBoxMeans(final double[] values, final int width, final int height,
+                                          final int radius) {
+        double[] out = new double[values.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0.0;
+                int count = 0;
+                for (int yy = Math.max(0, y - radius); yy <= Math.min(height - 1, y + radius); yy++) {
+                    for (int xx = Math.max(0, x - radius); xx <= Math.min(width - 1, x + radius); xx++) {
+                        sum += values[yy * width + xx];
+                        count++;
+                    }
+                }
+                out[y * width + x] = sum / count;
+            }
+        }
+        return out;
+    }
+
+    private static double[] readChannel(final int[] pixels, final int channel) {
+        double[] out = new double[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            out[i] = ((pixels[i] >>> (channel * 8)) & 0xff) / 255.0;
+        }
+        return out;
+    }
+
+    /**
+     * Flat blocks with a little noise and hard edges between them, so that
+     * both the smoothing and the edge preserving side of the filter matter.
+     */
+    private static int[] blockyPixels(final Random random, final int width, final int height) {
+        int[] blocks = new int[16];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = random.nextInt();
+        }
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int block = blocks[(y / 5 * 4 + x / 5) % blocks.length];
+                int noise = random.nextInt(8) * 0x010101;
+                pixels[y * width + x] = (block & 0xfff8f8f8) + noise;
+            }
+        }
+        return pixels;
+    }
+}
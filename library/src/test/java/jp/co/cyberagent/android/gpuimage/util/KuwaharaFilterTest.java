@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class KuwaharaFilterTest {
+    @Test
+    public void isotropicMatchesBruteForce() {
+        Random random = new Random(29);
+        int[][] sizes = {{1, 1}, {5, 3}, {16, 9}, {21, 22}};
+        for (int[] size : sizes) {
+            int[] pixels = randomPixels(random, size[0] * size[1]);
+            for (int radius : new int[] {0, 1, 2, 4, 7, 30}) {
+                assertArrayEquals(size[0] + "x" + size[1] + " radius " + radius,
+                        bruteForce(pixels, size[0], size[1], radius, 0f),
+                        new KuwaharaFilter(radius, 0f).filter(pixels, size[0], size[1]));
+            }
+        }
+    }
+
+    @Test
+    public void anisotropicMatchesBruteForce() {
+        Random random = new Random(31);
+        int width = 24;
+        int height = 19;
+        int[][] images = {randomPixels(random, width * height), stripes(random, width, height, true),
+                stripes(random, width, height, false)};
+        for (int[] pixels : images) {
+            for (int radius : new int[] {1, 3, 4, 8}) {
+                for (float anisotropy : new float[] {0.5f, 1f, KuwaharaFilter.MAX_ANISOTROPY}) {
+                    assertArrayEquals("radius " + radius + " anisotropy " + anisotropy,
+                            bruteForce(pixels, width, height, radius, anisotropy),
+                            new KuwaharaFilter(radius, anisotropy).filter(pixels, width, height));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void anisotropyChangesStripes() {
+        Random random = new Random(37);
+        int width = 32;
+        int height = 32;
+        int[] pixels = stripes(random, width, height, true);
+        assertFalse(Arrays.equals(new KuwaharaFilter(6, 0f).filter(pixels, width, height),
+                new KuwaharaFilter(6, 2f).filter(pixels, width, height)));
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        Random random = new Random(41);
+        int width = 641;
+        int height = 481;
+        int[] pixels = randomPixels(random, width * height);
+        KuwaharaFilter filter = new KuwaharaFilter(5, 1f);
+        int[] parallel = filter.filter(pixels, width, height);
+        filter.setParallel(false);
+        assertArrayEquals(filter.filter(pixels, width, height), parallel);
+    }
+
+    /**
+     * Sums the rectangles pixel by pixel and compares the quadrants as
+     * documented by {@link KuwaharaFilter}.
+     */
+    private static int[] bruteForce(final int[] pixels, final int width, final int height,
+                                    final int radius, final float anisotropy) {
+        int[] out = new int[pixels.length];
+        double[] variance = new double[1];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int halfWidth = radius;
+                int halfHeight = radius;
+                if (anisotropy > 0f && radius > 0) {
+                    int thickness = radius / 4;
+                    measure(pixels, width, height, x - radius, y - thickness,
+                            x + radius, y + thickness, variance);
+                    double horizontal = variance[0];
+                    measure(pixels, width, height, x - thickness, y - radius,
+                            x + thickness, y + radius, variance);
+                    double vertical = variance[0];
+                    double total = horizontal + vertical;
+                    double a = total > 1e-6 ? (vertical - horizontal) / total : 0.0;
+                    double stretch = 1.0 + anisotropy * Math.abs(a);
+                    int along = (int) Math.round(radius * stretch);
+                    int across = Math.max((int) Math.round(radius / stretch), 1);
+                    halfWidth = a > 0.0 ? along : across;
+                    halfHeight = a > 0.0 ? across : along;
+                }
+                int[][] quadrants = {
+                        {x - halfWidth, y - halfHeight, x, y},
+                        {x, y - halfHeight, x + halfWidth, y},
+                        {x, y, x + halfWidth, y + halfHeight},
+                        {x - halfWidth, y, x, y + halfHeight}
+                };
+                int best = 0;
+                double minVariance = Double.MAX_VALUE;
+                for (int[] q : quadrants) {
+                    int mean = measure(pixels, width, height, q[0], q[1], q[2], q[3], variance);
+                    if (variance[0] < minVariance) {
+                        minVariance = variance[0];
+                        best = mean;
+                    }
+                }
+                out[y * width + x] = (pixels[y * width + x] & 0xff000000) | best;
+            }
+        }
+        return out;
+    }
+
+    private static int measure(final int[] pixels, final int width, final int height,
+                               final int left, final int top, final int right, final int bottom,
+                               final double[] variance) {
+        int x0 = Math.max(left, 0);
+        int y0 = Math.max(top, 0);
+        int x1 = Math.min(right, width - 1);
+        int y1 = Math.min(bottom, height - 1);
+        int area = (x1 - x0 + 1) * (y1 - y0 + 1);
+        int means = 0;
+        variance[0] = 0.0;
+        for (int c = 0; c < 3; c++) {
+            long sum = 0;
+            long sumOfSquares = 0;
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int value = (pixels[y * width + x] >>> (c * 8)) & 0xff;
+                    sum += value;
+                    sumOfSquares += value * value;
+                }
+            }
+            double mean = sum / (area * 255.0);
+            variance[0] += Math.max(sumOfSquares / (area * 65025.0) - mean * mean, 0.0);
+            means |= (int) ((sum + area / 2) / area) << (c * 8);
+        }
+        return means;
+    }
+
+    private static int[] stripes(final Random random, final int width, final int height,
+                                 final boolean horizontal) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int stripe = ((horizontal ? y : x) / 3) % 2 == 0 ? 0x30 : 0xc0;
+                int noise = random.nextInt(16);
+                int value = stripe + noise;
+                pixels[y * width + x] = 0xff000000 | (value << 16) | (value << 8) | value;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] randomPixels(final Random random, final int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
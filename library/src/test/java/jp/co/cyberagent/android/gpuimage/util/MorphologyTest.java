@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MorphologyTest {
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(11);
+        int[][] sizes = {{1, 1}, {1, 9}, {8, 1}, {7, 5}, {16, 16}, {33, 20}};
+        int[] radii = {0, 1, 2, 3, 7, 40};
+        for (Morphology.Operation operation : Morphology.Operation.values()) {
+            for (int[] size : sizes) {
+                int[] pixels = randomPixels(random, size[0] * size[1]);
+                for (int radius : radii) {
+                    Morphology morphology = new Morphology(operation, radius);
+                    assertArrayEquals(operation + " " + size[0] + "x" + size[1] + " radius " + radius,
+                            bruteForce(operation, pixels, size[0], size[1], radius),
+                            morphology.apply(pixels, size[0], size[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesBruteForce() {
+        Random random = new Random(13);
+        int width = 641;
+        int height = 481;
+        int[] pixels = randomPixels(random, width * height);
+        for (Morphology.Operation operation : new Morphology.Operation[] {
+                Morphology.Operation.DILATE, Morphology.Operation.GRADIENT}) {
+            Morphology morphology = new Morphology(operation, 2);
+            int[] parallel = morphology.apply(pixels, width, height);
+            morphology.setParallel(false);
+            assertArrayEquals(operation.toString(), morphology.apply(pixels, width, height), parallel);
+            assertArrayEquals(operation.toString(),
+                    bruteForce(operation, pixels, width, height, 2), parallel);
+        }
+    }
+
+    @Test
+    public void passOffsetsCoverRadiusExactly() {
+        for (int radius = 0; radius <= 400; radius++) {
+            int[][] passes = Morphology.getPassOffsets(radius);
+            // The offsets reachable from the center, shifted by radius.
+            boolean[] reached = new boolean[2 * radius + 1];
+            reached[radius] = true;
+            int reach = 0;
+            for (int[] pass : passes) {
+                int near = pass[0];
+                int far = pass[1];
+                assertTrue("radius " + radius, 0 < near && near <= far);
+                // Each sample covers the 2 * reach + 1 texels of the previous passes.
+                assertTrue("radius " + radius, near <= 2 * reach + 1);
+                assertTrue("radius " + radius, far - near <= 2 * reach + 1);
+                boolean[] next = new boolean[reached.length];
+                for (int i = 0; i < reached.length; i++) {
+                    if (!reached[i]) {
+                        continue;
+                    }
+                    for (int offset : new int[] {0, near, -near, far, -far}) {
+                        int j = i + offset;
+                        assertTrue("radius " + radius + " reaches " + (j - radius),
+                                j >= 0 && j < next.length);
+                        next[j] = true;
+                    }
+                }
+                reached = next;
+                reach += far;
+            }
+            assertEquals(radius, reach);
+            for (int i = 0; i < reached.length; i++) {
+                assertTrue("radius " + radius + " misses " + (i - radius), reached[i]);
+            }
+            assertEquals("radius " + radius, minimumPasses(radius), passes.length);
+        }
+    }
+
+    private static int minimumPasses(final int radius) {
+        if (radius == 0) {
+            return 0;
+        }
+        return radius <= 2 ? 1 : radius <= 12 ? 2 : radius <= 62 ? 3 : radius <= 312 ? 4 : 5;
+    }
+
+    private static int[] bruteForce(final Morphology.Operation operation, final int[] pixels,
+                                    final int width, final int height, final int radius) {
+        switch (operation) {
+            case DILATE:
+                return extremum(pixels, width, height, radius, true);
+            case ERODE:
+                return extremum(pixels, width, height, radius, false);
+            case OPEN:
+                return extremum(extremum(pixels, width, height, radius, false),
+                        width, height, radius, true);
+            case CLOSE:
+                return extremum(extremum(pixels, width, height, radius, true),
+                        width, height, radius, false);
+            case TOP_HAT:
+                return subtract(pixels, bruteForce(Morphology.Operation.OPEN,
+                        pixels, width, height, radius));
+            default:
+                return subtract(extremum(pixels, width, height, radius, true),
+                        extremum(pixels, width, height, radius, false));
+        }
+    }
+
+    private static int[] extremum(final int[] pixels, final int width, final int height,
+                                  final int radius, final boolean max) {
+        int[] out = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int value = max ? 0 : 255;
+                    for (int yy = Math.max(0, y - radius); yy <= Math.min(height - 1, y + radius); yy++) {
+                        for (int xx = Math.max(0, x - radius); xx <= Math.min(width - 1, x + radius); xx++) {
+                            int channel = (pixels[yy * width + xx] >>> shift) & 0xff;
+                            value = max ? Math.max(value, channel) : Math.min(value, channel);
+                        }
+                    }
+                    pixel |= value << shift;
+                }
+                out[y * width + x] = pixel;
+            }
+        }
+        return out;
+    }
+
+    private static int[] subtract(final int[] minuends, final int[] subtrahends) {
+        int[] out = new int[minuends.length];
+        for (int i = 0; i < out.length; i++) {
+            int pixel = minuends[i] & 0xff000000;
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = ((minuends[i] >>> shift) & 0xff) - ((subtrahends[i] >>> shift) & 0xff);
+                pixel |= Math.max(0, difference) << shift;
+            }
+            out[i] = pixel;
+        }
+        return out;
+    }
+
+    private static int[] randomPixels(final Random random, final int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PreviewFrameRingTest {
+    private static final int BUFFER_COUNT = 3;
+
+    @Test
+    public void latestFrameWins() {
+        CameraSink camera = new CameraSink();
+        PreviewFrameRing ring = new PreviewFrameRing(4, 2, BUFFER_COUNT,
+                PreviewFrameRing.getNV21BufferSize(4, 2), camera);
+        assertEquals(12, PreviewFrameRing.getNV21BufferSize(4, 2));
+        assertEquals(BUFFER_COUNT, camera.mFree.size());
+        assertNull(ring.acquireLatest());
+
+        byte[] first = camera.fill(1);
+        byte[] second = camera.fill(2);
+        ring.offer(first);
+        ring.offer(second);
+        // The first frame was replaced and went straight back to the camera.
+        assertTrue(camera.isFree(first));
+        assertSame(second, ring.acquireLatest());
+        assertNull(ring.acquireLatest());
+        ring.release(second);
+
+        assertEquals(2, ring.getReceivedCount());
+        assertEquals(1, ring.getProcessedCount());
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(BUFFER_COUNT, camera.mFree.size());
+        camera.assertNoError();
+    }
+
+    @Test
+    public void fastProducerDropsFrames() throws Exception {
+        final int frameCount = 2000;
+        final CameraSink camera = new CameraSink();
+        final PreviewFrameRing ring = new PreviewFrameRing(16, 16, BUFFER_COUNT,
+                PreviewFrameRing.getNV21BufferSize(16, 16), camera);
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= frameCount; i++) {
+                    ring.offer(camera.fill(i));
+                }
+            }
+        });
+        producer.start();
+
+        int lastSequence = 0;
+        while (lastSequence < frameCount) {
+            boolean producing = producer.isAlive();
+            byte[] frame = ring.acquireLatest();
+            if (frame == null) {
+                if (!producing) {
+                    break;
+                }
+                Thread.yield();
+                continue;
+            }
+            int sequence = ByteBuffer.wrap(frame).getInt();
+            if (sequence <= lastSequence) {
+                fail("Frame " + sequence + " after frame " + lastSequence);
+            }
+            lastSequence = sequence;
+            // Slower than the producer, so most frames are replaced.
+            Thread.sleep(1);
+            ring.release(frame);
+        }
+        producer.join();
+
+        assertEquals(frameCount, lastSequence);
+        assertNull(ring.acquireLatest());
+        assertEquals(frameCount, ring.getReceivedCount());
+        assertEquals(frameCount, ring.getProcessedCount() + ring.getDroppedCount());
+        assertTrue(ring.getDroppedCount() > 0);
+        // Every offered buffer came back exactly once, dropped or processed.
+        assertEquals(frameCount, camera.mReturnCount);
+        assertEquals(BUFFER_COUNT, camera.mFree.size());
+        camera.assertNoError();
+    }
+
+    /**
+     * Stands in for the camera: fills free buffers and checks that a buffer
+     * is never returned while it is already free.
+     */
+    private static class CameraSink implements PreviewFrameRing.BufferSink {
+        private final BlockingQueue<byte[]> mFree = new LinkedBlockingQueue<byte[]>();
+        private final Map<byte[], Boolean> mKnown = new IdentityHashMap<byte[], Boolean>();
+        private int mCreateCount;
+        private int mReturnCount;
+        private String mError;
+
+        @Override
+        public synchronized void onBufferAvailable(final byte[] buffer) {
+            Boolean free = mKnown.get(buffer);
+            if (free == null) {
+                if (mCreateCount == BUFFER_COUNT) {
+                    setError("Unknown buffer");
+                }
+                mCreateCount++;
+            } else if (free) {
+                setError("Buffer returned twice");
+            } else {
+                mReturnCount++;
+            }
+            mKnown.put(buffer, true);
+            mFree.add(buffer);
+        }
+
+        byte[] fill(final int sequence) {
+            byte[] buffer;
+            try {
+                buffer = mFree.poll(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            assertNotNull("No free buffer", buffer);
+            synchronized (this) {
+                mKnown.put(buffer, false);
+            }
+            ByteBuffer.wrap(buffer).putInt(sequence);
+            return buffer;
+        }
+
+        synchronized boolean isFree(final byte[] buffer) {
+            return Boolean.TRUE.equals(mKnown.get(buffer));
+        }
+
+        synchronized void setError(final String error) {
+            if (mError == null) {
+                mError = error;
+            }
+        }
+
+        synchronized void assertNoError() {
+            assertNull(mError, mError);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramBinaryCacheTest {
+    private static final String DRIVER = "Adreno (TM) 540 OpenGL ES 3.2 V@331.0";
+    private static final String VERTEX = "attribute vec4 position;\nvoid main() { gl_Position = position; }";
+    private static final String FRAGMENT = "void main() { gl_FragColor = vec4(1.0); }";
+
+    // Offsets in an encoded entry.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DATA_OFFSET = 24;
+
+    @Test
+    public void storeAndLoadRoundTrip() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        ProgramBinaryCache cache = new ProgramBinaryCache(storage);
+        byte[] data = {1, 2, 3, 4, 5, -1, -128, 127};
+        assertTrue(cache.store(DRIVER, VERTEX, FRAGMENT, new ProgramBinaryCache.Binary(0x8741, data)));
+
+        // A new instance reads what the previous one wrote.
+        cache = new ProgramBinaryCache(storage);
+        ProgramBinaryCache.Binary binary = cache.load(DRIVER, VERTEX, FRAGMENT);
+        assertNotNull(binary);
+        assertEquals(0x8741, binary.getFormat());
+        assertArrayEquals(data, binary.getData());
+
+        byte[] encoded = ProgramBinaryCache.encode(new ProgramBinaryCache.Binary(-7, data));
+        ProgramBinaryCache.Binary decoded = ProgramBinaryCache.decode(encoded);
+        assertNotNull(decoded);
+        assertEquals(-7, decoded.getFormat());
+        assertArrayEquals(data, decoded.getData());
+    }
+
+    @Test
+    public void hitsAndMissesBySources() {
+        ProgramBinaryCache cache = new ProgramBinaryCache(new MemoryStorage());
+        assertNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.store(DRIVER, VERTEX, FRAGMENT, new ProgramBinaryCache.Binary(1, new byte[] {42}));
+        assertNotNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertNotNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // Any other source is a different program.
+        assertNull(cache.load(DRIVER, VERTEX, FRAGMENT + " "));
+        assertNull(cache.load(DRIVER, FRAGMENT, VERTEX));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0, cache.getCorruptCount());
+
+        cache.remove(DRIVER, VERTEX, FRAGMENT);
+        assertNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void changedDriverDeletesOldEntries() {
+        MemoryStorage storage = new MemoryStorage();
+        ProgramBinaryCache cache = new ProgramBinaryCache(storage);
+        cache.store(DRIVER, VERTEX, FRAGMENT, new ProgramBinaryCache.Binary(1, new byte[] {1}));
+        cache.store(DRIVER, FRAGMENT, VERTEX, new ProgramBinaryCache.Binary(1, new byte[] {2}));
+        assertEquals(2, storage.mEntries.size());
+
+        // E.g. after a driver update.
+        String updated = DRIVER.replace("331.0", "415.0");
+        cache = new ProgramBinaryCache(storage);
+        assertNull(cache.load(updated, VERTEX, FRAGMENT));
+        assertTrue(storage.mEntries.isEmpty());
+        assertEquals(0, cache.getCorruptCount());
+
+        cache.store(updated, VERTEX, FRAGMENT, new ProgramBinaryCache.Binary(1, new byte[] {3}));
+        assertTrue(storage.mEntries.containsKey(ProgramBinaryCache.getName(updated, VERTEX, FRAGMENT)));
+        assertFalse(storage.mEntries.containsKey(ProgramBinaryCache.getName(DRIVER, VERTEX, FRAGMENT)));
+        assertNotNull(cache.load(updated, VERTEX, FRAGMENT));
+    }
+
+    @Test
+    public void badMagicIsDeleted() {
+        assertCorruptEntryDeleted(MAGIC_OFFSET);
+    }
+
+    @Test
+    public void badVersionIsDeleted() {
+        assertCorruptEntryDeleted(VERSION_OFFSET + 3);
+    }
+
+    @Test
+    public void badChecksumIsDeleted() {
+        assertCorruptEntryDeleted(DATA_OFFSET + 2);
+    }
+
+    private static void assertCorruptEntryDeleted(final int flippedByte) {
+        MemoryStorage storage = new MemoryStorage();
+        ProgramBinaryCache cache = new ProgramBinaryCache(storage);
+        cache.store(DRIVER, VERTEX, FRAGMENT,
+                new ProgramBinaryCache.Binary(1, new byte[] {10, 20, 30, 40}));
+        String name = ProgramBinaryCache.getName(DRIVER, VERTEX, FRAGMENT);
+        storage.mEntries.get(name)[flippedByte] ^= 0x01;
+
+        assertNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertFalse(storage.mEntries.containsKey(name));
+        assertEquals(1, cache.getCorruptCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+
+        // Deleted, so the next load is a plain miss.
+        assertNull(cache.load(DRIVER, VERTEX, FRAGMENT));
+        assertEquals(1, cache.getCorruptCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    private static class MemoryStorage implements ProgramBinaryCache.Storage {
+        private final Map<String, byte[]> mEntries = new HashMap<String, byte[]>();
+
+        @Override
+        public String[] list() {
+            return mEntries.keySet().toArray(new String[mEntries.size()]);
+        }
+
+        @Override
+        public byte[] read(final String name) {
+            byte[] data = mEntries.get(name);
+            return data != null ? data.clone() : null;
+        }
+
+        @Override
+        public void write(final String name, final byte[] data) {
+            mEntries.put(name, data.clone());
+        }
+
+        @Override
+        public void delete(final String name) {
+            mEntries.remove(name);
+        }
+    }
+}
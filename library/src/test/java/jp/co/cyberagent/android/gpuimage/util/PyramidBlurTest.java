@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PyramidBlurTest {
+    /** The max offsets of the quality levels of the GPU filter. */
+    private static final float[] MAX_OFFSETS = {1f, 2f, 3f};
+
+    @Test
+    public void forSigmaIsMonotonicAndHitsTarget() {
+        for (float maxOffset : MAX_OFFSETS) {
+            assertEquals(0, PyramidBlur.forSigma(0f, maxOffset).getIterations());
+            float previousSigma = 0f;
+            int previousIterations = 0;
+            for (float sigma = 0.05f; sigma <= 150f; sigma += 0.05f) {
+                PyramidBlur blur = PyramidBlur.forSigma(sigma, maxOffset);
+                int iterations = blur.getIterations();
+                float offset = blur.getOffset();
+                float actual = PyramidBlur.getSigma(iterations, offset);
+                String message = "max offset " + maxOffset + " sigma " + sigma;
+                assertTrue(message, iterations >= previousIterations);
+                assertTrue(message, actual >= previousSigma);
+                assertTrue(message, offset >= 0f && offset <= maxOffset);
+
+                float lowest = PyramidBlur.getSigma(iterations, 0f);
+                float highest = PyramidBlur.getSigma(iterations, maxOffset);
+                // The bisection narrows the offset down to maxOffset / 2^16.
+                float step = maxOffset / 65536f;
+                float tolerance = PyramidBlur.getSigma(iterations, Math.min(offset + step, maxOffset))
+                        - PyramidBlur.getSigma(iterations, Math.max(offset - step, 0f)) + 1e-4f;
+                if (sigma <= lowest) {
+                    // Between two level counts, the smallest blur above is taken.
+                    assertEquals(message, lowest, actual, tolerance);
+                } else if (sigma <= highest) {
+                    assertEquals(message, sigma, actual, tolerance);
+                } else {
+                    assertEquals(message, PyramidBlur.MAX_ITERATIONS, iterations);
+                    assertEquals(message, highest, actual, tolerance);
+                }
+                previousSigma = actual;
+                previousIterations = iterations;
+            }
+        }
+    }
+
+    @Test
+    public void blurKeepsConstantImage() {
+        Random random = new Random(59);
+        int[][] sizes = {{1, 1}, {2, 3}, {17, 9}, {64, 48}, {100, 1}};
+        for (int[] size : sizes) {
+            int[] pixels = new int[size[0] * size[1]];
+            Arrays.fill(pixels, random.nextInt());
+            for (int iterations = 0; iterations <= PyramidBlur.MAX_ITERATIONS; iterations++) {
+                for (float offset : new float[] {0f, 0.7f, 1.5f, 3f}) {
+                    assertArrayEquals(size[0] + "x" + size[1] + " iterations " + iterations
+                                    + " offset " + offset, pixels,
+                            new PyramidBlur(iterations, offset).blur(pixels, size[0], size[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void measuredSpreadMatchesSigma() {
+        for (float maxOffset : MAX_OFFSETS) {
+            for (float sigma : new float[] {1f, 2f, 3f, 5f, 8f, 12f, 20f}) {
+                PyramidBlur blur = PyramidBlur.forSigma(sigma, maxOffset);
+                double expected = PyramidBlur.getSigma(blur.getIterations(), blur.getOffset());
+                double measured = measureSpread(blur);
+                assertEquals("max offset " + maxOffset + " sigma " + sigma,
+                        expected, measured, 0.05 * expected);
+            }
+        }
+    }
+
+    /**
+     * Measures the standard deviation of the line spread function, the
+     * derivative of a blurred edge. A single pixel impulse would mostly be
+     * rounded away by the 8 bit passes. The pyramid is not shift invariant,
+     * so the variance is averaged over every position of the edge relative
+     * to the coarsest level.
+     */
+    private static double measureSpread(final PyramidBlur blur) {
+        int width = 1024;
+        int height = 2;
+        int phases = 1 << blur.getIterations();
+        double variance = 0.0;
+        for (int phase = 0; phase < phases; phase++) {
+            int edge = width / 2 + phase;
+            int[] pixels = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y * width + x] = x < edge ? 0xff000000 : 0xffffffff;
+                }
+            }
+            int[] out = blur.blur(pixels, width, height);
+            double total = 0.0;
+            double mean = 0.0;
+            double squares = 0.0;
+            for (int x = 0; x + 1 < width; x++) {
+                int step = (out[x + 1] & 0xff) - (out[x] & 0xff);
+                double position = x + 0.5;
+                total += step;
+                mean += step * position;
+                squares += step * position * position;
+            }
+            mean /= total;
+            variance += squares / total - mean * mean;
+        }
+        return Math.sqrt(variance / phases);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SummedAreaTableTest {
+    @Test
+    public void sumsMatchBruteForce() {
+        Random random = new Random(17);
+        int width = 23;
+        int height = 14;
+        int[] pixels = randomPixels(random, width * height);
+        SummedAreaTable sums = new SummedAreaTable(width, height);
+        sums.compute(pixels);
+        SummedAreaTable squares = new SummedAreaTable(width, height);
+        squares.computeSquares(pixels);
+        for (int i = 0; i < 2000; i++) {
+            int left = random.nextInt(width + 6) - 3;
+            int top = random.nextInt(height + 6) - 3;
+            int right = left + random.nextInt(width);
+            int bottom = top + random.nextInt(height);
+            for (int c = 0; c < 4; c++) {
+                assertEquals(bruteForceSum(pixels, width, height, c, left, top, right, bottom, false),
+                        sums.getSum(c, left, top, right, bottom));
+                assertEquals(bruteForceSum(pixels, width, height, c, left, top, right, bottom, true),
+                        squares.getUnsignedSum(c, left, top, right, bottom));
+            }
+        }
+        assertEquals(0, sums.getSum(0, 5, 5, 4, 9));
+        assertEquals(0, sums.getSum(0, width, 0, width + 3, height));
+    }
+
+    @Test
+    public void squaredSumsWrapAroundAtLimit() {
+        // The table entries overflow far before the corner, the sums of
+        // rectangles are still exact modulo 2^32.
+        int width = 300;
+        int height = 280;
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, 0xffffffff);
+        SummedAreaTable squares = new SummedAreaTable(width, height);
+        squares.computeSquares(pixels);
+
+        long limit = 257L * 257L * 255L * 255L;
+        assertTrue(limit < 1L << 32 && limit > Integer.MAX_VALUE);
+        for (int c = 0; c < 4; c++) {
+            assertEquals(limit, squares.getUnsignedSum(c, 0, 0, 256, 256));
+            assertEquals(limit, squares.getUnsignedSum(c, 20, 10, 276, 266));
+            // The signed sum is the same bits.
+            assertEquals((int) limit, squares.getSum(c, 20, 10, 276, 266));
+            assertTrue(squares.getSum(c, 20, 10, 276, 266) < 0);
+            assertEquals(255L * 255L, squares.getUnsignedSum(c, 299, 279, 299, 279));
+        }
+        // One more row wraps around past 2^32.
+        assertEquals((258L * 257L * 65025L) & 0xffffffffL,
+                squares.getUnsignedSum(0, 0, 0, 256, 257));
+    }
+
+    @Test
+    public void boxMeansMatchBruteForce() {
+        Random random = new Random(19);
+        int width = 17;
+        int height = 12;
+        int[] pixels = randomPixels(random, width * height);
+        SummedAreaTable sums = new SummedAreaTable(width, height);
+        sums.compute(pixels);
+        for (int radius = 0; radius <= 20; radius++) {
+            int[] out = new int[width * height];
+            sums.getBoxMeans(radius, out);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int left = Math.max(x - radius, 0);
+                    int top = Math.max(y - radius, 0);
+                    int right = Math.min(x + radius, width - 1);
+                    int bottom = Math.min(y + radius, height - 1);
+                    int area = (right - left + 1) * (bottom - top + 1);
+                    int expected = 0;
+                    for (int c = 0; c < 4; c++) {
+                        long sum = bruteForceSum(pixels, width, height, c, left, top, right, bottom, false);
+                        expected |= (int) ((sum + area / 2) / area) << (c * 8);
+                    }
+                    assertEquals("radius " + radius, expected, out[y * width + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSerial() {
+        Random random = new Random(23);
+        int width = 641;
+        int height = 481;
+        int[] pixels = randomPixels(random, width * height);
+        SummedAreaTable parallel = new SummedAreaTable(width, height);
+        parallel.compute(pixels);
+        SummedAreaTable serial = new SummedAreaTable(width, height);
+        serial.setParallel(false);
+        serial.compute(pixels);
+        int[] parallelMeans = new int[width * height];
+        int[] serialMeans = new int[width * height];
+        parallel.getBoxMeans(3, parallelMeans);
+        serial.getBoxMeans(3, serialMeans);
+        assertArrayEquals(serialMeans, parallelMeans);
+        for (int i = 0; i < 100; i++) {
+            int left = random.nextInt(width);
+            int top = random.nextInt(height);
+            int right = left + random.nextInt(width - left);
+            int bottom = top + random.nextInt(height - top);
+            for (int c = 0; c < 4; c++) {
+                assertEquals(serial.getSum(c, left, top, right, bottom),
+                        parallel.getSum(c, left, top, right, bottom));
+            }
+        }
+    }
+
+    @Test
+    public void bandsFinishWhenInterrupted() {
+        final int size = 64;
+        final int[] done = new int[size];
+        Thread.currentThread().interrupt();
+        SummedAreaTable.runInBands(size, true, new SummedAreaTable.Band() {
+            @Override
+            public void run(final int start, final int end) {
+                if (start > 0) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    done[i]++;
+                }
+            }
+        });
+        // Checked right away, before bands which were not waited for could finish.
+        int[] snapshot = done.clone();
+        assertTrue(Thread.interrupted());
+        int[] expected = new int[size];
+        Arrays.fill(expected, 1);
+        assertArrayEquals(expected, snapshot);
+    }
+
+    private static long bruteForceSum(final int[] pixels, final int width, final int height,
+                                      final int channel, final int left, final int top,
+                                      final int right, final int bottom, final boolean squared) {
+        long sum = 0;
+        for (int y = Math.max(top, 0); y <= Math.min(bottom, height - 1); y++) {
+            for (int x = Math.max(left, 0); x <= Math.min(right, width - 1); x++) {
+                int value = (pixels[y * width + x] >>> (channel * 8)) & 0xff;
+                sum += squared ? value * value : value;
+            }
+        }
+        return sum;
+    }
+
+    private static int[] randomPixels(final Random random, final int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
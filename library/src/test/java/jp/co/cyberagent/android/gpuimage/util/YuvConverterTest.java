@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvConverterTest {
+    /** Published matrices: {cy, crv, cgu, cgv, cbu}. */
+    private static final double[] BT601_LIMITED = {1.164384, 1.596027, -0.391762, -0.812968, 2.017232};
+    private static final double[] BT601_FULL = {1.0, 1.402, -0.344136, -0.714136, 1.772};
+    private static final double[] BT709_LIMITED = {1.164384, 1.792741, -0.213249, -0.532909, 2.112402};
+    private static final double[] BT709_FULL = {1.0, 1.5748, -0.187324, -0.468124, 1.8556};
+
+    @Test
+    public void coefficientsArePinned() {
+        assertArrayEquals(new int[] {16, 76309, 104597, -25675, -53279, 132201},
+                coefficients(YuvConverter.Standard.BT601, YuvConverter.Range.LIMITED));
+        assertArrayEquals(new int[] {0, 65536, 91881, -22553, -46802, 116130},
+                coefficients(YuvConverter.Standard.BT601, YuvConverter.Range.FULL));
+        assertArrayEquals(new int[] {16, 76309, 117489, -13975, -34925, 138438},
+                coefficients(YuvConverter.Standard.BT709, YuvConverter.Range.LIMITED));
+        assertArrayEquals(new int[] {0, 65536, 103206, -12276, -30679, 121609},
+                coefficients(YuvConverter.Standard.BT709, YuvConverter.Range.FULL));
+    }
+
+    @Test
+    public void matchesPublishedMatrices() {
+        checkAgainstMatrix(YuvConverter.Standard.BT601, YuvConverter.Range.LIMITED, BT601_LIMITED, 16);
+        checkAgainstMatrix(YuvConverter.Standard.BT601, YuvConverter.Range.FULL, BT601_FULL, 0);
+        checkAgainstMatrix(YuvConverter.Standard.BT709, YuvConverter.Range.LIMITED, BT709_LIMITED, 16);
+        checkAgainstMatrix(YuvConverter.Standard.BT709, YuvConverter.Range.FULL, BT709_FULL, 0);
+    }
+
+    @Test
+    public void convertsReferenceColors() {
+        YuvConverter converter = new YuvConverter(YuvConverter.Standard.BT601, YuvConverter.Range.LIMITED);
+        assertEquals(0xff000000, convertPixel(converter, 16, 128, 128, true));
+        assertEquals(0xffffffff, convertPixel(converter, 235, 128, 128, true));
+        // 100% color bars of BT.601.
+        assertEquals(0xfffe0000, convertPixel(converter, 81, 90, 240, true));
+        assertEquals(0xff00ff01, convertPixel(converter, 145, 54, 34, true));
+        assertEquals(0xff0000ff, convertPixel(converter, 41, 240, 110, true));
+        // OpenGL byte order swaps red and blue.
+        assertEquals(0xff0000fe, convertPixel(converter, 81, 90, 240, false));
+    }
+
+    @Test
+    public void convertSplitsBandsLikeSingleThread() {
+        Random random = new Random(1);
+        int[][] sizes = {{1, 1}, {3, 5}, {16, 16}, {641, 481}, {1280, 720}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = new byte[width * height + ((width + 1) & ~1) * ((height + 1) / 2)];
+            random.nextBytes(yuv);
+            YuvConverter converter = new YuvConverter(YuvConverter.Standard.BT709, YuvConverter.Range.FULL);
+            int[] expected = new int[width * height];
+            converter.convertRowsWithTables(yuv, width, height, expected, 0, height, true);
+            int[] actual = new int[width * height];
+            converter.convert(yuv, width, height, actual, true);
+            assertArrayEquals(width + "x" + height, expected, actual);
+        }
+    }
+
+    @Test
+    public void convertFinishesWhenInterrupted() {
+        int width = 1280;
+        int height = 720;
+        byte[] yuv = new byte[width * height * 3 / 2];
+        new Random(2).nextBytes(yuv);
+        final YuvConverter converter =
+                new YuvConverter(YuvConverter.Standard.BT601, YuvConverter.Range.LIMITED);
+        int[] expected = new int[width * height];
+        converter.convertRowsWithTables(yuv, width, height, expected, 0, height, false);
+        converter.setRowConverter(new YuvConverter.RowConverter() {
+            @Override
+            public void convertRows(final byte[] yuv, final int width, final int height,
+                                    final int[] out, final int rowStart, final int rowEnd,
+                                    final int[] coefficients, final boolean argb) {
+                if (rowStart > 0) {
+                    // The bands of the worker threads finish last.
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                converter.convertRowsWithTables(yuv, width, height, out, rowStart, rowEnd, argb);
+            }
+        });
+        int[] actual = new int[width * height];
+        Thread.currentThread().interrupt();
+        converter.convert(yuv, width, height, actual, false);
+        // Compared right away, before bands which were not waited for could finish.
+        boolean complete = Arrays.equals(expected, actual);
+        assertTrue(Thread.interrupted());
+        assertTrue(complete);
+    }
+
+    private static void checkAgainstMatrix(final YuvConverter.Standard standard,
+                                           final YuvConverter.Range range,
+                                           final double[] matrix, final int yOffset) {
+        YuvConverter converter = new YuvConverter(standard, range);
+        for (int y = 0; y < 256; y++) {
+            for (int u = 0; u < 256; u += 5) {
+                for (int v = 0; v < 256; v += 5) {
+                    int pixel = convertPixel(converter, y, u, v, true);
+                    double luma = matrix[0] * (y - yOffset);
+                    String message = standard + " " + range + " " + y + " " + u + " " + v;
+                    assertChannel(message, luma + matrix[1] * (v - 128), (pixel >> 16) & 0xff);
+                    assertChannel(message, luma + matrix[2] * (u - 128) + matrix[3] * (v - 128),
+                            (pixel >> 8) & 0xff);
+                    assertChannel(message, luma + matrix[4] * (u - 128), pixel & 0xff);
+                }
+            }
+        }
+    }
+
+    private static void assertChannel(final String message, final double expected, final int actual) {
+        long rounded = Math.max(0, Math.min(255, Math.round(expected)));
+        assertTrue(message + ": " + expected + " vs " + actual, Math.abs(rounded - actual) <= 1);
+    }
+
+    private static int convertPixel(final YuvConverter converter, final int y, final int u,
+                                    final int v, final boolean argb) {
+        byte[] yuv = {(byte) y, (byte) v, (byte) u};
+        int[] out = new int[1];
+        converter.convertRowsWithTables(yuv, 1, 1, out, 0, 1, argb);
+        return out[0];
+    }
+
+    private static int[] coefficients(final YuvConverter.Standard standard,
+                                      final YuvConverter.Range range) {
+        return new YuvConverter(standard, range).getCoefficients();
+    }
+}
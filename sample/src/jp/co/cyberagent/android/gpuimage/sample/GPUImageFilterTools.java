@@ -49,6 +49,7 @@ import jp.co.cyberagent.android.gpuimage.GPUImageDilationFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageDirectionalSobelEdgeDetectionFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageDissolveBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageDivideBlendFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageDualKawaseBlurFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageEmbossFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageExclusionBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageExposureFilter;
@@ -60,6 +61,7 @@ import jp.co.cyberagent.android.gpuimage.GPUImageGaussianBlurFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageGaussianSelecterBlurFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageGlassSphereFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageGrayscaleFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageGuidedFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageHalftoneFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageHardLightBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageHazeFilter;
@@ -74,6 +76,7 @@ import jp.co.cyberagent.android.gpuimage.GPUImageLinearBurnBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageLookupFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageLuminosityBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageMonochromeFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageMorphologyFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageMultiplyBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageNonMaximumSuppressionFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageNormalBlendFilter;
@@ -96,6 +99,8 @@ import jp.co.cyberagent.android.gpuimage.GPUImageSourceOverBlendFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageSphereRefractionFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageStandardBlurFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageSubtractBlendFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageSummedAreaBoxBlurFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageSummedAreaKuwaharaFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageSwirlFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageTestBlurFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageToneCurveFilter;
@@ -105,6 +110,7 @@ import jp.co.cyberagent.android.gpuimage.GPUImageTwoInputFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageVignetteFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageWeakPixelInclusionFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageWhiteBalanceFilter;
+import jp.co.cyberagent.android.gpuimage.util.Morphology;
 
 public class GPUImageFilterTools {
     public static void showDialog(final Context context,
@@ -164,13 +170,17 @@ public class GPUImageFilterTools {
 
         filters.addFilter("Lookup (Amatorka)", FilterType.LOOKUP_AMATORKA);
         filters.addFilter("Gaussian Blur", FilterType.GAUSSIAN_BLUR);
+        filters.addFilter("Dual Kawase Blur", FilterType.DUAL_KAWASE_BLUR);
         filters.addFilter("Crosshatch", FilterType.CROSSHATCH);
 
         filters.addFilter("Box Blur", FilterType.BOX_BLUR);
+        filters.addFilter("Box Blur (Summed-Area Table)", FilterType.SUMMED_AREA_BOX_BLUR);
         filters.addFilter("CGA Color Space", FilterType.CGA_COLORSPACE);
         filters.addFilter("Dilation", FilterType.DILATION);
         filters.addFilter("Kuwahara", FilterType.KUWAHARA);
+        filters.addFilter("Kuwahara (Anisotropic)", FilterType.ANISOTROPIC_KUWAHARA);
         filters.addFilter("RGB Dilation", FilterType.RGB_DILATION);
+        filters.addFilter("Morphological Gradient", FilterType.MORPHOLOGICAL_GRADIENT);
         filters.addFilter("Sketch", FilterType.SKETCH);
         filters.addFilter("Toon", FilterType.TOON);
         filters.addFilter("Smooth Toon", FilterType.SMOOTH_TOON);
@@ -191,6 +201,7 @@ public class GPUImageFilterTools {
         filters.addFilter("Levels Min (Mid Adjust)", FilterType.LEVELS_FILTER_MIN);
 
         filters. addFilter("Bilateral Blur", FilterType.BILATERAL_BLUR);
+        filters.addFilter("Guided Filter", FilterType.GUIDED_FILTER);
 
         filters.addFilter("Transform (2-D)", FilterType.TRANSFORM2D);
 
@@ -337,19 +348,27 @@ public class GPUImageFilterTools {
                 return amatorka;
             case GAUSSIAN_BLUR:
                 return new GPUImageGaussianBlurFilter();
+            case DUAL_KAWASE_BLUR:
+                return new GPUImageDualKawaseBlurFilter();
             case CROSSHATCH:
                 return new GPUImageCrosshatchFilter();
 
             case BOX_BLUR:
                 return new GPUImageBoxBlurFilter();
+            case SUMMED_AREA_BOX_BLUR:
+                return new GPUImageSummedAreaBoxBlurFilter();
             case CGA_COLORSPACE:
                 return new GPUImageCGAColorspaceFilter();
             case DILATION:
                 return new GPUImageDilationFilter();
             case KUWAHARA:
                 return new GPUImageKuwaharaFilter();
+            case ANISOTROPIC_KUWAHARA:
+                return new GPUImageSummedAreaKuwaharaFilter(6, 1.0f);
             case RGB_DILATION:
                 return new GPUImageRGBDilationFilter();
+            case MORPHOLOGICAL_GRADIENT:
+                return new GPUImageMorphologyFilter(Morphology.Operation.GRADIENT, 2);
             case SKETCH:
                 return new GPUImageSketchFilter();
             case TOON:
@@ -386,6 +405,8 @@ public class GPUImageFilterTools {
 
             case BILATERAL_BLUR:
                 return new GPUImageBilateralFilter();
+            case GUIDED_FILTER:
+                return new GPUImageGuidedFilter();
 
             case TRANSFORM2D:
                 return new GPUImageTransformFilter();
@@ -416,8 +437,8 @@ public class GPUImageFilterTools {
         SATURATION, EXPOSURE, HIGHLIGHT_SHADOW, MONOCHROME, OPACITY, RGB, WHITE_BALANCE, VIGNETTE, TONE_CURVE, BLEND_COLOR_BURN, BLEND_COLOR_DODGE, BLEND_DARKEN, BLEND_DIFFERENCE,
         BLEND_DISSOLVE, BLEND_EXCLUSION, BLEND_SOURCE_OVER, BLEND_HARD_LIGHT, BLEND_LIGHTEN, BLEND_ADD, BLEND_DIVIDE, BLEND_MULTIPLY, BLEND_OVERLAY, BLEND_SCREEN, BLEND_ALPHA,
         BLEND_COLOR, BLEND_HUE, BLEND_SATURATION, BLEND_LUMINOSITY, BLEND_LINEAR_BURN, BLEND_SOFT_LIGHT, BLEND_SUBTRACT, BLEND_CHROMA_KEY, BLEND_NORMAL, LOOKUP_AMATORKA,
-        GAUSSIAN_BLUR, CROSSHATCH, BOX_BLUR, CGA_COLORSPACE, DILATION, KUWAHARA, RGB_DILATION, SKETCH, TOON, SMOOTH_TOON, BULGE_DISTORTION, GLASS_SPHERE, HAZE, LAPLACIAN, NON_MAXIMUM_SUPPRESSION,
-        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, HALFTONE, TRANSFORM2D
+        GAUSSIAN_BLUR, DUAL_KAWASE_BLUR, CROSSHATCH, BOX_BLUR, SUMMED_AREA_BOX_BLUR, CGA_COLORSPACE, DILATION, KUWAHARA, ANISOTROPIC_KUWAHARA, RGB_DILATION, MORPHOLOGICAL_GRADIENT, SKETCH, TOON, SMOOTH_TOON, BULGE_DISTORTION, GLASS_SPHERE, HAZE, LAPLACIAN, NON_MAXIMUM_SUPPRESSION,
+        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, GUIDED_FILTER, HALFTONE, TRANSFORM2D
     }
 
     private static class FilterList {
@@ -476,6 +497,14 @@ public class GPUImageFilterTools {
                 adjuster = new DissolveBlendAdjuster().filter(filter);
             } else if (filter instanceof GPUImageGaussianBlurFilter) {
                 adjuster = new GaussianBlurAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageDualKawaseBlurFilter) {
+                adjuster = new DualKawaseBlurAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageSummedAreaBoxBlurFilter) {
+                adjuster = new SummedAreaBoxBlurAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageSummedAreaKuwaharaFilter) {
+                adjuster = new SummedAreaKuwaharaAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageMorphologyFilter) {
+                adjuster = new MorphologyAdjuster().filter(filter);
             } else if (filter instanceof GPUImageCrosshatchFilter) {
                 adjuster = new CrosshatchBlurAdjuster().filter(filter);
             } else if (filter instanceof GPUImageBulgeDistortionFilter) {
@@ -494,6 +523,8 @@ public class GPUImageFilterTools {
                 adjuster = new LevelsMinMidAdjuster().filter(filter);
             } else if (filter instanceof GPUImageBilateralFilter) {
                 adjuster = new BilateralAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageGuidedFilter) {
+                adjuster = new GuidedFilterAdjuster().filter(filter);
             } else if (filter instanceof GPUImageTransformFilter) {
                 adjuster = new RotateAdjuster().filter(filter);
             } else if (filter instanceof GPUImageGaussianSelecterBlurFilter) {
@@ -698,6 +729,34 @@ public class GPUImageFilterTools {
             }
         }
 
+        private class DualKawaseBlurAdjuster extends Adjuster<GPUImageDualKawaseBlurFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setBlurRadius(range(percentage, 0.0f, 200.0f));
+            }
+        }
+
+        private class SummedAreaBoxBlurAdjuster extends Adjuster<GPUImageSummedAreaBoxBlurFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setRadius(range(percentage, 0, 100));
+            }
+        }
+
+        private class SummedAreaKuwaharaAdjuster extends Adjuster<GPUImageSummedAreaKuwaharaFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setRadius(range(percentage, 0, 24));
+            }
+        }
+
+        private class MorphologyAdjuster extends Adjuster<GPUImageMorphologyFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setRadius(range(percentage, 0, 30));
+            }
+        }
+
         //jerrypxiao
         private class GaussianSelecterBlurAdjuster extends Adjuster<GPUImageGaussianSelecterBlurFilter> {
             @Override
@@ -796,6 +855,15 @@ public class GPUImageFilterTools {
             }
         }
 
+        private class GuidedFilterAdjuster extends Adjuster<GPUImageGuidedFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                int radius = range(percentage, 0, 64);
+                getFilter().setRadius(radius);
+                getFilter().setSubsample(Math.max(radius / 4, 1));
+            }
+        }
+
         private class BilateralAdjuster extends Adjuster<GPUImageBilateralFilter> {
             @Override
             public void adjust(final int percentage) {